@@ -7,13 +7,20 @@ import io.javalin.plugin.bundled.CorsPluginConfig;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @Slf4j
 public class Application {
 
-    private final Map<Class<?>, AuctionBase> modules = new HashMap<>();
+    // Kept in registration order, modules are enabled in that order and disabled in reverse.
+    private final Map<Class<?>, AuctionBase> modules = new LinkedHashMap<>();
+    // Shutting down is also the shutdown hook's job, whoever comes second has nothing left to do.
+    private final AtomicBoolean stopped = new AtomicBoolean();
     @Getter
     private Javalin app;
 
@@ -24,23 +31,43 @@ public class Application {
     public boolean start(int port) {
         // Setup our modules.
         getModule(DatabaseManager.class);
+        MetricsManager metricsManager = getModule(MetricsManager.class);
+        getModule(PersistenceManager.class);
+        getModule(TokenCache.class);
+        getModule(ItemReadModel.class);
+        getModule(PasswordHasher.class);
+        getModule(BidThrottle.class);
         AuthManager authManager = getModule(AuthManager.class);
         ItemManager itemManager = getModule(ItemManager.class);
         BidManager bidManager = getModule(BidManager.class);
         MessageManager messageManager = getModule(MessageManager.class);
-        AuctionManager.start(bidManager);
+        // Started once the modules that listen on it are enabled.
+        getModule(BusManager.class);
+        // Goes last, restoring the live auctions needs the other modules up and running.
+        getModule(AuctionManager.class);
 
         // Send a signal to all modules to start up.
         // We need to enable the database manager first, as other modules depend on it.
         getModule(DatabaseManager.class).enable();
         modules.values().stream().filter(m -> !(m instanceof DatabaseManager)).forEach(AuctionBase::enable);
 
+        ExecutionMode executionMode = ExecutionMode.fromConfig();
+        if (!executionMode.isSupported()) {
+            log.warn("Virtual threads need Java 21 or later, running the handlers on platform threads.");
+            executionMode = ExecutionMode.PLATFORM;
+        }
+        log.info("Running the HTTP and WebSocket handlers on {} threads.", executionMode.name().toLowerCase());
+        boolean virtualThreads = executionMode == ExecutionMode.VIRTUAL;
+
         // Start up Javalin (creates a separate thread, so we don't have to do a while true loop).
         app = Javalin.create(config -> {
+            // Covers Jetty's whole pool, so the WebSocket handlers run on them as well.
+            config.useVirtualThreads = virtualThreads;
             config.jsonMapper(new JavalinJackson());
             config.bundledPlugins.enableCors(cors -> {
                 cors.addRule(CorsPluginConfig.CorsRule::anyHost);
             });
+            config.requestLogger.http(metricsManager::recordRequest);
         }).start(port);
 
         // Auth endpoints
@@ -49,11 +76,14 @@ public class Application {
         app.post("/auth/validate", authManager::validate);
         // Item endpoints
         app.get("/item", itemManager::getAllItems);
+        app.get("/item/search", itemManager::searchItems);
         app.get("/item/{id}", itemManager::getItemById);
         app.post("/item", itemManager::createItem);
         // Message endpoints
         app.get("/messages/{lang}", messageManager::getMessagesByLanguage);
         app.post("/message", messageManager::createMessage);
+        // Metrics endpoint
+        app.get("/metrics", metricsManager::getMetrics);
         // WebSocket endpoints
         app.ws("/ws/bid", bidManager);
         // Send a signal to all modules to shut down when we exit.
@@ -62,10 +92,15 @@ public class Application {
     }
 
     public void shutdown() {
+        if (!stopped.compareAndSet(false, true)) return;
         if (app != null) {
             app.stop();
         }
-        modules.values().forEach(AuctionBase::disable);
+        // Reverse of start up, the database goes last so modules can still flush their pending writes.
+        List<AuctionBase> reversed = new ArrayList<>(modules.values());
+        Collections.reverse(reversed);
+        reversed.stream().filter(m -> !(m instanceof DatabaseManager)).forEach(AuctionBase::disable);
+        getModule(DatabaseManager.class).disable();
     }
 
     /**
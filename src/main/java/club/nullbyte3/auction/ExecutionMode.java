@@ -0,0 +1,23 @@
+package club.nullbyte3.auction;
+
+// What the HTTP and WebSocket handlers run on, set with auction.executionMode.
+public enum ExecutionMode {
+    // Jetty's bounded thread pool, a handler blocked on the database holds on to one of its threads.
+    PLATFORM,
+    // A new virtual thread per task, blocking only parks it. Needs a Java 21 runtime.
+    VIRTUAL;
+
+    public static ExecutionMode fromConfig() {
+        return valueOf(System.getProperty("auction.executionMode", "platform").toUpperCase());
+    }
+
+    public boolean isSupported() {
+        if (this == PLATFORM) return true;
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package club.nullbyte3.auction.bus;
+
+import club.nullbyte3.auction.websocket.EncodedFrame;
+
+import java.util.function.Consumer;
+
+/**
+ * Carries the broadcast frames (price, timer, new auction and auction end) to every node, each node then fans
+ * them out to its own sockets. Frames published on this node are delivered locally as well.
+ * <p>
+ * The auctions themselves run on a single engine node, see AuctionManager. The other nodes send it their bids and
+ * new items as requests over the bus, see BusManager#requestEngine.
+ */
+public interface EventBus {
+
+    /**
+     * @param deliver Called with every frame that has to go out to the sockets of this node.
+     */
+    default void start(Consumer<EncodedFrame> deliver) {
+        start(deliver, () -> { });
+    }
+
+    /**
+     * @param connected Called whenever another node starts receiving what this node publishes, after it was down
+     *                  or unreachable. Nothing published before reached it, so whatever it has to catch up on has to
+     *                  be published again from here.
+     */
+    void start(Consumer<EncodedFrame> deliver, Runnable connected);
+
+    void publish(EncodedFrame frame);
+
+    void stop();
+
+    /**
+     * Picks the bus from auction.bus, "local" (the default) for a single node or "tcp" for a cluster.
+     */
+    static EventBus fromConfig() {
+        String type = System.getProperty("auction.bus", "local");
+        switch (type) {
+            case "local":
+                return new LocalEventBus();
+            case "tcp":
+                return TcpEventBus.fromConfig();
+            default:
+                throw new IllegalArgumentException("Unknown event bus: " + type);
+        }
+    }
+}
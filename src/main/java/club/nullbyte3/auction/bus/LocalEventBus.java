@@ -0,0 +1,28 @@
+package club.nullbyte3.auction.bus;
+
+import club.nullbyte3.auction.websocket.EncodedFrame;
+
+import java.util.function.Consumer;
+
+/**
+ * Single node, frames go straight to the local sockets.
+ */
+public class LocalEventBus implements EventBus {
+
+    private volatile Consumer<EncodedFrame> deliver = frame -> { };
+
+    @Override
+    public void start(Consumer<EncodedFrame> deliver, Runnable connected) {
+        this.deliver = deliver;
+    }
+
+    @Override
+    public void publish(EncodedFrame frame) {
+        deliver.accept(frame);
+    }
+
+    @Override
+    public void stop() {
+        deliver = frame -> { };
+    }
+}
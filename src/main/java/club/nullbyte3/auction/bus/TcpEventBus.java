@@ -0,0 +1,323 @@
+package club.nullbyte3.auction.bus;
+
+import club.nullbyte3.auction.websocket.EncodedFrame;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Full mesh over plain TCP. Every node listens on auction.bus.bindAddress (loopback unless set) and auction.bus.port
+ * and keeps one outgoing connection to each node in auction.bus.peers ("host:port,host:port"), frames published
+ * here are written to all of them. Received frames are only delivered locally, never forwarded, so every node has
+ * to list every other node.
+ * <p>
+ * All nodes share auction.bus.secret. A node accepting a connection sends a random challenge first and only reads
+ * frames once the peer answered with the HMAC of it under the secret, so the secret itself never goes over the wire.
+ * Lengths on the wire are checked against auction.bus.maxFrameBytes before anything is allocated, a peer that
+ * sends a bad one is dropped.
+ * <p>
+ * A frame on the wire is [subject (writeUTF, empty for none)][long item id, -1 for none][int length][UTF-8 text]
+ * [int length, -1 for none][binary form], so sockets on the other nodes that negotiated binary get it as well, and
+ * conflate it by item. Peers that are down
+ * don't hold anything up, their frames are dropped until they are reachable again. Once they are, the connected
+ * callback lets the modules publish whatever the peer has to catch up on.
+ */
+@Slf4j
+public class TcpEventBus implements EventBus {
+
+    private static final int QUEUE_CAPACITY = Integer.getInteger("auction.bus.queueCapacity", 65536);
+    private static final long RECONNECT_MS = Long.getLong("auction.bus.reconnectMs", 1000);
+    private static final int MAX_FRAME_BYTES = Integer.getInteger("auction.bus.maxFrameBytes", 8 * 1024 * 1024);
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+    private static final int CHALLENGE_BYTES = 16;
+    private static final String HMAC = "HmacSHA256";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final String bindAddress;
+    private final int port;
+    private final SecretKeySpec secret;
+    private final List<Peer> peers = new ArrayList<>();
+    private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+    private final LongAdder dropped = new LongAdder();
+    private volatile Consumer<EncodedFrame> deliver = frame -> { };
+    private volatile Runnable connected = () -> { };
+    private volatile boolean running;
+    private ServerSocket server;
+
+    public TcpEventBus(String bindAddress, int port, String secret, List<InetSocketAddress> peerAddresses) {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("The tcp event bus needs a shared secret, set auction.bus.secret.");
+        }
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC);
+        for (InetSocketAddress address : peerAddresses) {
+            peers.add(new Peer(address));
+        }
+    }
+
+    static TcpEventBus fromConfig() {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String peer : System.getProperty("auction.bus.peers", "").split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) continue;
+            int colon = peer.lastIndexOf(':');
+            peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+        return new TcpEventBus(System.getProperty("auction.bus.bindAddress", "127.0.0.1"),
+                Integer.getInteger("auction.bus.port", 7071), System.getProperty("auction.bus.secret"), peers);
+    }
+
+    @Override
+    public void start(Consumer<EncodedFrame> deliver, Runnable connected) {
+        this.deliver = deliver;
+        this.connected = connected;
+        try {
+            server = new ServerSocket(port, 50, InetAddress.getByName(bindAddress));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to listen for bus peers on " + bindAddress + ":" + port, e);
+        }
+        running = true;
+        startThread(this::acceptLoop, "bus-accept");
+        for (Peer peer : peers) {
+            startThread(peer::run, "bus-out-" + peer.name);
+        }
+        log.info("Event bus listening on {}:{}, publishing to {} peers.", bindAddress, getPort(), peers.size());
+    }
+
+    @Override
+    public void publish(EncodedFrame frame) {
+        deliver.accept(frame);
+        for (Peer peer : peers) {
+            if (!peer.queue.offer(frame)) {
+                dropped.increment();
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        closeQuietly(server);
+        inbound.forEach(TcpEventBus::closeQuietly);
+        for (Peer peer : peers) {
+            peer.stop();
+        }
+    }
+
+    public int getPort() {
+        return server != null ? server.getLocalPort() : port;
+    }
+
+    // Frames that never made it to a peer, because its queue was full or it was unreachable.
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = server.accept();
+                inbound.add(socket);
+                startThread(() -> readLoop(socket), "bus-in-" + socket.getRemoteSocketAddress());
+            } catch (IOException e) {
+                if (running) log.error("Failed to accept a bus peer", e);
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536))) {
+            if (!authenticate(socket, in)) {
+                log.warn("Rejected bus peer {}, it doesn't know the secret.", socket.getRemoteSocketAddress());
+                return;
+            }
+            while (running) {
+                String subject = in.readUTF();
+                long itemId = in.readLong();
+                byte[] text = new byte[checkLength(in.readInt())];
+                in.readFully(text);
+                int binaryLength = in.readInt();
+                byte[] binary = null;
+                if (binaryLength != -1) {
+                    binary = new byte[checkLength(binaryLength)];
+                    in.readFully(binary);
+                }
+                deliver.accept(EncodedFrame.of(subject.isEmpty() ? null : subject, itemId < 0 ? null : itemId,
+                        new String(text, StandardCharsets.UTF_8), binary));
+            }
+        } catch (IllegalStateException e) {
+            log.warn("Dropped bus peer {}: {}", socket.getRemoteSocketAddress(), e.getMessage());
+        } catch (IOException e) {
+            if (running) log.info("Bus peer {} disconnected.", socket.getRemoteSocketAddress());
+        } finally {
+            inbound.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    private boolean authenticate(Socket socket, DataInputStream in) throws IOException {
+        byte[] challenge = new byte[CHALLENGE_BYTES];
+        RANDOM.nextBytes(challenge);
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        OutputStream out = socket.getOutputStream();
+        out.write(challenge);
+        out.flush();
+        byte[] expected = sign(challenge);
+        byte[] answer = new byte[expected.length];
+        in.readFully(answer);
+        socket.setSoTimeout(0);
+        return MessageDigest.isEqual(expected, answer);
+    }
+
+    private byte[] sign(byte[] challenge) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(secret);
+            return mac.doFinal(challenge);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(HMAC + " is not available", e);
+        }
+    }
+
+    private static int checkLength(int length) {
+        if (length < 0 || length > MAX_FRAME_BYTES) {
+            throw new IllegalStateException("frame length " + length + " is outside 0.." + MAX_FRAME_BYTES);
+        }
+        return length;
+    }
+
+    private static void startThread(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (Exception ignored) {
+        }
+    }
+
+    private class Peer {
+        private final InetSocketAddress address;
+        private final String name;
+        private final BlockingQueue<EncodedFrame> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private volatile Socket socket;
+        private volatile Thread thread;
+        // Only touched by the peer's thread.
+        private byte[] scratch = new byte[8192];
+
+        private Peer(InetSocketAddress address) {
+            this.address = address;
+            this.name = address.getHostString() + ":" + address.getPort();
+        }
+
+        private void run() {
+            thread = Thread.currentThread();
+            boolean warned = false;
+            while (running) {
+                try (Socket socket = new Socket()) {
+                    this.socket = socket;
+                    socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT_MS);
+                    socket.setTcpNoDelay(true);
+                    // Answer the peer's challenge before the first frame.
+                    socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+                    byte[] challenge = new byte[CHALLENGE_BYTES];
+                    new DataInputStream(socket.getInputStream()).readFully(challenge);
+                    socket.getOutputStream().write(sign(challenge));
+                    socket.setSoTimeout(0);
+                    log.info("Connected to bus peer {}.", name);
+                    warned = false;
+                    try {
+                        connected.run();
+                    } catch (Exception e) {
+                        log.error("Failed to catch up bus peer {}", name, e);
+                    }
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+                    while (running) {
+                        write(out, queue.take());
+                        // Everything that piled up while we were writing goes out with the same flush.
+                        EncodedFrame next;
+                        while ((next = queue.poll()) != null) {
+                            write(out, next);
+                        }
+                        out.flush();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    if (!running) return;
+                    if (!warned) {
+                        log.warn("Bus peer {} is unreachable: {}", name, e.getMessage());
+                        warned = true;
+                    }
+                    // Whatever was queued for it is stale by the time it is back.
+                    dropped.add(queue.size());
+                    queue.clear();
+                    try {
+                        Thread.sleep(RECONNECT_MS);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void write(DataOutputStream out, EncodedFrame frame) throws IOException {
+            out.writeUTF(frame.getSubject() == null ? "" : frame.getSubject());
+            out.writeLong(frame.getItemId() == null ? -1 : frame.getItemId());
+            writeBytes(out, frame.getPayload());
+            ByteBuffer binary = frame.getBinary();
+            if (binary == null) {
+                out.writeInt(-1);
+            } else {
+                writeBytes(out, binary);
+            }
+        }
+
+        private void writeBytes(DataOutputStream out, ByteBuffer bytes) throws IOException {
+            int length = bytes.remaining();
+            if (scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            bytes.get(scratch, 0, length);
+            out.writeInt(length);
+            out.write(scratch, 0, length);
+        }
+
+        private void stop() {
+            closeQuietly(socket);
+            Thread current = thread;
+            if (current != null) current.interrupt();
+        }
+    }
+}
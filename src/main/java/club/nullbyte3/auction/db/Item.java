@@ -45,7 +45,8 @@ public class Item {
     @JoinColumn(name = "winner_id")
     private User winner;
 
-    @Column(name = "created_at", updatable = false, insertable = false)
+    // Set by ItemManager before the insert, so the read model has it without reading the row back.
+    @Column(name = "created_at", updatable = false)
     private LocalDateTime createdAt;
 
     @Column(name = "end_at")
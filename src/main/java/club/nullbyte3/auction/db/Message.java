@@ -8,10 +8,14 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
 
 @Data
 @Entity
-@Table(name = "messages")
+// Creating and seeding messages upserts on (language, message_key). Databases from before the constraint may still
+// hold duplicates, which keep it from being created, migrations/001-unique-message-keys.sql removes them once.
+@Table(name = "messages", uniqueConstraints = @UniqueConstraint(name = "messages_language_key_uindex",
+        columnNames = {"language", "message_key"}))
 public class Message {
 
     @Id
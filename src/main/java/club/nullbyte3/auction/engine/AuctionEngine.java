@@ -0,0 +1,52 @@
+package club.nullbyte3.auction.engine;
+
+import club.nullbyte3.auction.db.User;
+
+import java.math.BigDecimal;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Partitions live items by id over a fixed set of {@link AuctionShard}s, one per core by default.
+ */
+public class AuctionEngine {
+
+    private final AuctionShard[] shards;
+
+    public AuctionEngine(int shardCount, int shardCapacity, Consumer<BidResult> onAccepted) {
+        this.shards = new AuctionShard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new AuctionShard(i, shardCapacity, onAccepted);
+        }
+    }
+
+    public CompletableFuture<Void> open(OrderBook book) {
+        return shardFor(book.getItemId()).open(book);
+    }
+
+    public CompletableFuture<BidResult> bid(long itemId, User bidder) {
+        return bid(itemId, bidder, null);
+    }
+
+    public CompletableFuture<BidResult> bid(long itemId, User bidder, BigDecimal maxPrice) {
+        return shardFor(itemId).bid(itemId, bidder, maxPrice);
+    }
+
+    public CompletableFuture<OrderBook> close(long itemId) {
+        return shardFor(itemId).close(itemId);
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public void shutdown() {
+        for (AuctionShard shard : shards) {
+            shard.shutdown();
+        }
+    }
+
+    private AuctionShard shardFor(long itemId) {
+        return shards[(int) Math.floorMod(itemId, (long) shards.length)];
+    }
+}
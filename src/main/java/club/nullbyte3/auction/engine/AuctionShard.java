@@ -0,0 +1,114 @@
+package club.nullbyte3.auction.engine;
+
+import club.nullbyte3.auction.db.User;
+import lombok.extern.slf4j.Slf4j;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * A single-threaded event loop owning the order books of every live item that hashes to it.
+ * All work for those items goes through one bounded ring buffer, so bids are strictly ordered per item
+ * without any locking, and items on different shards never contend with each other.
+ */
+@Slf4j
+public class AuctionShard {
+
+    private static final BidResult NOT_LIVE = BidResult.rejected("Item not found or is not active.");
+    private static final BidResult TOO_MANY = BidResult.rejected("Too many bids, try again.");
+
+    private final BlockingQueue<Runnable> ring;
+    private final Consumer<BidResult> onAccepted;
+    // Only touched by the shard thread.
+    private final Map<Long, OrderBook> books = new HashMap<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * @param onAccepted Called on the shard thread for every accepted bid, in acceptance order.
+     */
+    public AuctionShard(int index, int capacity, Consumer<BidResult> onAccepted) {
+        this.ring = new ArrayBlockingQueue<>(capacity);
+        this.onAccepted = onAccepted;
+        this.thread = new Thread(this::run, "auction-shard-" + index);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public CompletableFuture<Void> open(OrderBook book) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        put(() -> {
+            books.put(book.getItemId(), book);
+            result.complete(null);
+        }, result);
+        return result;
+    }
+
+    /**
+     * @param maxPrice The most the bidder would go to, null for a plain bid of one increment.
+     */
+    public CompletableFuture<BidResult> bid(long itemId, User bidder, BigDecimal maxPrice) {
+        CompletableFuture<BidResult> result = new CompletableFuture<>();
+        boolean queued = running && ring.offer(() -> {
+            OrderBook book = books.get(itemId);
+            if (book == null) {
+                result.complete(NOT_LIVE);
+                return;
+            }
+            BidResult bid = book.bid(bidder, maxPrice);
+            result.complete(bid);
+            if (!bid.isAccepted()) return;
+            try {
+                onAccepted.accept(bid);
+            } catch (Exception e) {
+                log.error("Failed to publish accepted bid for item {}", itemId, e);
+            }
+        });
+        if (!queued) {
+            result.complete(running ? TOO_MANY : NOT_LIVE);
+        }
+        return result;
+    }
+
+    /**
+     * Takes the item off the shard. Every bid queued before this call is still applied.
+     * @return The final state of the book, or null if the item wasn't live here.
+     */
+    public CompletableFuture<OrderBook> close(long itemId) {
+        CompletableFuture<OrderBook> result = new CompletableFuture<>();
+        put(() -> result.complete(books.remove(itemId)), result);
+        return result;
+    }
+
+    public void shutdown() {
+        running = false;
+        thread.interrupt();
+    }
+
+    // Lifecycle work waits for room instead of being rejected like bids are.
+    private void put(Runnable task, CompletableFuture<?> result) {
+        try {
+            ring.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                ring.take().run();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                log.error("Error in auction shard", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package club.nullbyte3.auction.engine;
+
+import club.nullbyte3.auction.db.User;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.math.BigDecimal;
+
+@Getter
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class BidResult {
+    private final boolean accepted;
+    // False when only the leader's maximum went up, nothing to persist or broadcast then.
+    private final boolean priceChanged;
+    private final long itemId;
+    private final BigDecimal price;
+    // The leader after the bid, who isn't always the one who sent it when proxies are involved.
+    private final User bidder;
+    // The leader's hidden maximum, for the journal only.
+    private final BigDecimal maxPrice;
+    private final String error;
+    // System.nanoTime() of the moment the shard accepted the bid.
+    private final long acceptedAt;
+
+    public static BidResult accepted(long itemId, BigDecimal price, User bidder) {
+        return accepted(itemId, price, bidder, null);
+    }
+
+    public static BidResult accepted(long itemId, BigDecimal price, User bidder, BigDecimal maxPrice) {
+        return new BidResult(true, true, itemId, price, bidder, maxPrice, null, System.nanoTime());
+    }
+
+    public static BidResult maxRaised(long itemId, BigDecimal price, User leader, BigDecimal maxPrice) {
+        return new BidResult(true, false, itemId, price, leader, maxPrice, null, System.nanoTime());
+    }
+
+    public static BidResult rejected(String error) {
+        return new BidResult(false, false, 0, null, null, null, error, 0);
+    }
+}
@@ -0,0 +1,39 @@
+package club.nullbyte3.auction.engine;
+
+import club.nullbyte3.auction.db.Item;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An item that is currently being auctioned, along with what the lifecycle needs to keep track of it.
+ */
+public class LiveAuction {
+
+    @Getter
+    private final Item item;
+    private final AtomicBoolean ended = new AtomicBoolean();
+    @Getter
+    @Setter
+    private volatile TimingWheel<LiveAuction>.Timeout deadline;
+
+    public LiveAuction(Item item) {
+        this.item = item;
+    }
+
+    public long getItemId() {
+        return item.getId();
+    }
+
+    public boolean isEnded() {
+        return ended.get();
+    }
+
+    /**
+     * @return True for the caller that actually ended the auction, false if it was already over.
+     */
+    public boolean markEnded() {
+        return ended.compareAndSet(false, true);
+    }
+}
@@ -0,0 +1,82 @@
+package club.nullbyte3.auction.engine;
+
+import club.nullbyte3.auction.db.User;
+import lombok.Getter;
+
+import java.math.BigDecimal;
+
+/**
+ * In-memory state of a live item. Only ever touched by the thread of the {@link AuctionShard} owning the item,
+ * so nothing in here needs to be thread-safe.
+ */
+@Getter
+public class OrderBook {
+
+    private final long itemId;
+    private final BigDecimal increment;
+    private BigDecimal currentPrice;
+    private User leader;
+    // The most the leader's proxy goes to, never sent to anyone. Null when it's no more than the current price.
+    private BigDecimal leaderMax;
+    private long bidCount;
+
+    public OrderBook(long itemId, BigDecimal startPrice, BigDecimal increment, User leader, long bidCount) {
+        this(itemId, startPrice, increment, leader, null, bidCount);
+    }
+
+    public OrderBook(long itemId, BigDecimal startPrice, BigDecimal increment, User leader, BigDecimal leaderMax,
+                     long bidCount) {
+        this.itemId = itemId;
+        this.currentPrice = startPrice;
+        this.increment = increment;
+        this.leader = leader;
+        this.leaderMax = leaderMax != null && leaderMax.compareTo(startPrice) > 0 ? leaderMax : null;
+        this.bidCount = bidCount;
+    }
+
+    /**
+     * A plain bid is the next increment. A proxy bid names the most the bidder would pay, and the challenger and
+     * the leader's proxy are played out right here: whoever has the higher maximum leads, at one increment over
+     * the other maximum (or their own maximum if that is less). Ties go to the leader, who was there first.
+     * However many steps that would have been, it's one accepted bid.
+     *
+     * @param maxPrice Null for a plain bid.
+     */
+    BidResult bid(User bidder, BigDecimal maxPrice) {
+        BigDecimal next = currentPrice.add(increment);
+        if (maxPrice != null && maxPrice.compareTo(next) < 0) {
+            return BidResult.rejected("The maximum has to be at least " + next.toPlainString() + ".");
+        }
+        boolean leading = leader != null && leader.getId().equals(bidder.getId());
+        if (leading && maxPrice != null) {
+            // Raising their own maximum doesn't move the price. Anything else changes nothing.
+            if (leaderMax != null && maxPrice.compareTo(leaderMax) <= 0) {
+                return BidResult.rejected("Your maximum is already " + leaderMax.toPlainString() + ".");
+            }
+            leaderMax = maxPrice;
+            return BidResult.maxRaised(itemId, currentPrice, leader, leaderMax);
+        }
+
+        if (leader == null || leading) {
+            // Nobody to play against.
+            currentPrice = next;
+            leader = bidder;
+            if (maxPrice != null) leaderMax = maxPrice;
+        } else {
+            BigDecimal challengerMax = maxPrice != null ? maxPrice : next;
+            BigDecimal leaderLimit = leaderMax != null ? leaderMax : currentPrice;
+            if (challengerMax.compareTo(leaderLimit) > 0) {
+                currentPrice = challengerMax.min(leaderLimit.add(increment));
+                leader = bidder;
+                leaderMax = challengerMax;
+            } else {
+                currentPrice = leaderLimit.min(challengerMax.add(increment));
+            }
+        }
+        if (leaderMax != null && leaderMax.compareTo(currentPrice) <= 0) {
+            leaderMax = null;
+        }
+        bidCount++;
+        return BidResult.accepted(itemId, currentPrice, leader, leaderMax);
+    }
+}
@@ -0,0 +1,231 @@
+package club.nullbyte3.auction.engine;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel for auction deadlines. Scheduling, cancelling and extending a deadline are all O(1)
+ * and never take a lock: new timeouts are handed to the wheel thread through a queue, and cancels and extensions
+ * only CAS the timeout's deadline. The wheel thread notices a moved deadline when the timeout's bucket comes
+ * around and puts it back into the right bucket instead of firing it.
+ * <p>
+ * Firing a timeout is a CAS of its deadline too, so an extension and the wheel firing can't both win:
+ * once {@link Timeout#extend} returns true the timeout won't fire before its new deadline.
+ * <p>
+ * Everything that expires within the same tick is handed to the callback in one list.
+ */
+@Slf4j
+public class TimingWheel<T> {
+
+    // Deadline values that mark a timeout as done. System.nanoTime() won't land on these in practice.
+    private static final long EXPIRED = Long.MIN_VALUE;
+    private static final long CANCELLED = Long.MIN_VALUE + 1;
+
+    private final long tickNanos;
+    private final long startTime;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Consumer<List<T>> onExpired;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    // Only touched by the wheel thread.
+    private long tick;
+
+    /**
+     * @param tickMillis Resolution of the wheel.
+     * @param wheelSize Number of buckets, rounded up to a power of two.
+     * @param onExpired Called on the wheel thread with the payloads of every timeout that expired in a tick.
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(String name, long tickMillis, int wheelSize, Consumer<List<T>> onExpired) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = (Bucket[]) new TimingWheel<?>.Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.onExpired = onExpired;
+        this.startTime = System.nanoTime();
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public Timeout schedule(T payload, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(payload, System.nanoTime() + unit.toNanos(delay));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    public void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+    private void run() {
+        while (running) {
+            long deadline = startTime + (tick + 1) * tickNanos;
+            long sleep = deadline - System.nanoTime();
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+                continue; // Woken up early, or right on time, check again.
+            }
+
+            transferPending();
+            List<T> expired = expire(wheel[(int) (tick & mask)], deadline);
+            tick++;
+            if (!expired.isEmpty()) {
+                try {
+                    onExpired.accept(expired);
+                } catch (Exception e) {
+                    log.error("Failed to handle {} expired timeouts", expired.size(), e);
+                }
+            }
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (!timeout.isCancelled()) {
+                place(timeout, tick);
+            }
+        }
+    }
+
+    /**
+     * @param fromTick The first tick whose bucket hasn't been walked yet.
+     */
+    private void place(Timeout timeout, long fromTick) {
+        long target = Math.max((timeout.deadline.get() - startTime) / tickNanos, fromTick);
+        timeout.rounds = (target - fromTick) / wheel.length;
+        wheel[(int) (target & mask)].add(timeout);
+    }
+
+    private List<T> expire(Bucket bucket, long tickDeadline) {
+        List<T> expired = new ArrayList<>(0);
+        List<Timeout> extended = null;
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            long deadline = timeout.deadline.get();
+            if (deadline == CANCELLED) {
+                bucket.remove(timeout);
+            } else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else if (deadline - tickDeadline <= 0 && timeout.deadline.compareAndSet(deadline, EXPIRED)) {
+                bucket.remove(timeout);
+                expired.add(timeout.payload);
+            } else {
+                // The deadline was pushed back since we placed it, possibly just now. If it was cancelled
+                // instead, the next pass over its bucket drops it.
+                bucket.remove(timeout);
+                if (extended == null) extended = new ArrayList<>();
+                extended.add(timeout);
+            }
+            timeout = next;
+        }
+        if (extended != null) {
+            // Re-placed after the walk, counting from the next tick since this bucket is done.
+            for (Timeout moved : extended) {
+                place(moved, tick + 1);
+            }
+        }
+        return expired;
+    }
+
+    public final class Timeout {
+        @Getter
+        private final T payload;
+        // Nanos deadline, or EXPIRED/CANCELLED once the timeout is done.
+        private final AtomicLong deadline;
+        // Only touched by the wheel thread.
+        private long rounds;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(T payload, long deadline) {
+            this.payload = payload;
+            this.deadline = new AtomicLong(deadline);
+        }
+
+        public void cancel() {
+            long current;
+            do {
+                current = deadline.get();
+                if (current == EXPIRED) return;
+            } while (!deadline.compareAndSet(current, CANCELLED));
+        }
+
+        /**
+         * Pushes the deadline back to delay from now. Deadlines never move forward through this,
+         * a shorter delay than what is left is ignored.
+         * @return False if the timeout already fired or was cancelled.
+         */
+        public boolean extend(long delay, TimeUnit unit) {
+            long newDeadline = System.nanoTime() + unit.toNanos(delay);
+            while (true) {
+                long current = deadline.get();
+                if (current == EXPIRED || current == CANCELLED) return false;
+                if (newDeadline - current <= 0 || deadline.compareAndSet(current, newDeadline)) return true;
+            }
+        }
+
+        public long remaining(TimeUnit unit) {
+            long current = deadline.get();
+            if (current == EXPIRED || current == CANCELLED) return 0;
+            return unit.convert(Math.max(0, current - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+
+        public boolean isExpired() {
+            return deadline.get() == EXPIRED;
+        }
+
+        public boolean isCancelled() {
+            return deadline.get() == CANCELLED;
+        }
+    }
+
+    // Intrusive doubly linked list, so removing a timeout from its bucket is O(1).
+    private final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout) {
+            timeout.prev = tail;
+            timeout.next = null;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+}
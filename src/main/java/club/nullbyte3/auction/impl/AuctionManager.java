@@ -1,69 +1,354 @@
 package club.nullbyte3.auction.impl;
 
+import club.nullbyte3.auction.AuctionBase;
 import club.nullbyte3.auction.db.Item;
+import club.nullbyte3.auction.db.User;
+import club.nullbyte3.auction.engine.AuctionEngine;
+import club.nullbyte3.auction.engine.BidResult;
+import club.nullbyte3.auction.engine.LiveAuction;
+import club.nullbyte3.auction.engine.OrderBook;
+import club.nullbyte3.auction.engine.TimingWheel;
+import club.nullbyte3.auction.journal.EventJournal;
+import club.nullbyte3.auction.journal.JournalEvent;
+import club.nullbyte3.auction.journal.JournalState;
 import lombok.Getter;
-import org.hibernate.SessionFactory;
-import org.hibernate.Transaction;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.Session;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Queue;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class AuctionManager {
+/**
+ * Manages the lifecycle of items. Up to MAX_LIVE_ITEMS are auctioned at the same time, the rest wait in a FIFO queue
+ * and go live as soon as a slot frees up. Bids are resolved by the {@link AuctionEngine}, which spreads the live items
+ * over one event loop per core.
+ * <p>
+ * Every change to the queue and the live items is written to the {@link EventJournal}, so a restart picks up
+ * the exact same auctions, prices and deadlines.
+ * <p>
+ * Only one node of a cluster runs the auctions, the others start with auction.engine.enabled=false. They don't
+ * open the journal or any item, take no bids and create no items, and only fan out what the engine node
+ * publishes on the event bus.
+ */
+@Slf4j
+public class AuctionManager extends AuctionBase {
 
-    // A static class to manage lifecycle of items.
-    private AuctionManager() {
-    }
+    private static final int AUCTION_DURATION = 25;
+    private static final int MAX_LIVE_ITEMS = Integer.getInteger("auction.maxLiveItems", 16);
+    private static final int SHARDS = Integer.getInteger("auction.shards", Runtime.getRuntime().availableProcessors());
+    private static final int SHARD_CAPACITY = Integer.getInteger("auction.shardCapacity", 4096);
+    private static final String JOURNAL_DIR = System.getProperty("auction.journal.dir", "data/journal");
+    private static final int JOURNAL_SEGMENT_BYTES = Integer.getInteger("auction.journal.segmentBytes", 64 * 1024 * 1024);
 
+    private final Queue<Item> itemQueue = new ArrayDeque<>();
+    private final Map<Long, LiveAuction> liveItems = new ConcurrentHashMap<>();
+    // Guards the queue and the admission of items into liveItems.
+    private final ReentrantLock lifecycle = new ReentrantLock();
+    // Items that left the queue and whose order book is still being loaded, they count as live.
+    private int opening;
+    // Deadlines of the live items, anti-sniping extensions are a single write on the timeout.
+    private final TimingWheel<LiveAuction> deadlines = new TimingWheel<>("auction-deadlines", 1, 4096, this::onExpired);
+    // Ending an auction touches the database, so it is kept off the wheel thread.
+    private final ExecutorService lifecycleExecutor = Executors.newSingleThreadExecutor();
+    @Getter
+    private final AuctionEngine engine = new AuctionEngine(SHARDS, SHARD_CAPACITY, this::onBidAccepted);
+    private final EventJournal journal = new EventJournal(Paths.get(JOURNAL_DIR), JOURNAL_SEGMENT_BYTES);
     @Getter
-    private static Item currentItem;
-    private static final Queue<Item> itemQueue = new ArrayDeque<>();
-    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final boolean engineNode = Boolean.parseBoolean(System.getProperty("auction.engine.enabled", "true"));
+    private BidManager bidManager;
+    private ItemManager itemManager;
+    private ItemReadModel readModel;
+    private MetricsManager metrics;
 
-    private static volatile ScheduledFuture<?> endTask;
-    private static final int AUCTION_DURATION = 25;
-    private static BidManager bidManager;
+    @Override
+    public void enable() {
+        this.bidManager = find(BidManager.class);
+        this.itemManager = find(ItemManager.class);
+        this.readModel = find(ItemReadModel.class);
+        this.metrics = find(MetricsManager.class);
+        if (!engineNode) {
+            log.info("Not running auctions on this node, bids and new items go to the engine node.");
+            return;
+        }
+        try {
+            restore(journal.open());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open the auction journal", e);
+        }
+        log.info("Running up to {} live items on {} shards.", MAX_LIVE_ITEMS, engine.getShardCount());
+        fillSlots();
+        // Nodes that connected while we were restoring got the items from before.
+        readModel.publishSync();
+    }
 
-    public static void start(BidManager bidManager) {
-        AuctionManager.bidManager = bidManager;
-        nextItem();
+    @Override
+    public void disable() {
+        deadlines.stop();
+        lifecycleExecutor.shutdownNow();
+        engine.shutdown();
+        // Closing writes a snapshot, which would be an empty one here.
+        if (engineNode) journal.close();
     }
 
-    public static void addItem(Item item) {
-        itemQueue.add(item);
-        if (currentItem == null) {
-            nextItem();
+    /**
+     * Journals a new item as queued. Called before its insert commits, so every item in the database is in the
+     * journal too and restore never has to look for the ones it missed. An insert that failed after this is taken
+     * back with {@link #discardItem}, a crash in between leaves an id restore doesn't find and drops.
+     */
+    public void journalItem(long itemId) {
+        journal.append(JournalEvent.itemQueued(itemId));
+    }
+
+    public void discardItem(long itemId) {
+        journal.append(JournalEvent.auctionEnded(itemId));
+    }
+
+    // Queues an item journalItem was called for, once its insert committed.
+    public void addItem(Item item) {
+        lifecycle.lock();
+        try {
+            itemQueue.add(item);
+        } finally {
+            lifecycle.unlock();
         }
+        fillSlots();
+    }
+
+    public LiveAuction getLiveItem(long itemId) {
+        return liveItems.get(itemId);
+    }
+
+    public Collection<LiveAuction> getLiveItems() {
+        return liveItems.values();
     }
 
-    private static void nextItem() {
-        currentItem = itemQueue.poll();
-        if (currentItem != null) {
-            currentItem.setEndAt(LocalDateTime.now().plusSeconds(AUCTION_DURATION));
-            bidManager.broadcastNewAuction();
+    // The live item that has been running the longest, for clients that don't say which item they mean.
+    public LiveAuction getDefaultItem() {
+        return liveItems.values().stream().min(Comparator.comparingLong(LiveAuction::getItemId)).orElse(null);
+    }
+
+    private void fillSlots() {
+        while (true) {
+            Item item;
+            lifecycle.lock();
+            try {
+                if (liveItems.size() + opening >= MAX_LIVE_ITEMS || (item = itemQueue.poll()) == null) {
+                    return;
+                }
+                // Holds the slot while the book is loaded, without holding the lock.
+                opening++;
+            } finally {
+                lifecycle.unlock();
+            }
+
+            LiveAuction auction = new LiveAuction(item);
+            OrderBook book;
+            try {
+                book = itemManager.openOrderBook(item);
+                engine.open(book).join();
+            } catch (RuntimeException e) {
+                releaseSlot();
+                throw e;
+            }
+            lifecycle.lock();
+            try {
+                opening--;
+                long endAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(AUCTION_DURATION);
+                item.setEndAt(toDateTime(endAt));
+                readModel.itemLive(item, book);
+                liveItems.put(item.getId(), auction);
+                auction.setDeadline(deadlines.schedule(auction, AUCTION_DURATION, TimeUnit.SECONDS));
+                journal.append(JournalEvent.itemLive(item.getId(), endAt));
+            } finally {
+                lifecycle.unlock();
+            }
+            bidManager.updateItem(item);
+            bidManager.broadcastNewAuction(auction);
         }
-        resetTimer();
     }
 
-    public static void resetTimer() {
-        if (endTask != null) endTask.cancel(false);
-        if (currentItem != null) {
-            currentItem.setEndAt(LocalDateTime.now().plusSeconds(AUCTION_DURATION));
-            bidManager.updateItem(currentItem);
+    private void releaseSlot() {
+        lifecycle.lock();
+        try {
+            opening--;
+        } finally {
+            lifecycle.unlock();
         }
-        endTask = scheduler.schedule(AuctionManager::auctionEnd, AUCTION_DURATION, TimeUnit.SECONDS);
     }
 
-    private static void auctionEnd() {
-        if (currentItem != null) {
-            currentItem.setActive(false);
-            currentItem.setWinner(bidManager.getHighestBidder(currentItem));
-            bidManager.broadcastAuctionEnd(currentItem);
+    /**
+     * Pushes the end of the auction back. Only the in-memory endAt changes, the database gets the final one
+     * when the auction ends.
+     */
+    public void resetTimer(LiveAuction auction) {
+        if (auction.isEnded() || !auction.getDeadline().extend(AUCTION_DURATION, TimeUnit.SECONDS)) return;
+        long endAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(AUCTION_DURATION);
+        auction.getItem().setEndAt(toDateTime(endAt));
+        journal.append(JournalEvent.timerExtended(auction.getItemId(), endAt));
+        readModel.timerExtended(auction.getItemId(), auction.getItem().getEndAt());
+    }
+
+    private void onExpired(List<LiveAuction> expired) {
+        lifecycleExecutor.execute(() -> expired.forEach(this::auctionEnd));
+    }
+
+    // Runs on the item's shard, so bids are persisted and broadcast in the exact order they were accepted.
+    private void onBidAccepted(BidResult result) {
+        LiveAuction auction = liveItems.get(result.getItemId());
+        if (auction == null) return;
+        if (result.isPriceChanged()) {
+            journal.append(JournalEvent.bidAccepted(result.getItemId(), result.getBidder().getId(), result.getPrice()));
+        }
+        if (result.getMaxPrice() != null) {
+            journal.append(JournalEvent.maxRaised(result.getItemId(), result.getBidder().getId(), result.getMaxPrice()));
+        }
+        // Proxies that played out count as one bid, a leader only raising their maximum as none.
+        if (!result.isPriceChanged()) return;
+        readModel.bidAccepted(result);
+        itemManager.persistBid(result);
+        resetTimer(auction);
+        bidManager.broadcastTimerReset(auction);
+        bidManager.broadcastPriceUpdate(result.getItemId(), result.getPrice(), result.getBidder());
+        metrics.recordBidBroadcast(System.nanoTime() - result.getAcceptedAt());
+    }
+
+    private void auctionEnd(LiveAuction auction) {
+        if (!auction.markEnded()) return;
+        try {
+            // Drain the bids that are still in flight, the book then holds the final leader.
+            OrderBook book = engine.close(auction.getItemId()).join();
+            Item item = auction.getItem();
+            item.setActive(false);
+            item.setWinner(book != null ? book.getLeader() : null);
+            bidManager.updateItem(item);
+            journal.append(JournalEvent.auctionEnded(auction.getItemId()));
+            readModel.auctionEnded(item);
+            bidManager.broadcastAuctionEnd(auction);
+        } catch (Exception e) {
+            log.error("Failed to end auction of item {}", auction.getItemId(), e);
+        } finally {
+            liveItems.remove(auction.getItemId());
+            bidManager.forgetItem(auction.getItemId());
+        }
+        fillSlots();
+    }
+
+    /**
+     * Puts the queue and the live items back the way the journal left them. Items and leaders are loaded with one
+     * query each, items that are gone from the database or already ended are dropped from the journal.
+     * Auctions whose deadline passed while we were down end on the first tick of the wheel.
+     * <p>
+     * New items are journaled before they commit, see {@link #journalItem}. Only active items past the highest id
+     * in the journal, from before the journal existed, can be missing from it. They are queued behind the rest.
+     */
+    private void restore(JournalState state) {
+        Set<Long> itemIds = new HashSet<>(state.getQueued());
+        itemIds.addAll(state.getLive().keySet());
+        Set<Long> leaderIds = state.getLive().values().stream()
+                .filter(live -> live.getPrice() != null)
+                .map(JournalState.LiveState::getLeaderId)
+                .collect(Collectors.toSet());
+
+        List<Long> unjournaled;
+        Map<Long, Item> items = Map.of();
+        Map<Long, User> leaders = Map.of();
+        try (Session session = find(DatabaseManager.class).getSessionFactory().openSession()) {
+            unjournaled = session.createQuery(
+                            "SELECT i.id FROM Item i WHERE i.isActive = true AND i.id > :after ORDER BY i.id", Long.class)
+                    .setParameter("after", itemIds.stream().mapToLong(Long::longValue).max().orElse(0))
+                    .getResultList();
+            Set<Long> toLoad = new HashSet<>(itemIds);
+            toLoad.addAll(unjournaled);
+            if (!toLoad.isEmpty()) {
+                items = session.createQuery("FROM Item i WHERE i.id IN :ids AND i.isActive = true", Item.class)
+                        .setParameterList("ids", toLoad)
+                        .stream()
+                        .collect(Collectors.toMap(Item::getId, Function.identity()));
+            }
+            if (!leaderIds.isEmpty()) {
+                leaders = session.createQuery("FROM User u WHERE u.id IN :ids", User.class)
+                        .setParameterList("ids", leaderIds)
+                        .stream()
+                        .collect(Collectors.toMap(User::getId, Function.identity()));
+            }
         }
-        nextItem();
+
+        // Every book is opened on its shard before anything goes live, the shards load them in parallel.
+        List<LiveAuction> restored = new ArrayList<>();
+        List<CompletableFuture<Void>> opened = new ArrayList<>();
+        for (Map.Entry<Long, JournalState.LiveState> entry : state.getLive().entrySet()) {
+            Item item = items.get(entry.getKey());
+            if (item == null) {
+                journal.append(JournalEvent.auctionEnded(entry.getKey()));
+                continue;
+            }
+            JournalState.LiveState live = entry.getValue();
+            // Items only take bids while they are live, so without a bid in the journal the book starts fresh.
+            OrderBook book = live.getPrice() == null
+                    ? new OrderBook(item.getId(), item.getItemPrice(), item.getBidIncrement(), null, 0)
+                    : new OrderBook(item.getId(), live.getPrice(), item.getBidIncrement(),
+                            leaders.get(live.getLeaderId()), live.getLeaderMax(), live.getBidCount());
+            item.setEndAt(toDateTime(live.getEndAt()));
+            opened.add(engine.open(book));
+            readModel.itemLive(item, book);
+            restored.add(new LiveAuction(item));
+        }
+        CompletableFuture.allOf(opened.toArray(new CompletableFuture<?>[0])).join();
+
+        lifecycle.lock();
+        try {
+            for (LiveAuction auction : restored) {
+                liveItems.put(auction.getItemId(), auction);
+                long remaining = Math.max(0, state.getLive().get(auction.getItemId()).getEndAt() - System.currentTimeMillis());
+                auction.setDeadline(deadlines.schedule(auction, remaining, TimeUnit.MILLISECONDS));
+            }
+            for (Long itemId : state.getQueued()) {
+                Item item = items.get(itemId);
+                if (item == null) {
+                    journal.append(JournalEvent.auctionEnded(itemId));
+                } else {
+                    itemQueue.add(item);
+                }
+            }
+            for (Long itemId : unjournaled) {
+                Item item = items.get(itemId);
+                if (item != null) {
+                    itemQueue.add(item);
+                    journal.append(JournalEvent.itemQueued(itemId));
+                }
+            }
+        } finally {
+            lifecycle.unlock();
+        }
+        log.info("Restored {} live and {} queued items from the journal.", liveItems.size(),
+                itemQueue.size() - unjournaled.size());
+        if (!unjournaled.isEmpty()) {
+            log.warn("Queued {} active items that were missing from the journal.", unjournaled.size());
+        }
+    }
+
+    private static LocalDateTime toDateTime(long epochMillis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault());
     }
 }
@@ -6,18 +6,22 @@ import io.javalin.http.Context;
 import lombok.extern.slf4j.Slf4j;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
-import org.mindrot.jbcrypt.BCrypt;
 
 import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
 
 @Slf4j
 public class AuthManager extends AuctionBase {
 
     private SessionFactory sessionFactory;
+    private TokenCache tokenCache;
+    private PasswordHasher passwordHasher;
 
     @Override
     public void enable() {
         this.sessionFactory = find(DatabaseManager.class).getSessionFactory();
+        this.tokenCache = find(TokenCache.class);
+        this.passwordHasher = find(PasswordHasher.class);
     }
 
     // TODO: Ensure password is strong enough.
@@ -31,8 +35,6 @@ public class AuthManager extends AuctionBase {
         }
 
         try (Session session = sessionFactory.openSession()) {
-            session.beginTransaction();
-
             User existingUser = session.createQuery("FROM User WHERE username = :username", User.class)
                     .setParameter("username", username)
                     .uniqueResult();
@@ -41,20 +43,30 @@ public class AuthManager extends AuctionBase {
                 ctx.status(409).result("User already exists.");
                 return;
             }
+        }
 
-            String passwordHash = BCrypt.hashpw(password, BCrypt.gensalt());
-            String authToken = UUID.randomUUID().toString();
+        // Hashed between the sessions, so we don't hold a connection while waiting for bcrypt.
+        String passwordHash;
+        try {
+            passwordHash = passwordHasher.hash(password);
+        } catch (RejectedExecutionException e) {
+            busy(ctx);
+            return;
+        }
+        String authToken = UUID.randomUUID().toString();
 
-            User newUser = new User();
-            newUser.setUsername(username);
-            newUser.setPasswordHash(passwordHash);
-            newUser.setAuthToken(authToken);
+        User newUser = new User();
+        newUser.setUsername(username);
+        newUser.setPasswordHash(passwordHash);
+        newUser.setAuthToken(authToken);
 
+        try (Session session = sessionFactory.openSession()) {
+            session.beginTransaction();
             session.save(newUser);
             session.getTransaction().commit();
-
-            ctx.json(authToken);
         }
+
+        ctx.json(authToken);
     }
 
     public void login(Context ctx) {
@@ -66,17 +78,23 @@ public class AuthManager extends AuctionBase {
             return;
         }
 
+        User user;
         try (Session session = sessionFactory.openSession()) {
-            User user = session.createQuery("FROM User WHERE username = :username", User.class)
+            user = session.createQuery("FROM User WHERE username = :username", User.class)
                     .setParameter("username", username)
                     .uniqueResult();
+        }
 
-            if (user == null || !BCrypt.checkpw(password, user.getPasswordHash())) {
+        try {
+            if (user == null || !passwordHasher.check(password, user.getPasswordHash())) {
                 ctx.status(401).result("Invalid credentials.");
                 return;
             }
-            ctx.json(user.getAuthToken());
+        } catch (RejectedExecutionException e) {
+            busy(ctx);
+            return;
         }
+        ctx.json(user.getAuthToken());
     }
 
     public void validate(Context ctx) {
@@ -87,16 +105,17 @@ public class AuthManager extends AuctionBase {
             return;
         }
 
-        try (Session session = sessionFactory.openSession()) {
-            User user = session.createQuery("FROM User WHERE authToken = :token", User.class)
-                    .setParameter("token", token)
-                    .uniqueResult();
-
-            if (user == null) {
-                ctx.status(401).result("Invalid token.");
-                return;
-            }
-            ctx.json(user);
+        User user = tokenCache.lookup(token);
+        if (user == null) {
+            ctx.status(401).result("Invalid token.");
+            return;
         }
+        ctx.json(user);
+    }
+
+    // The bcrypt pool is full, the client should come back in a moment instead of queueing up here.
+    private static void busy(Context ctx) {
+        ctx.header("Retry-After", "1");
+        ctx.status(503).result("Too many logins right now, try again shortly.");
     }
 }
@@ -3,34 +3,61 @@ package club.nullbyte3.auction.impl;
 import club.nullbyte3.auction.AuctionBase;
 import club.nullbyte3.auction.db.Item;
 import club.nullbyte3.auction.db.User;
+import club.nullbyte3.auction.engine.BidResult;
+import club.nullbyte3.auction.engine.LiveAuction;
+import club.nullbyte3.auction.model.ItemStatus;
+import club.nullbyte3.auction.model.ItemSummary;
 import club.nullbyte3.auction.websocket.BidRequest;
+import club.nullbyte3.auction.websocket.BinaryCodec;
 import club.nullbyte3.auction.websocket.BidResponse;
 import club.nullbyte3.auction.websocket.BidsResponse;
+import club.nullbyte3.auction.websocket.EncodedFrame;
+import club.nullbyte3.auction.websocket.ItemRequest;
+import club.nullbyte3.auction.websocket.ReplayWindow;
+import club.nullbyte3.auction.websocket.Subscriber;
+import club.nullbyte3.auction.websocket.SubscriberRegistry;
+import club.nullbyte3.auction.websocket.TimerUpdate;
 import club.nullbyte3.auction.websocket.WsMessage;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import io.javalin.websocket.WsConfig;
 import io.javalin.websocket.WsContext;
 import io.javalin.websocket.WsMessageContext;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 
 import java.math.BigDecimal;
-import java.util.HashSet;
+import java.time.LocalDateTime;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
 @Slf4j
 public class BidManager extends AuctionBase implements Consumer<WsConfig> {
-    private final Set<WsContext> subscribers = new HashSet<>();
+    private static final String BID_REQUEST = "bid_request";
+    @Getter
+    private final SubscriberRegistry subscribers = new SubscriberRegistry();
+    @Getter
+    private final ReplayWindow replay = new ReplayWindow(subscribers);
     private SessionFactory sessionFactory;
     private ItemManager itemManager;
+    private AuctionManager auctionManager;
+    private TokenCache tokenCache;
+    private ItemReadModel readModel;
+    private MetricsManager metrics;
+    private BidThrottle throttle;
+    private BusManager busManager;
     private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Map<Long, EncodedItem> encodedItems = new ConcurrentHashMap<>();
+    private final Map<Long, EncodedBids> encodedBids = new ConcurrentHashMap<>();
 
     @Override
     public void enable() {
@@ -38,6 +65,25 @@ public class BidManager extends AuctionBase implements Consumer<WsConfig> {
         objectMapper.registerModule(new JavaTimeModule());
         this.sessionFactory = find(DatabaseManager.class).getSessionFactory();
         this.itemManager = find(ItemManager.class);
+        this.auctionManager = find(AuctionManager.class);
+        this.tokenCache = find(TokenCache.class);
+        this.readModel = find(ItemReadModel.class);
+        this.metrics = find(MetricsManager.class);
+        this.throttle = find(BidThrottle.class);
+        this.busManager = find(BusManager.class);
+        busManager.onEngineRequest(BID_REQUEST, BidRequest.class, request -> {
+            User user = tokenCache.lookup(request.getAuthtoken());
+            return user == null ? "Invalid auth token." : placeBid(user, request);
+        });
+        // Broadcasts go through the bus, so sockets on the other nodes get them as well.
+        busManager.onBroadcast(frame -> {
+            if (!auctionManager.isEngineNode()) {
+                readModel.follow(frame);
+            }
+            long start = System.nanoTime();
+            replay.broadcast(frame);
+            metrics.recordFanOut(System.nanoTime() - start);
+        });
     }
 
     @Override
@@ -45,172 +91,274 @@ public class BidManager extends AuctionBase implements Consumer<WsConfig> {
         wsConfig.onConnect(ctx -> {
             ctx.enableAutomaticPings(3, TimeUnit.SECONDS);
             log.info("WS: {} connected!", ctx.sessionId());
-            Item item = AuctionManager.getCurrentItem();
-            if (item != null) {
-                WsMessage<Item> msg = new WsMessage<>("current_item", item);
-                ctx.send(objectMapper.writeValueAsString(msg));
-                WsMessage<BidsResponse> priceMsg = new WsMessage<>("current_bids",
-                        new BidsResponse(getTotalBids(item)));
-                ctx.send(objectMapper.writeValueAsString(priceMsg));
-            }
-            subscribers.add(ctx);
+            // ?encoding=binary asks for the BinaryCodec form, clients that don't ask, or talk to an older
+            // server, just get JSON. Frames without a binary form are JSON either way, so check the frame type.
+            boolean binary = "binary".equals(ctx.queryParam("encoding"));
+            Subscriber subscriber = subscribers.create(ctx, binary);
+            subscriber.setBidBucket(throttle.newSessionBucket());
+            // A client that kept its last "stream:seq" from before a drop only gets the frames it missed.
+            // Taken from the read model, which edges keep current as well.
+            replay.attach(subscriber, ctx.queryParam("resume"), () -> {
+                for (ItemSummary summary : readModel.getLiveItems()) {
+                    subscriber.offer(encodeItem(summary).currentItem);
+                    subscriber.offer(encodeBids(summary));
+                }
+            });
         });
         wsConfig.onClose(ctx -> {
             log.info("WS: {} disconnected!", ctx.sessionId());
-            subscribers.remove(ctx);
+            subscribers.remove(ctx.sessionId());
         });
         wsConfig.onMessage(this::onMessage);
     }
 
     private void onMessage(WsMessageContext ctx) {
+        long start = System.nanoTime();
+        // Only known subjects become a metrics label, anything a client makes up is counted together.
+        String label = "invalid";
         try {
             WsMessage wsMessage = ctx.messageAsClass(WsMessage.class);
+            label = "bid".equals(wsMessage.getSubject()) || "current_item".equals(wsMessage.getSubject())
+                    ? wsMessage.getSubject() : "unknown";
             switch (wsMessage.getSubject()) {
                 case "bid":
                     handleBidRequest(ctx, wsMessage);
                     break;
                 case "current_item":
-                    handleCurrentItemRequest(ctx);
+                    handleCurrentItemRequest(ctx, wsMessage);
                     break;
                 default:
-                    ctx.send("Unknown message type");
+                    reply(ctx, "Unknown message type");
             }
         } catch (Exception e) {
             log.error("Error processing WebSocket message", e);
-            ctx.send("Error: " + e.getMessage());
+            reply(ctx, "Error: " + e.getMessage());
+        } finally {
+            metrics.recordWsMessage(label, System.nanoTime() - start);
         }
     }
 
     private void handleBidRequest(WsMessageContext ctx, WsMessage<BidRequest> wsMessage) {
+        Subscriber subscriber = subscribers.get(ctx.sessionId());
+        long wait = subscriber != null ? throttle.trySession(subscriber.getBidBucket()) : 0;
+        if (wait > 0) {
+            replyThrottled(ctx, "session", wait);
+            return;
+        }
         BidRequest bidRequest = objectMapper.convertValue(wsMessage.getPayload(), BidRequest.class);
         String authToken = bidRequest.getAuthtoken();
 
         if (authToken == null) {
-            ctx.send("Auth token is  required.");
+            reply(ctx, "Auth token is  required.");
             return;
         }
 
-        try (Session session = sessionFactory.openSession()) {
-            User user = session.createQuery("FROM User WHERE authToken = :authToken", User.class)
-                    .setParameter("authToken", authToken)
-                    .uniqueResult();
+        User user = tokenCache.lookup(authToken);
+        if (user == null) {
+            reply(ctx, "Invalid auth token.");
+            return;
+        }
+        wait = throttle.tryUser(user.getId());
+        if (wait > 0) {
+            replyThrottled(ctx, "user", wait);
+            return;
+        }
 
-            if (user == null) {
-                ctx.send("Invalid auth token.");
-                return;
+        String answer;
+        if (auctionManager.isEngineNode()) {
+            answer = placeBid(user, bidRequest);
+        } else {
+            // Only the engine node runs auctions, the bid is placed there and its answer relayed.
+            try {
+                JsonNode reply = busManager.requestEngine(BID_REQUEST, bidRequest).join();
+                answer = reply.isNull() ? null : reply.asText();
+            } catch (Exception e) {
+                log.warn("Failed to forward a bid on item {}: {}", bidRequest.getItemId(), e.getMessage());
+                answer = "Failed to place bid.";
             }
+        }
+        if (answer != null) {
+            reply(ctx, answer);
+        }
+    }
 
-            Item item = AuctionManager.getCurrentItem();
-            if (item == null || !item.isActive()) {
-                ctx.send("Item not found or is not active.");
-                return;
-            }
-            if (bidRequest.getPrice() != null) { // bid-request.
-                BigDecimal newPrice = itemManager.placeBid(user, item);
-                AuctionManager.resetTimer();
-                broadcastTimerReset();
-                broadcastPriceUpdate(item.getId(), newPrice, user);
-            }
+    // What to tell the bidder, null when the bid went through and they lead.
+    private String placeBid(User user, BidRequest bidRequest) {
+        LiveAuction auction = findLiveItem(bidRequest.getItemId());
+        if (auction == null || !auction.getItem().isActive()) {
+            return "Item not found or is not active.";
+        }
+        if (bidRequest.getPrice() == null && bidRequest.getMaxPrice() == null) {
+            return null;
         }
+        // The timer reset and the broadcasts happen on the item's shard, in acceptance order.
+        BidResult result = itemManager.placeBid(user, auction.getItemId(), bidRequest.getMaxPrice());
+        if (!result.isAccepted()) {
+            return result.getError();
+        } else if (!result.getBidder().getId().equals(user.getId())) {
+            return "Outbid by another maximum, the price is now " + result.getPrice().toPlainString() + ".";
+        }
+        return null;
     }
 
-    @SneakyThrows
-    private void handleCurrentItemRequest(WsMessageContext ctx) {
-        Item item = AuctionManager.getCurrentItem();
-        if (item != null) {
-            ctx.send(objectMapper.writeValueAsString(item));
+    private void handleCurrentItemRequest(WsMessageContext ctx, WsMessage<?> wsMessage) {
+        Long itemId = null;
+        if (wsMessage.getPayload() != null) {
+            itemId = objectMapper.convertValue(wsMessage.getPayload(), ItemRequest.class).getItemId();
+        }
+        ItemSummary summary = itemId != null ? readModel.get(itemId) : readModel.getDefaultLiveItem();
+        if (summary != null && summary.getStatus() == ItemStatus.LIVE) {
+            reply(ctx, encodeItem(summary).raw);
         } else {
-            ctx.send("null");
+            reply(ctx, EncodedFrame.of("null"));
         }
     }
 
+    private LiveAuction findLiveItem(Long itemId) {
+        return itemId != null ? auctionManager.getLiveItem(itemId) : auctionManager.getDefaultItem();
+    }
+
     public void broadcastPriceUpdate(Long itemId, BigDecimal newPrice, User bidder) {
-        log.info("Broadcasting price update for item {} to {} subscribers", itemId, subscribers.size());
-        BidResponse response = new BidResponse(newPrice, bidder.getUsername(), bidder.getId());
-        subscribers.forEach(subscriber -> {
-            try {
-                WsMessage<BidResponse> msg = new WsMessage<>("price_update", response);
-                subscriber.send(objectMapper.writeValueAsString(msg));
-            } catch (Exception e) {
-                log.error("Failed to send price update to {}", subscriber.sessionId(), e);
-            }
-        });
+        log.debug("Broadcasting price update for item {} to {} subscribers", itemId, subscribers.size());
+        BidResponse response = new BidResponse(newPrice, bidder.getUsername(), bidder.getId(), itemId);
+        broadcast(encode(new WsMessage<>("price_update", response), itemId, BinaryCodec.priceUpdate(response)));
     }
 
-    public void broadcastNewAuction() {
-        Item item = AuctionManager.getCurrentItem();
-        log.info("Broadcasting new auction for item: {}", item);
-        if (item != null) {
-            log.info("Broadcasting new auction for item {} to {} subscribers", item.getId(), subscribers.size());
-            subscribers.forEach(subscriber -> {
-                try {
-                    WsMessage<Item> msg = new WsMessage<>("new_auction", item);
-                    subscriber.send(objectMapper.writeValueAsString(msg));
-                } catch (Exception e) {
-                    log.error("Failed to send new auction to {}", subscriber.sessionId(), e);
-                }
-            });
-        }
+    // Sent once per item, so only the JSON of the summary is shared with current_item. Both forms are built from
+    // the same summary.
+    public void broadcastNewAuction(LiveAuction auction) {
+        log.debug("Broadcasting new auction for item {} to {} subscribers", auction.getItemId(), subscribers.size());
+        EncodedItem encoded = encodeItem(readModel.get(auction.getItemId()));
+        broadcast(EncodedFrame.wrap("new_auction", auction.getItemId(), encoded.json, BinaryCodec.newAuction(encoded.summary)));
     }
 
-    public void broadcastAuctionEnd(Item item) {
-        if (item != null) {
-            subscribers.forEach(subscriber -> {
-                try {
-                    WsMessage<Item> msg = new WsMessage<>("auction_end", item);
-                    subscriber.send(objectMapper.writeValueAsString(msg));
-                } catch (Exception e) {
-                    log.error("Failed to send end auction to {}", subscriber.sessionId(), e);
-                }
-            });
-        }
+    public void broadcastAuctionEnd(LiveAuction auction) {
+        EncodedItem encoded = encodeItem(readModel.get(auction.getItemId()));
+        broadcast(EncodedFrame.wrap("auction_end", auction.getItemId(), encoded.json, BinaryCodec.auctionEnd(encoded.summary)));
     }
 
-    public void broadcastTimerReset() {
-        Item item = AuctionManager.getCurrentItem();
-        if (item != null) {
-            subscribers.forEach(subscriber -> {
-                try {
-                    WsMessage<String> msg = new WsMessage<>("timer_update", item.getEndAt().toString());
-                    subscriber.send(objectMapper.writeValueAsString(msg));
-                } catch (Exception e) {
-                    log.error("Failed to send timer reset to {}", subscriber.sessionId(), e);
-                }
-            });
+    public void broadcastTimerReset(LiveAuction auction) {
+        LocalDateTime endAt = auction.getItem().getEndAt();
+        TimerUpdate update = new TimerUpdate(auction.getItemId(), endAt.toString());
+        broadcast(encode(new WsMessage<>("timer_update", update), auction.getItemId(),
+                BinaryCodec.timerUpdate(auction.getItemId(), endAt)));
+    }
+
+    // The current_bids frame a socket connecting now gets, null unless the item is live.
+    public EncodedFrame getCurrentBids(long itemId) {
+        ItemSummary summary = readModel.get(itemId);
+        return summary == null || summary.getStatus() != ItemStatus.LIVE ? null : encodeBids(summary);
+    }
+
+    // Drops the encoded copy of an item that is no longer live.
+    public void forgetItem(long itemId) {
+        encodedItems.remove(itemId);
+        encodedBids.remove(itemId);
+    }
+
+    // The frame is built once and the same bytes are queued for every subscriber, and sent once to every other node.
+    private void broadcast(EncodedFrame frame) {
+        if (frame == null) return;
+        busManager.publish(frame);
+    }
+
+    // Replies go through the subscriber's queue as well, so they can't overtake or interleave with broadcasts.
+    private void reply(WsContext ctx, String text) {
+        reply(ctx, EncodedFrame.of(text));
+    }
+
+    // Scope is which limit was hit, session or user, the client can bid again after retryAfterMs.
+    private void replyThrottled(WsContext ctx, String scope, long waitNanos) {
+        long retryAfterMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+        reply(ctx, EncodedFrame.of("throttled", "{\"subject\":\"throttled\",\"payload\":{\"scope\":\"" + scope
+                + "\",\"retryAfterMs\":" + retryAfterMs + "}}"));
+    }
+
+    private void reply(WsContext ctx, EncodedFrame frame) {
+        Subscriber subscriber = subscribers.get(ctx.sessionId());
+        if (subscriber != null) {
+            subscriber.offer(frame);
+        } else {
+            ctx.send(frame.getText());
         }
     }
 
-    public User getHighestBidder(Item item) {
-        try (Session session = sessionFactory.openSession()) {
-            session.beginTransaction();
-            // refresh item to get the latest from db.
-            session.refresh(item);
-            User topBidder = session.createQuery(
-                            "SELECT b.user FROM Bid b WHERE b.item = :item ORDER BY b.price DESC", User.class)
-                    .setParameter("item", item)
-                    .setMaxResults(1)
-                    .getSingleResult();
-            session.getTransaction().commit();
-            return topBidder;
+    private EncodedFrame encode(WsMessage<?> msg, Long itemId) {
+        try {
+            return EncodedFrame.of(msg.getSubject(), itemId, objectMapper.writeValueAsString(msg), null);
         } catch (Exception e) {
+            log.error("Failed to encode {} message", msg.getSubject(), e);
             return null;
         }
     }
 
-    public BidResponse[] getTotalBids(Item item) {
-        try (Session session = sessionFactory.openSession()) {
-            session.beginTransaction();
-            session.refresh(item);
-            List<Object[]> items = session.createQuery(
-                            "SELECT b.price, b.user FROM Bid b WHERE b.item = :item", Object[].class)
-                    .setParameter("item", item)
-                    .setMaxResults(20)
-                    .getResultList();
-            return items.stream()
-                    .map(row -> new BidResponse((BigDecimal) row[0], ((User) row[1]).getUsername(), ((User) row[1]).getId()))
-                    .toArray(BidResponse[]::new);
-        } catch (Exception e) {
-            return new BidResponse[0];
+    // Only the binary form is built here, Jackson runs when the first JSON socket or the bus needs the text.
+    private EncodedFrame encode(WsMessage<?> msg, Long itemId, byte[] binary) {
+        if (binary == null) {
+            return encode(msg, itemId);
+        }
+        return EncodedFrame.deferred(msg.getSubject(), itemId, () -> toJson(msg), binary);
+    }
+
+    @SneakyThrows
+    private String toJson(Object value) {
+        return objectMapper.writeValueAsString(value);
+    }
+
+    /**
+     * The item is only serialized again once the read model has a new summary of it, summaries are replaced on
+     * every change, so connects and current_item requests in between cost nothing.
+     * <p>
+     * What goes out is the read model's summary, not the entity, so the seller's password hash and token never end
+     * up in a frame.
+     */
+    private EncodedItem encodeItem(ItemSummary summary) {
+        EncodedItem cached = encodedItems.get(summary.getId());
+        if (cached != null && cached.summary == summary) {
+            return cached;
+        }
+        cached = new EncodedItem(summary, toJson(summary));
+        if (summary.getStatus() == ItemStatus.LIVE) {
+            encodedItems.put(summary.getId(), cached);
+        }
+        return cached;
+    }
+
+    // Like the item, current_bids is only built again once another bid came in, newest bid first.
+    private EncodedFrame encodeBids(ItemSummary summary) {
+        long itemId = summary.getId();
+        ItemReadModel.RecentBids recent = readModel.getRecentBids(itemId);
+        long version = recent == null ? 0 : recent.getVersion();
+        EncodedBids cached = encodedBids.get(itemId);
+        if (cached != null && cached.version == version) {
+            return cached.frame;
+        }
+        BidsResponse bids = new BidsResponse(itemId, recent == null ? new BidResponse[0] : recent.toArray());
+        // A bid may have come in while copying, this is still a consistent list and the next connect rebuilds it.
+        cached = new EncodedBids(version, encode(new WsMessage<>("current_bids", bids), itemId, BinaryCodec.currentBids(bids)));
+        if (summary.getStatus() == ItemStatus.LIVE) {
+            encodedBids.put(itemId, cached);
+        }
+        return cached.frame;
+    }
+
+    @AllArgsConstructor
+    private static class EncodedBids {
+        private final long version;
+        private final EncodedFrame frame;
+    }
+
+    private static class EncodedItem {
+        private final ItemSummary summary;
+        private final String json;
+        private final EncodedFrame raw;
+        private final EncodedFrame currentItem;
+
+        private EncodedItem(ItemSummary summary, String json) {
+            this.summary = summary;
+            this.json = json;
+            this.raw = EncodedFrame.of(json);
+            this.currentItem = EncodedFrame.wrap("current_item", summary.getId(), json, null);
         }
     }
 
@@ -0,0 +1,100 @@
+package club.nullbyte3.auction.impl;
+
+import club.nullbyte3.auction.AuctionBase;
+import club.nullbyte3.auction.websocket.TokenBucket;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How fast bid frames are taken, per socket and per user. The socket is checked as soon as the frame is parsed,
+ * before the auth token is even looked at, and the user right after, before the bid goes anywhere near its shard.
+ * <p>
+ * Socket buckets live on the subscriber and go away with it. User buckets are swept once full again, a full
+ * bucket is no different from a new one, so the map only holds users that bid in the last few seconds.
+ */
+@Slf4j
+public class BidThrottle extends AuctionBase {
+
+    private static final double SESSION_RATE = Double.parseDouble(System.getProperty("auction.throttle.sessionRate", "10"));
+    private static final int SESSION_BURST = Integer.getInteger("auction.throttle.sessionBurst", 20);
+    private static final double USER_RATE = Double.parseDouble(System.getProperty("auction.throttle.userRate", "10"));
+    private static final int USER_BURST = Integer.getInteger("auction.throttle.userBurst", 20);
+    private static final int MAX_USERS = Integer.getInteger("auction.throttle.maxUsers", 100_000);
+    private static final long SWEEP_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Map<Long, TokenBucket> users = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+    private final LongAdder sessionThrottled = new LongAdder();
+    private final LongAdder userThrottled = new LongAdder();
+
+    @Override
+    public void enable() {
+        log.info("Throttling bids to {}/s (burst {}) per socket and {}/s (burst {}) per user.",
+                SESSION_RATE, SESSION_BURST, USER_RATE, USER_BURST);
+    }
+
+    @Override
+    public void disable() {
+        users.clear();
+    }
+
+    public TokenBucket newSessionBucket() {
+        return new TokenBucket(SESSION_RATE, SESSION_BURST, System.nanoTime());
+    }
+
+    /**
+     * @return 0 when the socket may bid, otherwise how many nanos until it may again.
+     */
+    public long trySession(TokenBucket bucket) {
+        long wait = bucket.tryTake(System.nanoTime());
+        if (wait > 0) sessionThrottled.increment();
+        return wait;
+    }
+
+    /**
+     * @return 0 when the user may bid, otherwise how many nanos until they may again.
+     */
+    public long tryUser(long userId) {
+        long now = System.nanoTime();
+        TokenBucket bucket = users.get(userId);
+        if (bucket == null) {
+            sweep(now);
+            bucket = users.computeIfAbsent(userId, id -> new TokenBucket(USER_RATE, USER_BURST, now));
+        }
+        long wait = bucket.tryTake(now);
+        if (wait > 0) userThrottled.increment();
+        return wait;
+    }
+
+    public long getSessionThrottled() {
+        return sessionThrottled.sum();
+    }
+
+    public long getUserThrottled() {
+        return userThrottled.sum();
+    }
+
+    public int getTrackedUsers() {
+        return users.size();
+    }
+
+    // At most once a second, and only when a new user shows up, by whichever thread gets there first.
+    private void sweep(long now) {
+        long last = lastSweep.get();
+        if (now - last < SWEEP_NANOS && users.size() < MAX_USERS) return;
+        if (!lastSweep.compareAndSet(last, now)) return;
+        users.values().removeIf(bucket -> bucket.isFull(now));
+        // Everybody is bidding right now, the ones dropped just get a fresh burst.
+        Iterator<TokenBucket> it = users.values().iterator();
+        while (users.size() >= MAX_USERS && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+}
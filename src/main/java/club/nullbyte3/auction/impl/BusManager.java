@@ -0,0 +1,139 @@
+package club.nullbyte3.auction.impl;
+
+import club.nullbyte3.auction.AuctionBase;
+import club.nullbyte3.auction.bus.EventBus;
+import club.nullbyte3.auction.websocket.EncodedFrame;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Owns the {@link EventBus} between the nodes. Frames with a subject some module listens to go to that module,
+ * everything else is a broadcast for the sockets of every node, see {@link #onBroadcast}.
+ * <p>
+ * On top of it the other nodes can ask the engine node to do things that only it can, like placing a bid, and wait
+ * for the answer, see {@link #requestEngine}.
+ */
+@Slf4j
+public class BusManager extends AuctionBase {
+    private static final long REQUEST_TIMEOUT_MS = Long.getLong("auction.bus.requestTimeoutMs", 5000);
+    private static final String ENGINE_REPLY = "engine_reply";
+
+    private final EventBus bus = EventBus.fromConfig();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    // Frames meant for the modules of every node, by subject, these never go out to a socket.
+    private final Map<String, Consumer<EncodedFrame>> listeners = new ConcurrentHashMap<>();
+    private final List<Runnable> peerListeners = new CopyOnWriteArrayList<>();
+    private volatile Consumer<EncodedFrame> broadcasts = frame -> { };
+    // Requests this node sent to the engine node, by request id, until the reply is in.
+    private final Map<String, CompletableFuture<JsonNode>> pendingRequests = new ConcurrentHashMap<>();
+    private final String nodeId = UUID.randomUUID().toString();
+    private final AtomicLong requestIds = new AtomicLong();
+    private AuctionManager auctionManager;
+
+    /**
+     * Registered after the modules that listen on it, so nothing arrives before they are ready.
+     */
+    @Override
+    public void enable() {
+        objectMapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        objectMapper.registerModule(new JavaTimeModule());
+        this.auctionManager = find(AuctionManager.class);
+        onEvent(ENGINE_REPLY, frame -> {
+            JsonNode reply = readTree(frame.getText());
+            CompletableFuture<JsonNode> pending = pendingRequests.remove(reply.get("requestId").asText());
+            // Replies go to every node, the others don't know the id.
+            if (pending != null) pending.complete(reply.get("body"));
+        });
+        bus.start(frame -> {
+            Consumer<EncodedFrame> listener = frame.getSubject() != null ? listeners.get(frame.getSubject()) : null;
+            try {
+                (listener != null ? listener : broadcasts).accept(frame);
+            } catch (Exception e) {
+                log.error("Failed to handle {} from the event bus", frame.getSubject(), e);
+            }
+        }, () -> peerListeners.forEach(Runnable::run));
+    }
+
+    @Override
+    public void disable() {
+        bus.stop();
+    }
+
+    /**
+     * Hands every frame with this subject to the listener, on this node and all the others, instead of sending it
+     * to the sockets. Frames published on this node are handled before {@link #publish} returns.
+     */
+    public void onEvent(String subject, Consumer<EncodedFrame> listener) {
+        listeners.put(subject, listener);
+    }
+
+    // Gets every frame no listener took, those are the broadcasts for the sockets.
+    public void onBroadcast(Consumer<EncodedFrame> listener) {
+        this.broadcasts = listener;
+    }
+
+    /**
+     * Runs when another node starts receiving what this one publishes, on the bus thread of that peer. Whatever it
+     * missed while it was down or unreachable has to be published again from here.
+     */
+    public void onPeerConnected(Runnable listener) {
+        peerListeners.add(listener);
+    }
+
+    public void publish(EncodedFrame frame) {
+        bus.publish(frame);
+    }
+
+    /**
+     * Sends the body to the engine node, whose handler for the subject answers it, see {@link #onEngineRequest}.
+     * The future fails after auction.bus.requestTimeoutMs, which is what happens while the engine is unreachable.
+     */
+    public CompletableFuture<JsonNode> requestEngine(String subject, Object body) {
+        String requestId = nodeId + ":" + requestIds.incrementAndGet();
+        CompletableFuture<JsonNode> reply = new CompletableFuture<>();
+        pendingRequests.put(requestId, reply);
+        reply.orTimeout(REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS).whenComplete((result, e) -> pendingRequests.remove(requestId));
+        ObjectNode request = objectMapper.createObjectNode();
+        request.put("requestId", requestId);
+        request.set("body", objectMapper.valueToTree(body));
+        bus.publish(EncodedFrame.of(subject, request.toString()));
+        return reply;
+    }
+
+    /**
+     * Answers requests of other nodes on the engine node, other nodes ignore them. The handler runs on the bus
+     * thread, so the requests of one node are handled in the order it sent them.
+     */
+    public <T> void onEngineRequest(String subject, Class<T> type, Function<T, Object> handler) {
+        onEvent(subject, frame -> {
+            if (!auctionManager.isEngineNode()) return;
+            JsonNode request = readTree(frame.getText());
+            Object body = handler.apply(objectMapper.convertValue(request.get("body"), type));
+            ObjectNode reply = objectMapper.createObjectNode();
+            reply.put("requestId", request.get("requestId").asText());
+            reply.set("body", objectMapper.valueToTree(body));
+            bus.publish(EncodedFrame.of(ENGINE_REPLY, reply.toString()));
+        });
+    }
+
+    @SneakyThrows
+    private JsonNode readTree(String json) {
+        return objectMapper.readTree(json);
+    }
+}
@@ -1,36 +1,108 @@
 package club.nullbyte3.auction.impl;
 
 import club.nullbyte3.auction.AuctionBase;
+import club.nullbyte3.auction.telemetry.PoolTelemetry;
+import club.nullbyte3.auction.telemetry.QueryTiming;
+import club.nullbyte3.auction.telemetry.TimedDataSource;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
 import lombok.Getter;
 import org.hibernate.SessionFactory;
+import org.hibernate.cfg.AvailableSettings;
 import org.hibernate.cfg.Configuration;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Comparator;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
 public class DatabaseManager extends AuctionBase {
 
+    private static final int POOL_SIZE = Integer.getInteger("auction.db.poolSize", 32);
+    private static final int MIN_IDLE = Integer.getInteger("auction.db.minIdle", 8);
+    // How long a caller may wait for a free connection before it fails.
+    private static final long CONNECTION_TIMEOUT_MS = Long.getLong("auction.db.connectionTimeoutMs", 5000);
+    // Logs a warning with the borrower's stack trace when a connection is held longer than this, 0 turns it off.
+    private static final long LEAK_DETECTION_MS = Long.getLong("auction.db.leakDetectionMs", 30000);
+    // Executions after which the driver switches a statement to a named server-side prepared statement.
+    private static final int PREPARE_THRESHOLD = Integer.getInteger("auction.db.prepareThreshold", 3);
+    private static final int STATEMENT_CACHE_SIZE = Integer.getInteger("auction.db.statementCacheSize", 512);
+    // Logs the pool and the slowest statements every so often, 0 turns it off.
+    private static final long STATS_LOG_INTERVAL_SEC = Long.getLong("auction.db.statsLogIntervalSec", 60);
+
     @Getter
     private SessionFactory sessionFactory;
+    @Getter
+    private final PoolTelemetry telemetry = new PoolTelemetry();
+    private HikariDataSource dataSource;
+    private ScheduledExecutorService statsLogger;
 
     @Override
     public void enable() {
         try {
             Configuration configuration = new Configuration().configure();
+            // hibernate.* system properties win over hibernate.cfg.xml, so benchmarks can point at their own database.
+            System.getProperties().stringPropertyNames().stream()
+                    .filter(name -> name.startsWith("hibernate."))
+                    .forEach(name -> configuration.setProperty(name, System.getProperty(name)));
             ensureDatabaseExists(configuration);
+            dataSource = createDataSource(configuration.getProperties());
+            configuration.getProperties().put(AvailableSettings.DATASOURCE, new TimedDataSource(dataSource, telemetry));
             sessionFactory = configuration.buildSessionFactory();
+            if (STATS_LOG_INTERVAL_SEC > 0) {
+                statsLogger = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "db-stats");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                statsLogger.scheduleAtFixedRate(this::logStats, STATS_LOG_INTERVAL_SEC, STATS_LOG_INTERVAL_SEC, TimeUnit.SECONDS);
+            }
         } catch (Exception ex) {
             log.error("Failed to create sessionFactory object.", ex);
             throw new ExceptionInInitializerError(ex);
         }
     }
 
+    private HikariDataSource createDataSource(Properties props) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("auction-db");
+        config.setJdbcUrl(props.getProperty("hibernate.connection.url"));
+        config.setUsername(props.getProperty("hibernate.connection.username"));
+        config.setPassword(props.getProperty("hibernate.connection.password"));
+        config.setMaximumPoolSize(POOL_SIZE);
+        config.setMinimumIdle(Math.min(MIN_IDLE, POOL_SIZE));
+        config.setConnectionTimeout(CONNECTION_TIMEOUT_MS);
+        config.setLeakDetectionThreshold(LEAK_DETECTION_MS);
+        config.setMetricsTrackerFactory(telemetry);
+        config.addDataSourceProperty("reWriteBatchedInserts", props.getProperty("hibernate.connection.reWriteBatchedInserts", "false"));
+        config.addDataSourceProperty("prepareThreshold", PREPARE_THRESHOLD);
+        config.addDataSourceProperty("preparedStatementCacheQueries", STATEMENT_CACHE_SIZE);
+        log.info("Connection pool of up to {} connections, {} ms acquisition timeout.", POOL_SIZE, CONNECTION_TIMEOUT_MS);
+        return new HikariDataSource(config);
+    }
+
+    private void logStats() {
+        long acquisitions = telemetry.getAcquisitions();
+        log.info("DB pool: {} active, {} idle, {} waiting, {}/{} connections. Acquire avg {} us, max {} us, {} timeouts.",
+                telemetry.getActiveConnections(), telemetry.getIdleConnections(), telemetry.getPendingThreads(),
+                telemetry.getTotalConnections(), telemetry.getMaxConnections(),
+                acquisitions == 0 ? 0 : telemetry.getAcquireNanos() / acquisitions / 1000,
+                telemetry.getMaxAcquireNanos() / 1000, telemetry.getTimeouts());
+        telemetry.getQueries().stream()
+                .sorted(Comparator.comparingLong(QueryTiming::getTotalNanos).reversed())
+                .limit(5)
+                .forEach(query -> log.info("  {} calls, avg {} us, max {} us: {}", query.getCount(),
+                        query.getTotalNanos() / Math.max(1, query.getCount()) / 1000, query.getMaxNanos() / 1000, query.getSql()));
+    }
+
     private void ensureDatabaseExists(Configuration configuration) {
         Properties props = configuration.getProperties();
         String url = props.getProperty("hibernate.connection.url");
@@ -61,8 +133,15 @@ public class DatabaseManager extends AuctionBase {
 
     @Override
     public void disable() {
+        if (statsLogger != null) {
+            statsLogger.shutdownNow();
+        }
         if (sessionFactory != null) {
             sessionFactory.close();
         }
+        // Hibernate doesn't own the pool, so it doesn't close it either.
+        if (dataSource != null) {
+            dataSource.close();
+        }
     }
 }
@@ -3,111 +3,274 @@ package club.nullbyte3.auction.impl;
 import club.nullbyte3.auction.AuctionBase;
 import club.nullbyte3.auction.db.Item;
 import club.nullbyte3.auction.db.User;
-import club.nullbyte3.auction.db.Bid;
+import club.nullbyte3.auction.engine.BidResult;
+import club.nullbyte3.auction.engine.OrderBook;
+import club.nullbyte3.auction.model.ItemStatus;
+import club.nullbyte3.auction.model.ItemSummary;
+import club.nullbyte3.auction.search.ItemSearchIndex;
+import club.nullbyte3.auction.search.SearchQuery;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.javalin.http.Context;
+import io.javalin.validation.ValidationException;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 
 import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
-// TODO: Hide the seller auth token and password hash when returning item data.
 @Slf4j
 public class ItemManager extends AuctionBase {
 
+    private static final int BID_TIMEOUT = 5;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int DEFAULT_SEARCH_RESULTS = 20;
+    private static final int MAX_SEARCH_RESULTS = 100;
+    private static final String ITEM_CREATE = "item_create";
+
     private SessionFactory sessionFactory;
+    private PersistenceManager persistenceManager;
+    private TokenCache tokenCache;
+    private AuctionManager auctionManager;
+    private ItemReadModel readModel;
+    private BusManager busManager;
+    private final ObjectMapper objectMapper = new ObjectMapper();
 
     @Override
+    @SuppressWarnings("unchecked")
     public void enable() {
         this.sessionFactory = find(DatabaseManager.class).getSessionFactory();
+        this.persistenceManager = find(PersistenceManager.class);
+        this.tokenCache = find(TokenCache.class);
+        this.auctionManager = find(AuctionManager.class);
+        this.readModel = find(ItemReadModel.class);
+        this.busManager = find(BusManager.class);
+        busManager.onEngineRequest(ITEM_CREATE, Map.class, form -> createItem((Map<String, String>) form));
     }
 
+    /**
+     * Lists the active items by id. Without a limit every active item is returned, with one the response is a page
+     * and the X-Next-Cursor header holds the after value for the next page, it is left out on the last page.
+     * Served from the {@link ItemReadModel}, the JSON is written out while the summaries are walked.
+     */
     public void getAllItems(Context ctx) {
-        try (Session session = sessionFactory.openSession()) {
-            List<Item> items = session.createQuery("FROM Item WHERE isActive = true", Item.class).list();
-            ctx.json(items);
+        long after;
+        Integer limit;
+        try {
+            after = ctx.queryParamAsClass("after", Long.class).getOrDefault(0L);
+            limit = ctx.queryParamAsClass("limit", Integer.class)
+                    .check(value -> value > 0 && value <= MAX_PAGE_SIZE, "limit must be between 1 and " + MAX_PAGE_SIZE)
+                    .getOrDefault(null);
+        } catch (ValidationException e) {
+            ctx.status(400).result("Invalid paging parameters.");
+            return;
+        }
+
+        Collection<ItemSummary> items = readModel.getActiveItems(after);
+        if (limit == null) {
+            ctx.writeJsonStream(items.stream());
+            return;
         }
+        // One extra item tells us whether there is a next page.
+        List<ItemSummary> page = items.stream().limit(limit + 1).collect(Collectors.toList());
+        if (page.size() > limit) {
+            page = page.subList(0, limit);
+            ctx.header("X-Next-Cursor", String.valueOf(page.get(limit - 1).getId()));
+        }
+        ctx.json(page);
+    }
+
+    /**
+     * Full text search over the names and descriptions, see {@link ItemSearchIndex}. Takes q, and optionally status,
+     * min_price and max_price (on the current price) and limit. The best matches come first, X-Total-Count holds
+     * how many there are in all.
+     */
+    public void searchItems(Context ctx) {
+        String query = ctx.queryParam("q");
+        ItemStatus status;
+        BigDecimal minPrice;
+        BigDecimal maxPrice;
+        int limit;
+        try {
+            String statusName = ctx.queryParam("status");
+            status = statusName == null ? null : ItemStatus.valueOf(statusName.toUpperCase(Locale.ROOT));
+            // Javalin has no converter for BigDecimal, a bad number is a NumberFormatException.
+            minPrice = ctx.queryParam("min_price") == null ? null : new BigDecimal(ctx.queryParam("min_price"));
+            maxPrice = ctx.queryParam("max_price") == null ? null : new BigDecimal(ctx.queryParam("max_price"));
+            limit = ctx.queryParamAsClass("limit", Integer.class)
+                    .check(value -> value > 0 && value <= MAX_SEARCH_RESULTS, "limit must be between 1 and " + MAX_SEARCH_RESULTS)
+                    .getOrDefault(DEFAULT_SEARCH_RESULTS);
+        } catch (ValidationException | IllegalArgumentException e) {
+            ctx.status(400).result("Invalid search parameters.");
+            return;
+        }
+        if (query == null || query.isBlank()) {
+            ctx.status(400).result("Search text is required.");
+            return;
+        }
+
+        ItemSearchIndex.Result result = readModel.getSearchIndex().search(SearchQuery.builder()
+                .text(query)
+                .status(status)
+                .minPrice(minPrice)
+                .maxPrice(maxPrice)
+                .limit(limit)
+                .build());
+        ctx.header("X-Total-Count", String.valueOf(result.getTotal()));
+        ctx.json(result.getItems());
     }
 
     public void getItemById(Context ctx) {
         Long id = Long.parseLong(ctx.pathParam("id"));
-        try (Session session = sessionFactory.openSession()) {
-            Item item = session.get(Item.class, id);
-            if (item != null) {
-                ctx.json(item);
-            } else {
-                ctx.status(404).result("Item not found");
-            }
+        ItemSummary item = readModel.get(id);
+        if (item != null) {
+            ctx.json(item);
+        } else {
+            ctx.status(404).result("Item not found");
         }
     }
 
     public void createItem(Context ctx) {
-        String authToken = ctx.formParam("auth_token");
+        Map<String, String> form = new HashMap<>();
+        ctx.formParamMap().forEach((key, values) -> form.put(key, values.isEmpty() ? null : values.get(0)));
+        Created created;
+        if (auctionManager.isEngineNode()) {
+            created = createItem(form);
+        } else {
+            // Only the engine node runs auctions, the item is created there and its answer relayed.
+            try {
+                created = objectMapper.treeToValue(busManager.requestEngine(ITEM_CREATE, form).join(), Created.class);
+            } catch (Exception e) {
+                log.warn("Failed to forward an item to the engine node: {}", e.getMessage());
+                ctx.status(503).result("The engine node is unreachable, try again later.");
+                return;
+            }
+        }
+        if (created.getItemId() != null) {
+            ctx.status(201).json(created.getItemId());
+        } else {
+            ctx.status(created.getStatus()).result(created.getError());
+        }
+    }
+
+    private Created createItem(Map<String, String> form) {
+        String authToken = form.get("auth_token");
         if (authToken == null) {
-            ctx.status(401).result("Auth token is required.");
-            return;
+            return new Created(401, null, "Auth token is required.");
+        }
+
+        User seller = tokenCache.lookup(authToken);
+        if (seller == null) {
+            return new Created(401, null, "Invalid auth token.");
         }
 
         try (Session session = sessionFactory.openSession()) {
             session.beginTransaction();
 
-            User seller = session.createQuery("FROM User WHERE authToken = :authToken", User.class)
-                    .setParameter("authToken", authToken)
-                    .uniqueResult();
-
-            if (seller == null) {
-                ctx.status(401).result("Invalid auth token.");
-                return;
-            }
-
             Item item = new Item();
-            item.setItemName(ctx.formParam("item_name"));
-            item.setItemImage(ctx.formParam("item_image"));
-            BigDecimal price = new BigDecimal(Objects.requireNonNull(ctx.formParam("item_price")));
+            item.setItemName(form.get("item_name"));
+            item.setItemImage(form.get("item_image"));
+            BigDecimal price = new BigDecimal(Objects.requireNonNull(form.get("item_price")));
             item.setItemPrice(price);
-            item.setItemDescription(ctx.formParam("item_description"));
-            item.setBidIncrement(new BigDecimal(Objects.requireNonNull(ctx.formParam("bid_increment"))));
+            item.setItemDescription(form.get("item_description"));
+            item.setBidIncrement(new BigDecimal(Objects.requireNonNull(form.get("bid_increment"))));
             item.setSeller(seller);
+            item.setCreatedAt(LocalDateTime.now());
 
+            // The insert runs here, the id is known before the commit.
             session.save(item);
-            session.getTransaction().commit();
+            auctionManager.journalItem(item.getId());
+            try {
+                session.getTransaction().commit();
+            } catch (RuntimeException e) {
+                auctionManager.discardItem(item.getId());
+                throw e;
+            }
 
-            AuctionManager.addItem(item);
-            ctx.status(201).json(item.getId());
+            readModel.itemCreated(item);
+            auctionManager.addItem(item);
+            return new Created(201, item.getId(), null);
         } catch (Exception e) {
             log.error("Failed to create item", e);
-            ctx.status(400).result("Invalid item data: " + e.getMessage());
+            return new Created(400, null, "Invalid item data: " + e.getMessage());
         }
     }
 
-    public BigDecimal placeBid(User user, Item item) {
+    // The outcome of createItem, it goes over the bus when the item came in on another node.
+    @Data
+    @AllArgsConstructor
+    @NoArgsConstructor
+    static class Created {
+        private int status;
+        private Long itemId;
+        private String error;
+    }
+
+    /**
+     * Builds the in-memory order book for an item that is about to go live.
+     * This is the only time we read the bid history of an item, every bid after this is resolved in memory.
+     */
+    public OrderBook openOrderBook(Item item) {
         try (Session session = sessionFactory.openSession()) {
-            session.beginTransaction();
-            // refresh item to get the latest from db.
-            session.refresh(item);
-            BigDecimal currentBid = session.createQuery(
-                            "SELECT MAX(b.price) FROM Bid b WHERE b.item = :item", BigDecimal.class)
-                    .setParameter("item", item)
-                    .uniqueResultOptional()
-                    .orElse(item.getItemPrice());
-
-            BigDecimal minimumBid = currentBid.add(item.getBidIncrement());
-            BigDecimal newPrice = minimumBid; // Currently we only accept bidding the next increment
-            if (newPrice.compareTo(minimumBid) < 0) {
-                throw new IllegalArgumentException("Bid must be at least " + minimumBid);
+            Object[] top = session.createQuery(
+                            "SELECT b.price, b.user FROM Bid b WHERE b.item.id = :itemId ORDER BY b.price DESC", Object[].class)
+                    .setParameter("itemId", item.getId())
+                    .setMaxResults(1)
+                    .uniqueResult();
+            long bidCount = session.createQuery("SELECT count(b) FROM Bid b WHERE b.item.id = :itemId", Long.class)
+                    .setParameter("itemId", item.getId())
+                    .getSingleResult();
+            if (top == null) {
+                return new OrderBook(item.getId(), item.getItemPrice(), item.getBidIncrement(), null, bidCount);
             }
-            Bid bid = new Bid();
-            bid.setItem(item);
-            bid.setUser(user);
-            bid.setPrice(newPrice);
-            session.save(bid);
-            session.getTransaction().commit();
-            return newPrice;
-        } catch (Exception e) {
+            return new OrderBook(item.getId(), (BigDecimal) top[0], item.getBidIncrement(), (User) top[1], bidCount);
+        }
+    }
+
+    public BidResult placeBid(User user, long itemId) {
+        return placeBid(user, itemId, null);
+    }
+
+    /**
+     * @param maxPrice The most the user would go to, their proxy keeps outbidding others up to it. Null to just
+     *                 bid the next increment.
+     */
+    public BidResult placeBid(User user, long itemId, BigDecimal maxPrice) {
+        // Once the shard took the bid it has to be written, so this is the last point where it can be turned away.
+        if (!persistenceManager.hasRoom()) {
+            return BidResult.rejected("Too many bids right now, try again.");
+        }
+        try {
+            return auctionManager.getEngine().bid(itemId, user, maxPrice).get(BID_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return BidResult.rejected("Bid was interrupted.");
+        } catch (ExecutionException | TimeoutException e) {
             log.error("Failed to place bid", e);
-            throw e;
+            return BidResult.rejected("Failed to place bid.");
         }
     }
+
+    // Accepted bids are written behind, neither the bidder nor the shard wait for the database.
+    // A bid that didn't fit in the queue or whose batch failed goes back for a retry.
+    public void persistBid(BidResult result) {
+        persistenceManager.enqueue(result).whenComplete((written, error) -> {
+            if (error != null) {
+                persistenceManager.retry(result);
+            }
+        });
+    }
 }
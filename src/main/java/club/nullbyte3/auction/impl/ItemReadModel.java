@@ -0,0 +1,473 @@
+package club.nullbyte3.auction.impl;
+
+import club.nullbyte3.auction.AuctionBase;
+import club.nullbyte3.auction.db.Item;
+import club.nullbyte3.auction.db.User;
+import club.nullbyte3.auction.engine.BidResult;
+import club.nullbyte3.auction.engine.OrderBook;
+import club.nullbyte3.auction.model.ItemStatus;
+import club.nullbyte3.auction.model.ItemSummary;
+import club.nullbyte3.auction.model.UserRef;
+import club.nullbyte3.auction.search.ItemSearchIndex;
+import club.nullbyte3.auction.websocket.BidResponse;
+import club.nullbyte3.auction.websocket.BidsResponse;
+import club.nullbyte3.auction.websocket.EncodedFrame;
+import club.nullbyte3.auction.websocket.TimerUpdate;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.Session;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Summaries of every item, kept in memory so the read endpoints never query. It is built from the database once
+ * on start up and then kept current by the lifecycle and bid events of {@link AuctionManager}.
+ * <p>
+ * Events of an item come in the order they happened (created, live, bids and extensions from its shard, end after
+ * the shard is drained), so every update simply replaces the item's summary with a new one.
+ * <p>
+ * Nodes that don't run auctions follow the engine node instead, see {@link #follow}. It publishes every item that is
+ * created, and all active items again whenever a node (re)connects to it, the rest they take from its broadcasts.
+ */
+@Slf4j
+public class ItemReadModel extends AuctionBase {
+
+    private static final int RECENT_BIDS = 20;
+    private static final int FETCH_SIZE = 1000;
+    private static final int SYNC_CHUNK = 500;
+    private static final String ITEM_CREATED = "item_created";
+    private static final String ITEM_SYNC = "item_sync";
+
+    private final ConcurrentSkipListMap<Long, ItemSummary> items = new ConcurrentSkipListMap<>();
+    // The same summaries, for the active items only, so listing them doesn't skip over every ended item.
+    private final ConcurrentSkipListMap<Long, ItemSummary> activeItems = new ConcurrentSkipListMap<>();
+    // And the ones of those that are being auctioned, what a socket gets when it connects.
+    private final ConcurrentSkipListMap<Long, ItemSummary> liveItems = new ConcurrentSkipListMap<>();
+    // Latest bids of the active items.
+    private final Map<Long, RecentBids> recentBids = new ConcurrentHashMap<>();
+    // Built once everything is loaded, then kept current by put.
+    @Getter
+    private volatile ItemSearchIndex searchIndex;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private BusManager busManager;
+    private boolean engineNode;
+
+    @Override
+    public void enable() {
+        objectMapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        objectMapper.registerModule(new JavaTimeModule());
+        this.busManager = find(BusManager.class);
+        this.engineNode = find(AuctionManager.class).isEngineNode();
+        if (engineNode) {
+            busManager.onPeerConnected(this::publishSync);
+        } else {
+            busManager.onEvent(ITEM_CREATED, frame -> put(parse(frame.getText(), ItemSummary.class)));
+            busManager.onEvent(ITEM_SYNC, frame -> applySync(parse(frame.getText(), ItemSync.class)));
+        }
+        long start = System.nanoTime();
+        try (Session session = find(DatabaseManager.class).getSessionFactory().openSession()) {
+            // Postgres only fetches in chunks inside a transaction, otherwise it sends the whole result at once.
+            session.beginTransaction();
+            session.doWork(connection -> {
+                loadSummaries(connection, 0, this::put);
+                try (PreparedStatement stmt = connection.prepareStatement(
+                        "SELECT b.item_id, b.price, u.username, u.id FROM (SELECT item_id, price, user_id, id, "
+                                + "row_number() OVER (PARTITION BY item_id ORDER BY id DESC) AS n FROM bids "
+                                + "WHERE item_id IN (SELECT id FROM items WHERE is_active = true)) b "
+                                + "JOIN users u ON u.id = b.user_id WHERE b.n <= ? ORDER BY b.item_id, b.id")) {
+                    stmt.setInt(1, RECENT_BIDS);
+                    stmt.setFetchSize(FETCH_SIZE);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            recentBidsOf(rs.getLong(1)).add(rs.getBigDecimal(2), rs.getLong(4), rs.getString(3));
+                        }
+                    }
+                }
+            });
+            session.getTransaction().commit();
+        }
+        log.info("Loaded {} item summaries ({} active) in {} ms.", items.size(), activeItems.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        start = System.nanoTime();
+        searchIndex = ItemSearchIndex.build(new ArrayList<>(items.values()));
+        log.info("Built the search index in {} ms.", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    public ItemSummary get(long itemId) {
+        return items.get(itemId);
+    }
+
+    /**
+     * @return The active items with an id above after, in id order.
+     */
+    public Collection<ItemSummary> getActiveItems(long after) {
+        return activeItems.tailMap(after, false).values();
+    }
+
+    public Collection<ItemSummary> getLiveItems() {
+        return liveItems.values();
+    }
+
+    // The live item that has been running the longest, for clients that don't say which item they mean.
+    public ItemSummary getDefaultLiveItem() {
+        Map.Entry<Long, ItemSummary> first = liveItems.firstEntry();
+        return first == null ? null : first.getValue();
+    }
+
+    // Null until the item has its first bid.
+    public RecentBids getRecentBids(long itemId) {
+        return recentBids.get(itemId);
+    }
+
+    public void itemCreated(Item item) {
+        ItemSummary summary = ItemSummary.builder()
+                .id(item.getId())
+                .itemName(item.getItemName())
+                .itemImage(item.getItemImage())
+                .itemPrice(item.getItemPrice())
+                .itemDescription(item.getItemDescription())
+                .bidIncrement(item.getBidIncrement())
+                .seller(toRef(item.getSeller()))
+                .winner(toRef(item.getWinner()))
+                .createdAt(item.getCreatedAt())
+                .endAt(item.getEndAt())
+                .active(item.isActive())
+                .status(ItemStatus.QUEUED)
+                .currentPrice(item.getItemPrice())
+                .build();
+        put(summary);
+        busManager.publish(EncodedFrame.of(ITEM_CREATED, toJson(summary)));
+    }
+
+    public void itemLive(Item item, OrderBook book) {
+        update(item.getId(), summary -> summary.toBuilder()
+                .status(ItemStatus.LIVE)
+                .endAt(item.getEndAt())
+                .currentPrice(book.getCurrentPrice())
+                .leader(toRef(book.getLeader()))
+                .bidCount(book.getBidCount())
+                .build());
+    }
+
+    public void bidAccepted(BidResult result) {
+        User bidder = result.getBidder();
+        update(result.getItemId(), summary -> summary.toBuilder()
+                .currentPrice(result.getPrice())
+                .leader(toRef(bidder))
+                .bidCount(summary.getBidCount() + 1)
+                .build());
+        recentBidsOf(result.getItemId()).add(result.getPrice(), bidder.getId(), bidder.getUsername());
+    }
+
+    /**
+     * Applies a frame the engine node broadcast, on the nodes that don't run auctions. These come in the order the
+     * engine sent them, a sync it built while a bid came in may still carry the price before it, so only a higher
+     * price counts as a bid.
+     */
+    @SneakyThrows
+    public void follow(EncodedFrame frame) {
+        if (frame.getSubject() == null) return;
+        switch (frame.getSubject()) {
+            case "new_auction":
+            case "auction_end": {
+                ItemSummary summary = objectMapper.treeToValue(payload(frame), ItemSummary.class);
+                put(summary);
+                if (summary.getStatus() == ItemStatus.ENDED) {
+                    recentBids.remove(summary.getId());
+                }
+                break;
+            }
+            case "price_update": {
+                BidResponse bid = objectMapper.treeToValue(payload(frame), BidResponse.class);
+                ItemSummary summary = items.get(bid.getItemId());
+                if (summary == null || summary.getCurrentPrice().compareTo(bid.getPrice()) >= 0) return;
+                put(summary.toBuilder()
+                        .currentPrice(bid.getPrice())
+                        .leader(new UserRef(bid.getBidderId(), bid.getBidder()))
+                        .bidCount(summary.getBidCount() + 1)
+                        .build());
+                recentBidsOf(bid.getItemId()).add(bid.getPrice(), bid.getBidderId(), bid.getBidder());
+                break;
+            }
+            case "timer_update": {
+                TimerUpdate update = objectMapper.treeToValue(payload(frame), TimerUpdate.class);
+                timerExtended(update.getItemId(), LocalDateTime.parse(update.getEndAt()));
+                break;
+            }
+            default:
+        }
+    }
+
+    /**
+     * Publishes every active item with its latest bids, in chunks of SYNC_CHUNK. Nodes that follow this one replace
+     * what they have with it, a frame they missed while they were unreachable is lost, this is how they catch up.
+     */
+    public void publishSync() {
+        List<ItemSummary> chunk = new ArrayList<>();
+        long after = 0;
+        for (ItemSummary summary : activeItems.values()) {
+            chunk.add(summary);
+            if (chunk.size() == SYNC_CHUNK) {
+                publishSync(after, summary.getId(), chunk);
+                after = summary.getId();
+                chunk = new ArrayList<>();
+            }
+        }
+        publishSync(after, Long.MAX_VALUE, chunk);
+    }
+
+    private void publishSync(long after, long upTo, List<ItemSummary> chunk) {
+        List<BidsResponse> bids = new ArrayList<>();
+        for (ItemSummary summary : chunk) {
+            RecentBids recent = recentBids.get(summary.getId());
+            if (recent != null) {
+                bids.add(new BidsResponse(summary.getId(), recent.toArray()));
+            }
+        }
+        busManager.publish(EncodedFrame.of(ITEM_SYNC, toJson(new ItemSync(after, upTo, chunk, bids))));
+    }
+
+    // The active items with an id in (after, upTo], the ones that are missing ended while we weren't listening.
+    private void applySync(ItemSync sync) {
+        long known = items.isEmpty() ? 0 : items.lastKey();
+        Set<Long> synced = new HashSet<>();
+        for (ItemSummary summary : sync.getItems()) {
+            synced.add(summary.getId());
+            ItemSummary current = items.get(summary.getId());
+            // A sync that was built while a bid or the end came in is older than what we already took from the broadcast.
+            if (current != null && (current.getStatus() == ItemStatus.ENDED
+                    || current.getStatus() == summary.getStatus() && current.getBidCount() > summary.getBidCount())) {
+                continue;
+            }
+            put(summary);
+            recentBids.remove(summary.getId());
+        }
+        for (BidsResponse bids : sync.getBids()) {
+            if (recentBids.containsKey(bids.getItemId()) || !synced.contains(bids.getItemId())) continue;
+            RecentBids recent = recentBidsOf(bids.getItemId());
+            // Newest first, the ring takes them oldest first.
+            for (int i = bids.getBids().length - 1; i >= 0; i--) {
+                BidResponse bid = bids.getBids()[i];
+                recent.add(bid.getPrice(), bid.getBidderId(), bid.getBidder());
+            }
+        }
+        Set<Long> missing = new HashSet<>(activeItems.subMap(sync.getAfter(), false, sync.getUpTo(), true).keySet());
+        missing.removeAll(synced);
+        boolean last = sync.getUpTo() == Long.MAX_VALUE;
+        if (missing.isEmpty() && !last) return;
+        try (Session session = find(DatabaseManager.class).getSessionFactory().openSession()) {
+            if (!missing.isEmpty()) {
+                session.createQuery("FROM Item i WHERE i.id IN :ids AND i.isActive = false", Item.class)
+                        .setParameterList("ids", missing)
+                        .stream()
+                        .forEach(this::auctionEnded);
+            }
+            // Items that were created and already ended while we weren't listening aren't in any chunk.
+            if (last) {
+                session.doWork(connection -> loadSummaries(connection, known, summary -> {
+                    if (!items.containsKey(summary.getId())) put(summary);
+                }));
+            }
+        }
+    }
+
+    public void timerExtended(long itemId, LocalDateTime endAt) {
+        update(itemId, summary -> summary.toBuilder().endAt(endAt).build());
+    }
+
+    public void auctionEnded(Item item) {
+        update(item.getId(), summary -> summary.toBuilder()
+                .status(ItemStatus.ENDED)
+                .active(false)
+                .endAt(item.getEndAt())
+                .winner(toRef(item.getWinner()))
+                .build());
+        recentBids.remove(item.getId());
+    }
+
+    private RecentBids recentBidsOf(long itemId) {
+        RecentBids bids = recentBids.get(itemId);
+        return bids != null ? bids : recentBids.computeIfAbsent(itemId, RecentBids::new);
+    }
+
+    private void update(long itemId, UnaryOperator<ItemSummary> change) {
+        ItemSummary summary = items.get(itemId);
+        if (summary == null) {
+            log.warn("No summary of item {} to update", itemId);
+            return;
+        }
+        put(change.apply(summary));
+    }
+
+    /**
+     * Loads the summaries of the items with an id above after, straight from the tables.
+     */
+    private void loadSummaries(Connection connection, long after, Consumer<ItemSummary> sink) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "SELECT i.id, i.item_name, i.item_image, i.item_price, i.item_description, i.bid_increment, "
+                        + "s.id, s.username, w.id, w.username, i.created_at, i.end_at, i.is_active, "
+                        + "top.price, top.user_id, leader.username, coalesce(counts.bids, 0) "
+                        + "FROM items i "
+                        + "LEFT JOIN users s ON s.id = i.seller_id "
+                        + "LEFT JOIN users w ON w.id = i.winner_id "
+                        + "LEFT JOIN (SELECT DISTINCT ON (item_id) item_id, price, user_id FROM bids WHERE item_id > ? "
+                        + "ORDER BY item_id, price DESC, id DESC) top ON top.item_id = i.id "
+                        + "LEFT JOIN users leader ON leader.id = top.user_id "
+                        + "LEFT JOIN (SELECT item_id, count(*) AS bids FROM bids WHERE item_id > ? GROUP BY item_id) counts "
+                        + "ON counts.item_id = i.id WHERE i.id > ?")) {
+            stmt.setLong(1, after);
+            stmt.setLong(2, after);
+            stmt.setLong(3, after);
+            stmt.setFetchSize(FETCH_SIZE);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    boolean active = rs.getBoolean(13);
+                    sink.accept(ItemSummary.builder()
+                            .id(rs.getLong(1))
+                            .itemName(rs.getString(2))
+                            .itemImage(rs.getString(3))
+                            .itemPrice(rs.getBigDecimal(4))
+                            .itemDescription(rs.getString(5))
+                            .bidIncrement(rs.getBigDecimal(6))
+                            .seller(UserRef.of((Long) rs.getObject(7), rs.getString(8)))
+                            .winner(UserRef.of((Long) rs.getObject(9), rs.getString(10)))
+                            .createdAt(toDateTime(rs.getTimestamp(11)))
+                            .endAt(toDateTime(rs.getTimestamp(12)))
+                            .active(active)
+                            // The auction manager moves them to LIVE once they are back in a slot.
+                            .status(active ? ItemStatus.QUEUED : ItemStatus.ENDED)
+                            .currentPrice(rs.getBigDecimal(14) != null ? rs.getBigDecimal(14) : rs.getBigDecimal(4))
+                            .leader(UserRef.of((Long) rs.getObject(15), rs.getString(16)))
+                            .bidCount(rs.getLong(17))
+                            .build());
+                }
+            }
+        }
+    }
+
+    private JsonNode payload(EncodedFrame frame) throws Exception {
+        return objectMapper.readTree(frame.getText()).get("payload");
+    }
+
+    @SneakyThrows
+    private <T> T parse(String json, Class<T> type) {
+        return objectMapper.readValue(json, type);
+    }
+
+    @SneakyThrows
+    private String toJson(Object value) {
+        return objectMapper.writeValueAsString(value);
+    }
+
+    private void put(ItemSummary summary) {
+        items.put(summary.getId(), summary);
+        ItemSearchIndex index = searchIndex;
+        if (index != null) {
+            index.put(summary);
+        }
+        if (summary.isActive()) {
+            activeItems.put(summary.getId(), summary);
+        } else {
+            activeItems.remove(summary.getId());
+        }
+        if (summary.getStatus() == ItemStatus.LIVE) {
+            liveItems.put(summary.getId(), summary);
+        } else {
+            liveItems.remove(summary.getId());
+        }
+    }
+
+    private static UserRef toRef(User user) {
+        return user == null ? null : new UserRef(user.getId(), user.getUsername());
+    }
+
+    private static LocalDateTime toDateTime(Timestamp timestamp) {
+        return timestamp == null ? null : timestamp.toLocalDateTime();
+    }
+
+    @Data
+    @AllArgsConstructor
+    @NoArgsConstructor
+    static class ItemSync {
+        private long after;
+        private long upTo;
+        private List<ItemSummary> items;
+        private List<BidsResponse> bids;
+    }
+
+    /**
+     * The last RECENT_BIDS bids of one item, in a ring that is filled once and then overwritten, so taking a bid
+     * allocates nothing. The version counts every bid ever added, callers can cache what they build from it.
+     */
+    public static final class RecentBids {
+        private final long itemId;
+        private final BigDecimal[] prices = new BigDecimal[RECENT_BIDS];
+        private final long[] bidderIds = new long[RECENT_BIDS];
+        private final String[] bidders = new String[RECENT_BIDS];
+        private final ReentrantLock lock = new ReentrantLock();
+        // Only written with the lock held.
+        private volatile long version;
+
+        private RecentBids(long itemId) {
+            this.itemId = itemId;
+        }
+
+        private void add(BigDecimal price, long bidderId, String bidder) {
+            lock.lock();
+            try {
+                int slot = (int) (version % RECENT_BIDS);
+                prices[slot] = price;
+                bidderIds[slot] = bidderId;
+                bidders[slot] = bidder;
+                version++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        // Newest first.
+        public BidResponse[] toArray() {
+            lock.lock();
+            try {
+                BidResponse[] out = new BidResponse[(int) Math.min(version, RECENT_BIDS)];
+                for (int i = 0; i < out.length; i++) {
+                    int slot = (int) ((version - 1 - i) % RECENT_BIDS);
+                    out[i] = new BidResponse(prices[slot], bidders[slot], bidderIds[slot], itemId);
+                }
+                return out;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -3,85 +3,204 @@ package club.nullbyte3.auction.impl;
 import club.nullbyte3.auction.AuctionBase;
 import club.nullbyte3.auction.db.Message;
 import club.nullbyte3.auction.db.User;
+import club.nullbyte3.auction.websocket.EncodedFrame;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.javalin.http.Context;
 import lombok.extern.slf4j.Slf4j;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
-import org.hibernate.Transaction;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
+/**
+ * Serves the translation catalogs. Every language is rendered to JSON and gzip once and kept in memory,
+ * requests are answered from those bytes, or with a 304 when the client already has the current ETag.
+ * Only creating a message changes a catalog, so that is also the only time one is rendered again. The change is
+ * published on the event bus, so every node renders that language again, not just the one that took the request.
+ * A node that was unreachable misses those, so every node renders all of them again once a peer reconnects.
+ */
 @Slf4j
 public class MessageManager extends AuctionBase {
+    private static final Catalog EMPTY = Catalog.render(Map.of());
+    private static final String CATALOG_CHANGED = "catalog_changed";
+    private static final String CATALOGS_STALE = "catalogs_stale";
+    // Rows per insert when seeding, well below the 32767 bind parameters Postgres takes per statement.
+    private static final int SEED_CHUNK = 1000;
+
     private SessionFactory sessionFactory;
+    private TokenCache tokenCache;
+    private BusManager busManager;
+    private final Map<String, Catalog> catalogs = new ConcurrentHashMap<>();
 
     @Override
     public void enable() {
         this.sessionFactory = find(DatabaseManager.class).getSessionFactory();
-        loadDefaultMessages(); // Loads up default messages from messages.json in the resources folder.
+        this.tokenCache = find(TokenCache.class);
+        this.busManager = find(BusManager.class);
+        busManager.onEvent(CATALOG_CHANGED, frame -> rebuildCatalog(frame.getText()));
+        busManager.onEvent(CATALOGS_STALE, frame -> loadCatalogs());
+        // The peer may have missed changes published here while it was away, it can't tell which.
+        busManager.onPeerConnected(() -> busManager.publish(EncodedFrame.of(CATALOGS_STALE, "")));
+        seedDefaultMessages(); // Loads up default messages from messages.json in the resources folder.
+        loadCatalogs();
     }
 
-    private void loadDefaultMessages() {
+    /**
+     * Seeds the messages from messages.json that the database doesn't have yet. The existing keys are read in one
+     * query and the missing ones inserted with a few multi-row inserts, messages that were edited since are left alone.
+     * @return How many messages were inserted, rows another node inserted first don't count.
+     */
+    public int seedDefaultMessages() {
+        long start = System.nanoTime();
         ObjectMapper objectMapper = new ObjectMapper();
         TypeReference<Map<String, Map<String, String>>> typeRef = new TypeReference<>() {};
         try (InputStream in = Thread.currentThread().getContextClassLoader().getResourceAsStream("messages.json")) {
             if (in == null) {
                 log.warn("messages.json not found, skipping this task.");
-                return;
+                return 0;
             }
 
             Map<String, Map<String, String>> languages = objectMapper.readValue(in, typeRef);
             try (Session session = sessionFactory.openSession()) {
-                Transaction tx = session.beginTransaction();
+                Set<String> existing = new HashSet<>();
+                session.createQuery("SELECT language, messageKey FROM Message", Object[].class)
+                        .stream()
+                        .forEach(row -> existing.add(row[0] + "\u0000" + row[1]));
+
+                int total = 0;
+                List<String[]> missing = new ArrayList<>();
                 for (Map.Entry<String, Map<String, String>> langEntry : languages.entrySet()) {
-                    String language = langEntry.getKey();
                     for (Map.Entry<String, String> messageEntry : langEntry.getValue().entrySet()) {
-                        String key = messageEntry.getKey();
-                        String value = messageEntry.getValue();
-
-                        // if exists, skip.
-                        long count = session.createQuery("SELECT count(*) FROM Message WHERE language = :lang AND messageKey = :key", Long.class)
-                                .setParameter("lang", language)
-                                .setParameter("key", key)
-                                .getSingleResult();
-
-                        if (count == 0) {
-                            Message message = new Message();
-                            message.setLanguage(language);
-                            message.setMessageKey(key);
-                            message.setMessageValue(value);
-                            session.save(message);
-                            log.info("Loaded default message: lang={}, key={}", language, key);
+                        total++;
+                        if (!existing.contains(langEntry.getKey() + "\u0000" + messageEntry.getKey())) {
+                            missing.add(new String[]{langEntry.getKey(), messageEntry.getKey(), messageEntry.getValue()});
                         }
                     }
                 }
-                tx.commit();
+
+                int[] inserted = new int[1];
+                if (!missing.isEmpty()) {
+                    session.beginTransaction();
+                    session.doWork(connection -> {
+                        // Another node may be seeding at the same time, whoever comes second skips the row. Multi-row
+                        // inserts rather than a batch, a rewritten batch doesn't report how many rows were skipped.
+                        for (int from = 0; from < missing.size(); from += SEED_CHUNK) {
+                            List<String[]> chunk = missing.subList(from, Math.min(from + SEED_CHUNK, missing.size()));
+                            try (PreparedStatement stmt = connection.prepareStatement("INSERT INTO messages (language, message_key, message_value) "
+                                    + "VALUES " + String.join(", ", Collections.nCopies(chunk.size(), "(?, ?, ?)"))
+                                    + " ON CONFLICT (language, message_key) DO NOTHING")) {
+                                int parameter = 1;
+                                for (String[] message : chunk) {
+                                    stmt.setString(parameter++, message[0]);
+                                    stmt.setString(parameter++, message[1]);
+                                    stmt.setString(parameter++, message[2]);
+                                }
+                                inserted[0] += stmt.executeUpdate();
+                            }
+                        }
+                    });
+                    session.getTransaction().commit();
+                }
+                log.info("Seeded {} of {} default messages in {} ms.", inserted[0], total,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                return inserted[0];
             }
         } catch (Exception e) {
             log.error("Failed to load default messages from messages.json", e);
+            return 0;
         }
     }
 
-    public void getMessagesByLanguage(Context ctx) {
-        String lang = ctx.pathParam("lang");
+    // Renders every language in one go, the catalogs are complete after this so unknown languages never hit the database.
+    private void loadCatalogs() {
         try (Session session = sessionFactory.openSession()) {
-            List<Message> messages = session.createQuery("FROM Message WHERE language = :lang", Message.class)
-                    .setParameter("lang", lang)
-                    .list();
-            Map<String, String> messageMap = messages.stream()
-                    .collect(Collectors.toMap(Message::getMessageKey, Message::getMessageValue, (existing, replacement) -> replacement));
-            ctx.json(messageMap);
+            Map<String, Map<String, String>> languages = session.createQuery("FROM Message", Message.class)
+                    .stream()
+                    .collect(Collectors.groupingBy(Message::getLanguage,
+                            Collectors.toMap(Message::getMessageKey, Message::getMessageValue, (existing, replacement) -> replacement)));
+            languages.forEach((language, messages) -> catalogs.put(language, Catalog.render(messages)));
+            log.info("Rendered message catalogs for {} languages.", catalogs.size());
         } catch (Exception e) {
-            log.error("Error getting messages for language {}", lang, e);
-            ctx.status(500).result("Internal server error");
+            log.error("Failed to load message catalogs", e);
+        }
+    }
+
+    private void rebuildCatalog(String language) {
+        try (Session session = sessionFactory.openSession()) {
+            rebuildCatalog(session, language);
+        }
+    }
+
+    private void rebuildCatalog(Session session, String language) {
+        Map<String, String> messages = session.createQuery("FROM Message WHERE language = :lang", Message.class)
+                .setParameter("lang", language)
+                .stream()
+                .collect(Collectors.toMap(Message::getMessageKey, Message::getMessageValue, (existing, replacement) -> replacement));
+        catalogs.put(language, Catalog.render(messages));
+    }
+
+    public void getMessagesByLanguage(Context ctx) {
+        Catalog catalog = catalogs.getOrDefault(ctx.pathParam("lang"), EMPTY);
+        boolean gzip = accepts(ctx.header("Accept-Encoding"), "gzip");
+        String etag = gzip ? catalog.gzipEtag : catalog.etag;
+        ctx.header("ETag", etag);
+        ctx.header("Vary", "Accept-Encoding");
+        // Cached, but always revalidated, a new message shows up on the next page load.
+        ctx.header("Cache-Control", "no-cache");
+        if (matches(ctx.header("If-None-Match"), catalog)) {
+            ctx.status(304);
+            return;
+        }
+        ctx.contentType("application/json");
+        if (gzip) {
+            ctx.header("Content-Encoding", "gzip");
+            ctx.result(catalog.gzip);
+        } else {
+            ctx.result(catalog.json);
         }
     }
 
+    private static boolean accepts(String acceptEncoding, String encoding) {
+        if (acceptEncoding == null) return false;
+        for (String part : acceptEncoding.split(",")) {
+            String[] codingAndQ = part.trim().split(";");
+            if (codingAndQ[0].trim().equalsIgnoreCase(encoding)) {
+                return codingAndQ.length < 2 || !codingAndQ[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    // Both ETags of a catalog stand for the same messages, so either one revalidates it.
+    private static boolean matches(String ifNoneMatch, Catalog catalog) {
+        if (ifNoneMatch == null) return false;
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(catalog.etag) || tag.equals(catalog.gzipEtag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public void createMessage(Context ctx) {
         String authToken = ctx.formParam("auth_token");
         if (authToken == null) {
@@ -100,10 +219,7 @@ public class MessageManager extends AuctionBase {
 
         try (Session session = sessionFactory.openSession()) {
             // WARNING: no admin check, because we don't have roles yet.
-            User user = session.createQuery("FROM User WHERE authToken = :authToken", User.class)
-                    .setParameter("authToken", authToken)
-                    .uniqueResult();
-
+            User user = tokenCache.lookup(authToken);
             if (user == null) {
                 ctx.status(401).result("Invalid auth token.");
                 return;
@@ -114,9 +230,18 @@ public class MessageManager extends AuctionBase {
             message.setMessageKey(messageKey);
             message.setMessageValue(messageValue);
 
+            // Creating a key that already exists updates its value.
             session.beginTransaction();
-            session.save(message);
+            Number id = (Number) session.createNativeQuery("INSERT INTO messages (language, message_key, message_value) VALUES (:lang, :key, :value) "
+                            + "ON CONFLICT (language, message_key) DO UPDATE SET message_value = EXCLUDED.message_value RETURNING id")
+                    .setParameter("lang", language)
+                    .setParameter("key", messageKey)
+                    .setParameter("value", messageValue)
+                    .getSingleResult();
+            message.setId(id.longValue());
             session.getTransaction().commit();
+            // Renders it again on this node before returning, and on the others once the frame gets there.
+            busManager.publish(EncodedFrame.of(CATALOG_CHANGED, language));
 
             ctx.status(201).json(message);
         } catch (Exception e) {
@@ -124,4 +249,39 @@ public class MessageManager extends AuctionBase {
             ctx.status(500).result("Internal server error");
         }
     }
+
+    private static class Catalog {
+        private static final ObjectMapper MAPPER = new ObjectMapper();
+
+        private final byte[] json;
+        private final byte[] gzip;
+        private final String etag;
+        private final String gzipEtag;
+
+        private Catalog(byte[] json, byte[] gzip, String hash) {
+            this.json = json;
+            this.gzip = gzip;
+            this.etag = "\"" + hash + "\"";
+            this.gzipEtag = "\"" + hash + "-gzip\"";
+        }
+
+        // The messages are sorted, so the same catalog always renders to the same bytes and ETag.
+        private static Catalog render(Map<String, String> messages) {
+            try {
+                byte[] json = MAPPER.writeValueAsBytes(new TreeMap<>(messages));
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(json.length / 2 + 32);
+                try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+                    out.write(json);
+                }
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(json);
+                StringBuilder hash = new StringBuilder();
+                for (int i = 0; i < 16; i++) {
+                    hash.append(String.format("%02x", digest[i]));
+                }
+                return new Catalog(json, compressed.toByteArray(), hash.toString());
+            } catch (IOException | NoSuchAlgorithmException e) {
+                throw new IllegalStateException("Failed to render message catalog", e);
+            }
+        }
+    }
 }
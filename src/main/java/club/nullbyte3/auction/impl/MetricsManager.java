@@ -0,0 +1,180 @@
+package club.nullbyte3.auction.impl;
+
+import club.nullbyte3.auction.AuctionBase;
+import club.nullbyte3.auction.telemetry.LatencyHistogram;
+import club.nullbyte3.auction.telemetry.PoolTelemetry;
+import club.nullbyte3.auction.websocket.ReplayWindow;
+import club.nullbyte3.auction.websocket.SubscriberRegistry;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latency histograms for the hot paths plus the gauges of the other modules, served on /metrics in the
+ * Prometheus text format. Histograms are exported as summaries with p50, p99 and p999.
+ * <p>
+ * /metrics is open unless auction.metrics.token is set, then scrapers have to send it as a bearer token.
+ * Without one, keep the port away from the public internet, the SQL labels and pool sizes are nobody else's business.
+ */
+public class MetricsManager extends AuctionBase {
+
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+    private static final String[] QUANTILE_LABELS = {"0.5", "0.99", "0.999"};
+
+    private final String token = System.getProperty("auction.metrics.token", "");
+    private final Map<String, Family> families = new ConcurrentHashMap<>();
+    private final LatencyHistogram bidBroadcast = histogram("auction_bid_broadcast_seconds",
+            "Time from a bid being accepted by its shard until its price update is queued for every subscriber.");
+    private final LatencyHistogram fanOut = histogram("auction_ws_fanout_seconds",
+            "Time to queue one broadcast frame for every subscriber of this node.");
+
+    public LatencyHistogram histogram(String name, String help) {
+        return histogram(name, help, null, null);
+    }
+
+    /**
+     * The histogram of one label value, created on first use. Label values must come from a small fixed set,
+     * like route templates or message subjects, never from raw client input.
+     */
+    public LatencyHistogram histogram(String name, String help, String label, String value) {
+        Family family = families.computeIfAbsent(name, key -> new Family(help, label));
+        return family.histograms.computeIfAbsent(value == null ? "" : value, key -> new LatencyHistogram());
+    }
+
+    // Called by Javalin after every request, with the route template rather than the path so ids don't become labels.
+    public void recordRequest(Context ctx, Float executionTimeMs) {
+        String route = ctx.endpointHandlerPath();
+        // Javalin puts a description in there when no route matched.
+        if (ctx.method() == HandlerType.OPTIONS || !route.startsWith("/")) {
+            route = "unmatched";
+        }
+        histogram("auction_http_request_seconds", "Time spent handling HTTP requests, by route.",
+                "route", ctx.method().name() + " " + route).record((long) (executionTimeMs * 1_000_000));
+    }
+
+    public void recordWsMessage(String subject, long nanos) {
+        histogram("auction_ws_message_seconds", "Time spent handling /ws/bid messages, by subject.",
+                "subject", subject).record(nanos);
+    }
+
+    public void recordBidBroadcast(long nanos) {
+        bidBroadcast.record(nanos);
+    }
+
+    public void recordFanOut(long nanos) {
+        fanOut.record(nanos);
+    }
+
+    public void getMetrics(Context ctx) {
+        if (!token.isEmpty() && !MessageDigest.isEqual(("Bearer " + token).getBytes(StandardCharsets.UTF_8),
+                String.valueOf(ctx.header("Authorization")).getBytes(StandardCharsets.UTF_8))) {
+            ctx.header("WWW-Authenticate", "Bearer");
+            ctx.status(401).result("Metrics token required.");
+            return;
+        }
+        StringBuilder out = new StringBuilder(4096);
+        families.forEach((name, family) -> writeSummary(out, name, family.help, family.label, family.histograms));
+
+        SubscriberRegistry subscribers = find(BidManager.class).getSubscribers();
+        gauge(out, "auction_ws_subscribers", "Connected WebSocket subscribers.", subscribers.size());
+        gauge(out, "auction_ws_queue_depth", "Frames waiting in all subscriber queues.", subscribers.getTotalQueueDepth());
+        gauge(out, "auction_ws_queue_depth_max", "Frames waiting in the fullest subscriber queue.", subscribers.getMaxQueueDepth());
+        counter(out, "auction_ws_slow_consumer_disconnects_total", "Subscribers disconnected for not keeping up.", subscribers.getDisconnects());
+        counter(out, "auction_ws_slow_consumer_downgrades_total", "Subscribers whose price and timer updates were held back until they caught up.", subscribers.getDowngrades());
+        ReplayWindow replay = find(BidManager.class).getReplay();
+        counter(out, "auction_ws_resumes_total", "Reconnects that were only sent the frames they missed.", replay.getResumes());
+        counter(out, "auction_ws_snapshots_total", "Connects that were sent the full snapshot.", replay.getSnapshots());
+        BidThrottle throttle = find(BidThrottle.class);
+        counter(out, "auction_ws_bids_throttled_session_total", "Bid frames turned away by the per-socket limit.", throttle.getSessionThrottled());
+        counter(out, "auction_ws_bids_throttled_user_total", "Bid frames turned away by the per-user limit.", throttle.getUserThrottled());
+        gauge(out, "auction_ws_throttle_users", "Users with a bid limit being tracked.", throttle.getTrackedUsers());
+        gauge(out, "auction_live_items", "Items currently being auctioned.", find(AuctionManager.class).getLiveItems().size());
+        PersistenceManager persistence = find(PersistenceManager.class);
+        gauge(out, "auction_bid_write_queue_depth", "Accepted bids waiting to be written.", persistence.getQueueDepth());
+        gauge(out, "auction_bid_write_retry_depth", "Accepted bids waiting to be written again after a failed write.", persistence.getRetryDepth());
+        counter(out, "auction_bid_write_lost_total", "Accepted bids given up on after auction.bids.maxAttempts.", persistence.getLost());
+
+        TokenCache tokens = find(TokenCache.class);
+        counter(out, "auction_token_cache_hits_total", "Auth token lookups answered from the cache.", tokens.getHits());
+        counter(out, "auction_token_cache_misses_total", "Auth token lookups that went to the database.", tokens.getMisses());
+        counter(out, "auction_token_cache_coalesced_total", "Auth token lookups that waited for the same token's query.", tokens.getCoalesced());
+        counter(out, "auction_token_cache_evictions_total", "Auth tokens evicted from the cache.", tokens.getEvictions());
+        gauge(out, "auction_token_cache_size", "Auth tokens in the cache.", tokens.size());
+
+        PasswordHasher hasher = find(PasswordHasher.class);
+        gauge(out, "auction_auth_hash_queue_depth", "Password hashes waiting for a bcrypt thread.", hasher.getQueueDepth());
+        gauge(out, "auction_auth_hash_active", "Password hashes running.", hasher.getActiveCount());
+        counter(out, "auction_auth_hash_rejections_total", "Logins and registrations turned away with a full bcrypt queue.", hasher.getRejections());
+
+        PoolTelemetry pool = find(DatabaseManager.class).getTelemetry();
+        gauge(out, "auction_db_pool_active_connections", "Connections in use.", pool.getActiveConnections());
+        gauge(out, "auction_db_pool_idle_connections", "Connections idle in the pool.", pool.getIdleConnections());
+        gauge(out, "auction_db_pool_pending_threads", "Threads waiting for a connection.", pool.getPendingThreads());
+        gauge(out, "auction_db_pool_max_connections", "Size limit of the pool.", pool.getMaxConnections());
+        counter(out, "auction_db_pool_timeouts_total", "Callers that gave up waiting for a connection.", pool.getTimeouts());
+        out.append("# HELP auction_db_pool_acquire_seconds Time spent waiting for a connection.\n");
+        out.append("# TYPE auction_db_pool_acquire_seconds summary\n");
+        out.append("auction_db_pool_acquire_seconds_sum ").append(seconds(pool.getAcquireNanos())).append('\n');
+        out.append("auction_db_pool_acquire_seconds_count ").append(pool.getAcquisitions()).append('\n');
+        gauge(out, "auction_db_pool_acquire_seconds_max", "Longest wait for a connection.", seconds(pool.getMaxAcquireNanos()));
+        writeSummary(out, "auction_db_pool_usage_seconds", "Time a connection is held before it goes back to the pool.",
+                null, Map.of("", pool.getUsage()));
+        writeSummary(out, "auction_db_query_seconds", "Time spent running SQL statements, by verb and table.",
+                "query", pool.getQueryLatency());
+
+        ctx.contentType("text/plain; version=0.0.4; charset=utf-8");
+        ctx.result(out.toString());
+    }
+
+    private static void writeSummary(StringBuilder out, String name, String help, String label,
+                                     Map<String, LatencyHistogram> histograms) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" summary\n");
+        histograms.forEach((value, histogram) -> {
+            String labels = label == null ? "" : label + "=\"" + escape(value) + "\",";
+            long[] quantiles = histogram.quantiles(QUANTILES);
+            for (int i = 0; i < QUANTILES.length; i++) {
+                out.append(name).append('{').append(labels).append("quantile=\"").append(QUANTILE_LABELS[i]).append("\"} ")
+                        .append(seconds(quantiles[i])).append('\n');
+            }
+            String braces = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+            out.append(name).append("_sum").append(braces).append(' ').append(seconds(histogram.getSumNanos())).append('\n');
+            out.append(name).append("_count").append(braces).append(' ').append(histogram.getCount()).append('\n');
+        });
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, Object value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static final class Family {
+        private final String help;
+        private final String label;
+        private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+        private Family(String help, String label) {
+            this.help = help;
+            this.label = label;
+        }
+    }
+}
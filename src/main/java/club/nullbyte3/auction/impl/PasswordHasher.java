@@ -0,0 +1,118 @@
+package club.nullbyte3.auction.impl;
+
+import club.nullbyte3.auction.AuctionBase;
+import club.nullbyte3.auction.telemetry.LatencyHistogram;
+import lombok.extern.slf4j.Slf4j;
+import org.mindrot.jbcrypt.BCrypt;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs bcrypt on a small pool of its own, so a login surge can take at most hashThreads cores away from bidding.
+ * Hashes wait in a short queue, once that is full new ones are turned away straight away and the caller answers 503,
+ * rather than piling up request threads that all wait for their turn.
+ */
+@Slf4j
+public class PasswordHasher extends AuctionBase {
+
+    private static final int THREADS = Integer.getInteger("auction.auth.hashThreads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 4));
+    private static final int QUEUE_CAPACITY = Integer.getInteger("auction.auth.hashQueue", 32);
+
+    private final LongAdder rejections = new LongAdder();
+    private ThreadPoolExecutor executor;
+    private LatencyHistogram queueTime;
+    private LatencyHistogram hashTime;
+
+    @Override
+    public void enable() {
+        MetricsManager metrics = find(MetricsManager.class);
+        queueTime = metrics.histogram("auction_auth_hash_queue_seconds", "Time password hashes waited for a bcrypt thread.");
+        hashTime = metrics.histogram("auction_auth_hash_seconds", "Time spent hashing or checking one password.");
+        AtomicInteger threads = new AtomicInteger();
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), r -> {
+            Thread thread = new Thread(r, "bcrypt-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            // Only a hint to the OS, the thread count is the actual cap.
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        log.info("Hashing passwords on {} threads, at most {} waiting.", THREADS, QUEUE_CAPACITY);
+    }
+
+    @Override
+    public void disable() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @throws RejectedExecutionException When too many hashes are waiting already.
+     */
+    public String hash(String password) {
+        return run(() -> BCrypt.hashpw(password, BCrypt.gensalt()));
+    }
+
+    /**
+     * @throws RejectedExecutionException When too many hashes are waiting already.
+     */
+    public boolean check(String password, String hash) {
+        return run(() -> BCrypt.checkpw(password, hash));
+    }
+
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    // Hashes that can run or wait at the same time, one more is turned away.
+    public int getCapacity() {
+        return THREADS + QUEUE_CAPACITY;
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    // The caller just waits, the CPU time is spent on the pool.
+    private <T> T run(Callable<T> work) {
+        long queuedAt = System.nanoTime();
+        Future<T> result;
+        try {
+            result = executor.submit(() -> {
+                long start = System.nanoTime();
+                queueTime.record(start - queuedAt);
+                try {
+                    return work.call();
+                } finally {
+                    hashTime.record(System.nanoTime() - start);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejections.increment();
+            throw e;
+        }
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.cancel(true);
+            throw new RejectedExecutionException("Interrupted while waiting for bcrypt.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Password hashing failed", e.getCause());
+        }
+    }
+}
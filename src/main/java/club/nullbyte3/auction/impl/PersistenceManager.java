@@ -0,0 +1,212 @@
+package club.nullbyte3.auction.impl;
+
+import club.nullbyte3.auction.AuctionBase;
+import club.nullbyte3.auction.engine.BidResult;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Write-behind stage for accepted bids. Bids are queued and flushed as one JDBC batch
+ * (rewritten into a multi-row insert by the driver) once the batch is full or the flush interval has passed.
+ * <p>
+ * Queueing never blocks, the shard that accepted the bid can't wait for the database. Bids are turned away before
+ * they reach the shard while the queue is full, see {@link #hasRoom()}, and a bid whose write failed anyway is
+ * handed back through {@link #retry} and written again on its own until it makes it.
+ */
+@Slf4j
+public class PersistenceManager extends AuctionBase {
+
+    private static final int QUEUE_CAPACITY = Integer.getInteger("auction.bids.queueCapacity", 65536);
+    private static final int BATCH_SIZE = Integer.getInteger("auction.bids.batchSize", 500);
+    private static final long FLUSH_INTERVAL_MS = Long.getLong("auction.bids.flushIntervalMs", 20);
+    // The n-th retry of a bid waits n times this long.
+    private static final long RETRY_INTERVAL_MS = Long.getLong("auction.bids.retryIntervalMs", 1000);
+    // With the default interval that is a bit over 20 minutes of the database being unreachable.
+    private static final int MAX_ATTEMPTS = Integer.getInteger("auction.bids.maxAttempts", 50);
+
+    private final BlockingQueue<PendingBid> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    // Failed writes, soonest retry first.
+    private final BlockingQueue<PendingBid> retries = new PriorityBlockingQueue<>(64,
+            Comparator.comparingLong(pending -> pending.retryAt));
+    private final LongAdder lost = new LongAdder();
+    // Only touched by the flusher, retries are held back until retriesPausedUntil after one failed.
+    private boolean retriesPaused;
+    private long retriesPausedUntil;
+    private SessionFactory sessionFactory;
+    private Thread flusher;
+    private volatile boolean running;
+
+    @Override
+    public void enable() {
+        this.sessionFactory = find(DatabaseManager.class).getSessionFactory();
+        running = true;
+        flusher = new Thread(this::run, "bid-write-behind");
+        flusher.start();
+    }
+
+    @Override
+    public void disable() {
+        running = false;
+        if (flusher == null) return;
+        try {
+            // The flusher drains whatever is left in the queue before exiting.
+            flusher.join(TimeUnit.SECONDS.toMillis(30));
+            if (flusher.isAlive()) {
+                log.warn("Timed out writing pending bids, {} are lost.", queue.size());
+            }
+            if (!retries.isEmpty()) {
+                // The journal still has the price and leader of every live item, only the bid history is short.
+                log.error("Shutting down with {} bids that failed to write, they are lost.", retries.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues an accepted bid for writing, never blocks.
+     * @return A future that completes once the bid is committed, or fails when the queue is full or its batch failed.
+     */
+    public CompletableFuture<Void> enqueue(BidResult result) {
+        PendingBid pending = new PendingBid(result, 1);
+        if (!running || !queue.offer(pending)) {
+            pending.ack.completeExceptionally(new IllegalStateException("Bid write queue is full."));
+        }
+        return pending.ack;
+    }
+
+    /**
+     * Takes back a bid whose first write failed. It is written again later, on its own so one bad row can't keep
+     * failing the batches of others, and only given up on after auction.bids.maxAttempts.
+     */
+    public void retry(BidResult result) {
+        schedule(new PendingBid(result, 2));
+    }
+
+    // Whether another bid can be taken on. False while the queue is full or too many bids are waiting for a retry.
+    public boolean hasRoom() {
+        return running && queue.remainingCapacity() > 0 && retries.size() < QUEUE_CAPACITY;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getRetryDepth() {
+        return retries.size();
+    }
+
+    // Bids that were given up on after auction.bids.maxAttempts.
+    public long getLost() {
+        return lost.sum();
+    }
+
+    private void schedule(PendingBid pending) {
+        pending.retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETRY_INTERVAL_MS * (pending.attempt - 1));
+        retries.add(pending);
+    }
+
+    // Called by the flusher, every retry that is due gets its own transaction.
+    private void flushRetries() {
+        long now = System.nanoTime();
+        if (retriesPaused) {
+            // nanoTime can be anywhere, even negative, so there's no "never paused" value to compare against.
+            if (now - retriesPausedUntil < 0) return;
+            retriesPaused = false;
+        }
+        while (running) {
+            PendingBid pending = retries.peek();
+            if (pending == null || pending.retryAt - now > 0) return;
+            // The flusher is the only one taking, and whatever was added since is due later.
+            retries.poll();
+            if (flush(List.of(pending))) continue;
+            if (pending.attempt >= MAX_ATTEMPTS) {
+                lost.increment();
+                log.error("Giving up on writing the bid of {} by user {} on item {} after {} attempts.",
+                        pending.result.getPrice(), pending.result.getBidder().getId(), pending.result.getItemId(), pending.attempt);
+            } else {
+                schedule(new PendingBid(pending.result, pending.attempt + 1));
+            }
+            // The database is most likely still down, the others can wait as well.
+            retriesPaused = true;
+            retriesPausedUntil = now + TimeUnit.MILLISECONDS.toNanos(RETRY_INTERVAL_MS);
+            return;
+        }
+    }
+
+    private void run() {
+        List<PendingBid> batch = new ArrayList<>(BATCH_SIZE);
+        while (running || !queue.isEmpty()) {
+            flushRetries();
+            try {
+                PendingBid first = queue.poll(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS);
+                while (batch.size() < BATCH_SIZE) {
+                    queue.drainTo(batch, BATCH_SIZE - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= BATCH_SIZE || remaining <= 0 || !running) break;
+                    PendingBid next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Keep going, we still have to drain the queue.
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private boolean flush(List<PendingBid> batch) {
+        try (Session session = sessionFactory.openSession()) {
+            session.beginTransaction();
+            session.doWork(connection -> {
+                try (PreparedStatement stmt = connection.prepareStatement(
+                        "INSERT INTO bids (item_id, user_id, price) VALUES (?, ?, ?)")) {
+                    for (PendingBid pending : batch) {
+                        stmt.setLong(1, pending.result.getItemId());
+                        stmt.setLong(2, pending.result.getBidder().getId());
+                        stmt.setBigDecimal(3, pending.result.getPrice());
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                }
+            });
+            session.getTransaction().commit();
+            batch.forEach(pending -> pending.ack.complete(null));
+            return true;
+        } catch (Exception e) {
+            log.error("Failed to write a batch of {} bids", batch.size(), e);
+            batch.forEach(pending -> pending.ack.completeExceptionally(e));
+            return false;
+        }
+    }
+
+    private static class PendingBid {
+        private final BidResult result;
+        private final int attempt;
+        private final CompletableFuture<Void> ack = new CompletableFuture<>();
+        private long retryAt;
+
+        private PendingBid(BidResult result, int attempt) {
+            this.result = result;
+            this.attempt = attempt;
+        }
+    }
+}
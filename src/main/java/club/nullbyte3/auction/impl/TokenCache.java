@@ -0,0 +1,157 @@
+package club.nullbyte3.auction.impl;
+
+import club.nullbyte3.auction.AuctionBase;
+import club.nullbyte3.auction.db.User;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shared auth token to user lookup. Entries expire after a TTL and the least recently used one is
+ * evicted once the cache is full. Unknown tokens are cached too (for a shorter time), so a client
+ * spamming a bad token doesn't hit the database every time. Concurrent misses on the same token share
+ * one query.
+ */
+@Slf4j
+public class TokenCache extends AuctionBase {
+
+    private static final int MAX_SIZE = Integer.getInteger("auction.tokens.cacheSize", 100_000);
+
+    private final long ttlNanos = TimeUnit.SECONDS.toNanos(Long.getLong("auction.tokens.ttlSeconds", 300));
+    private final long negativeTtlNanos = TimeUnit.SECONDS.toNanos(Long.getLong("auction.tokens.negativeTtlSeconds", 30));
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    // The query of every token that is being loaded right now, whoever misses on it as well waits for that one.
+    private final Map<String, CompletableFuture<User>> loading = new ConcurrentHashMap<>();
+    // Guards the entries, even a get reorders them. A lock rather than a monitor, so a virtual thread
+    // waiting for it doesn't pin its carrier.
+    private final ReentrantLock lock = new ReentrantLock();
+    // Access ordered, so the eldest entry is the least recently used one.
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > MAX_SIZE) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    };
+    private SessionFactory sessionFactory;
+
+    @Override
+    public void enable() {
+        this.sessionFactory = find(DatabaseManager.class).getSessionFactory();
+    }
+
+    /**
+     * @param token The auth token sent by the client.
+     * @return The user owning the token, or null if the token is invalid.
+     */
+    public User lookup(String token) {
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            Entry entry = entries.get(token);
+            if (entry != null && entry.expiresAt - now > 0) {
+                hits.increment();
+                return entry.user;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        CompletableFuture<User> load = new CompletableFuture<>();
+        CompletableFuture<User> running = loading.putIfAbsent(token, load);
+        if (running != null) {
+            coalesced.increment();
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+
+        misses.increment();
+        try (Session session = sessionFactory.openSession()) {
+            User user = session.createQuery("FROM User WHERE authToken = :token", User.class)
+                    .setParameter("token", token)
+                    .uniqueResult();
+            Entry entry = new Entry(user, now + (user != null ? ttlNanos : negativeTtlNanos));
+            lock.lock();
+            try {
+                entries.put(token, entry);
+            } finally {
+                lock.unlock();
+            }
+            load.complete(user);
+            return user;
+        } catch (RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            // Only after the entry is in, so nobody can miss in between and query again.
+            loading.remove(token, load);
+        }
+    }
+
+    /**
+     * Has to be called whenever a token is rotated or revoked. Tokens are only ever issued at registration right
+     * now, as fresh UUIDs nobody can have looked up before, so nothing needs to yet.
+     */
+    public void invalidate(String token) {
+        lock.lock();
+        try {
+            entries.remove(token);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    // Misses that waited for another lookup of the same token instead of querying.
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class Entry {
+        private final User user;
+        private final long expiresAt;
+
+        private Entry(User user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package club.nullbyte3.auction.journal;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of auction events on memory-mapped segment files. Appending is a couple of puts into
+ * the mapped segment, the OS writes it out and a background thread forces it to disk every SYNC_INTERVAL_MS.
+ * A record is [length][event][crc32 of the event], so a record torn by a crash is detected and cut off on replay.
+ * <p>
+ * Every so often the {@link JournalState} is written to a snapshot together with the journal position it covers,
+ * and the segments before that position are deleted. Recovery reads the snapshot and only replays the tail.
+ */
+@Slf4j
+public class EventJournal {
+
+    private static final long SYNC_INTERVAL_MS = Long.getLong("auction.journal.syncIntervalMs", 1000);
+    private static final long SNAPSHOT_INTERVAL_MS = Long.getLong("auction.journal.snapshotIntervalMs", 30000);
+    private static final long SNAPSHOT_EVERY = Long.getLong("auction.journal.snapshotEvery", 100000);
+    private static final String SNAPSHOT = "snapshot.bin";
+    private static final int SNAPSHOT_MAGIC = 0x4A524E32;
+    // Length before the event and crc after it.
+    private static final int RECORD_OVERHEAD = 8;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Snapshots are taken one at a time, an older one landing last could point at a segment that's already gone.
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    private final CRC32 crc = new CRC32();
+    private final ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "journal-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Everything below is guarded by the lock.
+    private JournalState state;
+    private long segment;
+    private MappedByteBuffer buffer;
+    private long eventsSinceSnapshot;
+    private long lastSnapshot;
+    private boolean closed;
+
+    public EventJournal(Path dir, int segmentBytes) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Loads the last snapshot, replays the events after it and positions the journal for appending.
+     * @return A copy of the recovered state.
+     */
+    public JournalState open() throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(dir);
+        TreeMap<Long, Path> segments = listSegments();
+        int offset = 0;
+        Path snapshot = dir.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Not a journal snapshot: " + snapshot);
+                }
+                segment = in.readLong();
+                offset = in.readInt();
+                state = JournalState.read(in);
+            }
+        } else {
+            segment = segments.isEmpty() ? 0 : segments.firstKey();
+            state = new JournalState();
+        }
+
+        long replayed = 0;
+        map(segment);
+        buffer.position(offset);
+        while (true) {
+            JournalEvent event = readNext();
+            if (event != null) {
+                state.apply(event);
+                replayed++;
+                continue;
+            }
+            if (segments.containsKey(segment + 1) && isCleanEnd()) {
+                map(segment + 1);
+                continue;
+            }
+            break;
+        }
+        truncateTail(segments);
+
+        lastSnapshot = System.currentTimeMillis();
+        eventsSinceSnapshot = replayed;
+        syncer.scheduleWithFixedDelay(this::sync, SYNC_INTERVAL_MS, SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        log.info("Recovered journal at segment {}: {} queued, {} live, replayed {} events in {} ms.",
+                segment, state.getQueued().size(), state.getLive().size(), replayed,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return state.copy();
+    }
+
+    public void append(JournalEvent event) {
+        int size = event.encodedSize();
+        if (size + RECORD_OVERHEAD > segmentBytes) {
+            throw new IllegalArgumentException("Journal event of " + size + " bytes does not fit in a segment.");
+        }
+        lock.lock();
+        try {
+            if (closed) return;
+            if (size + RECORD_OVERHEAD > buffer.remaining()) {
+                // The rest of the segment stays zeroed, which reads as the end of it.
+                buffer.force();
+                map(segment + 1);
+            }
+            int start = buffer.position();
+            buffer.putInt(size);
+            event.encode(buffer);
+            buffer.putInt(checksum(start + 4, size));
+            state.apply(event);
+            eventsSinceSnapshot++;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to roll over the journal", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the current state to a new snapshot and deletes the segments it makes redundant.
+     */
+    public void snapshot() throws IOException {
+        snapshotLock.lock();
+        try {
+            writeSnapshot();
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    private void writeSnapshot() throws IOException {
+        JournalState copy;
+        long snapshotSegment;
+        int snapshotOffset;
+        lock.lock();
+        try {
+            if (buffer == null) return;
+            copy = state.copy();
+            snapshotSegment = segment;
+            snapshotOffset = buffer.position();
+            eventsSinceSnapshot = 0;
+            lastSnapshot = System.currentTimeMillis();
+        } finally {
+            lock.unlock();
+        }
+
+        Path tmp = dir.resolve(SNAPSHOT + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(snapshotSegment);
+            out.writeInt(snapshotOffset);
+            copy.write(out);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (Long old : listSegments().headMap(snapshotSegment).keySet()) {
+            Files.deleteIfExists(segmentPath(old));
+        }
+    }
+
+    public void close() {
+        syncer.shutdownNow();
+        try {
+            snapshot();
+        } catch (IOException e) {
+            log.error("Failed to snapshot the journal on close", e);
+        }
+        lock.lock();
+        try {
+            closed = true;
+            if (buffer != null) buffer.force();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void sync() {
+        MappedByteBuffer current;
+        boolean snapshotDue;
+        lock.lock();
+        try {
+            current = buffer;
+            snapshotDue = eventsSinceSnapshot >= SNAPSHOT_EVERY
+                    || (eventsSinceSnapshot > 0 && System.currentTimeMillis() - lastSnapshot >= SNAPSHOT_INTERVAL_MS);
+        } finally {
+            lock.unlock();
+        }
+        try {
+            current.force();
+            if (snapshotDue) {
+                snapshot();
+            }
+        } catch (Exception e) {
+            log.error("Failed to sync the journal", e);
+        }
+    }
+
+    // Null at the end of the segment, or at a record that was only partly written.
+    private JournalEvent readNext() {
+        int start = buffer.position();
+        if (buffer.remaining() < RECORD_OVERHEAD) return null;
+        int size = buffer.getInt(start);
+        if (size <= 0 || size + RECORD_OVERHEAD > buffer.remaining()) return null;
+        if (buffer.getInt(start + 4 + size) != checksum(start + 4, size)) return null;
+        buffer.position(start + 4);
+        JournalEvent event = JournalEvent.decode(buffer);
+        buffer.position(start + 4 + size + 4);
+        return event;
+    }
+
+    // A segment that was rolled over ends in zeroes, anything else means the record there is damaged.
+    private boolean isCleanEnd() {
+        return buffer.remaining() < 4 || buffer.getInt(buffer.position()) == 0;
+    }
+
+    /**
+     * Clears whatever follows the last good record, so a torn record can't be mistaken for a real one
+     * once new records are written around it. A clean end is already followed by nothing but zeroes.
+     */
+    private void truncateTail(TreeMap<Long, Path> segments) throws IOException {
+        if (isCleanEnd()) return;
+        log.warn("Journal segment {} has a damaged record at {}, dropping the rest of it.", segment, buffer.position());
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            buffer.put(i, (byte) 0);
+        }
+        for (Long later : segments.tailMap(segment, false).keySet()) {
+            log.warn("Dropping journal segment {} as it follows a damaged record.", later);
+            Files.deleteIfExists(segmentPath(later));
+        }
+    }
+
+    private int checksum(int offset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset).limit(offset + length);
+        crc.reset();
+        crc.update(slice);
+        return (int) crc.getValue();
+    }
+
+    private void map(long index) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentPath(index),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed.
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+        segment = index;
+    }
+
+    private Path segmentPath(long index) {
+        return dir.resolve(String.format("journal-%016d.log", index));
+    }
+
+    private TreeMap<Long, Path> listSegments() throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "journal-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                segments.put(Long.parseLong(name.substring("journal-".length(), name.length() - ".log".length())), file);
+            }
+        }
+        return segments;
+    }
+}
@@ -0,0 +1,84 @@
+package club.nullbyte3.auction.journal;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * One entry of the auction journal. Every event is about a single item, the other fields depend on the type.
+ */
+@Getter
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class JournalEvent {
+
+    public enum Type {
+        ITEM_QUEUED, ITEM_LIVE, BID_ACCEPTED, TIMER_EXTENDED, AUCTION_ENDED, MAX_RAISED;
+
+        private static final Type[] VALUES = values();
+    }
+
+    private final Type type;
+    private final long itemId;
+    // Epoch millis for ITEM_LIVE and TIMER_EXTENDED, the bidder's user id for BID_ACCEPTED and MAX_RAISED.
+    private final long value;
+    private final BigDecimal price;
+
+    public static JournalEvent itemQueued(long itemId) {
+        return new JournalEvent(Type.ITEM_QUEUED, itemId, 0, null);
+    }
+
+    public static JournalEvent itemLive(long itemId, long endAt) {
+        return new JournalEvent(Type.ITEM_LIVE, itemId, endAt, null);
+    }
+
+    public static JournalEvent bidAccepted(long itemId, long userId, BigDecimal price) {
+        return new JournalEvent(Type.BID_ACCEPTED, itemId, userId, price);
+    }
+
+    // The hidden maximum of the leader's proxy bid.
+    public static JournalEvent maxRaised(long itemId, long userId, BigDecimal maxPrice) {
+        return new JournalEvent(Type.MAX_RAISED, itemId, userId, maxPrice);
+    }
+
+    public static JournalEvent timerExtended(long itemId, long endAt) {
+        return new JournalEvent(Type.TIMER_EXTENDED, itemId, endAt, null);
+    }
+
+    public static JournalEvent auctionEnded(long itemId) {
+        return new JournalEvent(Type.AUCTION_ENDED, itemId, 0, null);
+    }
+
+    public int encodedSize() {
+        return 1 + 8 + 8 + (price == null ? 0 : 4 + 1 + price.unscaledValue().toByteArray().length);
+    }
+
+    void encode(ByteBuffer buffer) {
+        buffer.put((byte) type.ordinal());
+        buffer.putLong(itemId);
+        buffer.putLong(value);
+        if (price != null) {
+            byte[] unscaled = price.unscaledValue().toByteArray();
+            buffer.putInt(price.scale());
+            buffer.put((byte) unscaled.length);
+            buffer.put(unscaled);
+        }
+    }
+
+    static JournalEvent decode(ByteBuffer buffer) {
+        Type type = Type.VALUES[buffer.get()];
+        long itemId = buffer.getLong();
+        long value = buffer.getLong();
+        BigDecimal price = null;
+        if (type == Type.BID_ACCEPTED || type == Type.MAX_RAISED) {
+            int scale = buffer.getInt();
+            byte[] unscaled = new byte[buffer.get()];
+            buffer.get(unscaled);
+            price = new BigDecimal(new BigInteger(unscaled), scale);
+        }
+        return new JournalEvent(type, itemId, value, price);
+    }
+}
@@ -0,0 +1,150 @@
+package club.nullbyte3.auction.journal;
+
+import lombok.Getter;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The in-flight auction state the journal describes: which items are queued, in order, and where every live
+ * item stands. This is what a snapshot holds, so it stays small no matter how many events led up to it.
+ */
+@Getter
+public class JournalState {
+
+    private final Set<Long> queued = new LinkedHashSet<>();
+    private final Map<Long, LiveState> live = new LinkedHashMap<>();
+
+    @Getter
+    public static class LiveState {
+        private long endAt;
+        private BigDecimal price;
+        private long leaderId;
+        // Null without a proxy bid above the price.
+        private BigDecimal leaderMax;
+        private long bidCount;
+
+        private LiveState(long endAt) {
+            this.endAt = endAt;
+        }
+    }
+
+    void apply(JournalEvent event) {
+        long itemId = event.getItemId();
+        switch (event.getType()) {
+            case ITEM_QUEUED:
+                queued.add(itemId);
+                break;
+            case ITEM_LIVE:
+                queued.remove(itemId);
+                live.put(itemId, new LiveState(event.getValue()));
+                break;
+            case BID_ACCEPTED: {
+                LiveState state = live.get(itemId);
+                if (state != null) {
+                    if (state.leaderId != event.getValue()) {
+                        state.leaderMax = null;
+                    }
+                    state.price = event.getPrice();
+                    state.leaderId = event.getValue();
+                    state.bidCount++;
+                }
+                break;
+            }
+            case MAX_RAISED: {
+                LiveState state = live.get(itemId);
+                // Always follows the bid that made them the leader, if it took one.
+                if (state != null && state.leaderId == event.getValue()) {
+                    state.leaderMax = event.getPrice();
+                }
+                break;
+            }
+            case TIMER_EXTENDED: {
+                LiveState state = live.get(itemId);
+                if (state != null) {
+                    state.endAt = event.getValue();
+                }
+                break;
+            }
+            case AUCTION_ENDED:
+                queued.remove(itemId);
+                live.remove(itemId);
+                break;
+        }
+    }
+
+    JournalState copy() {
+        JournalState copy = new JournalState();
+        copy.queued.addAll(queued);
+        live.forEach((itemId, state) -> {
+            LiveState cloned = new LiveState(state.endAt);
+            cloned.price = state.price;
+            cloned.leaderId = state.leaderId;
+            cloned.leaderMax = state.leaderMax;
+            cloned.bidCount = state.bidCount;
+            copy.live.put(itemId, cloned);
+        });
+        return copy;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(queued.size());
+        for (long itemId : queued) {
+            out.writeLong(itemId);
+        }
+        out.writeInt(live.size());
+        for (Map.Entry<Long, LiveState> entry : live.entrySet()) {
+            LiveState state = entry.getValue();
+            out.writeLong(entry.getKey());
+            out.writeLong(state.endAt);
+            out.writeLong(state.leaderId);
+            out.writeLong(state.bidCount);
+            writePrice(out, state.price);
+            writePrice(out, state.leaderMax);
+        }
+    }
+
+    private static void writePrice(DataOutputStream out, BigDecimal price) throws IOException {
+        out.writeBoolean(price != null);
+        if (price != null) {
+            byte[] unscaled = price.unscaledValue().toByteArray();
+            out.writeInt(price.scale());
+            out.writeByte(unscaled.length);
+            out.write(unscaled);
+        }
+    }
+
+    private static BigDecimal readPrice(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) return null;
+        int scale = in.readInt();
+        byte[] unscaled = new byte[in.readByte()];
+        in.readFully(unscaled);
+        return new BigDecimal(new BigInteger(unscaled), scale);
+    }
+
+    static JournalState read(DataInputStream in) throws IOException {
+        JournalState state = new JournalState();
+        int queuedCount = in.readInt();
+        for (int i = 0; i < queuedCount; i++) {
+            state.queued.add(in.readLong());
+        }
+        int liveCount = in.readInt();
+        for (int i = 0; i < liveCount; i++) {
+            long itemId = in.readLong();
+            LiveState live = new LiveState(in.readLong());
+            live.leaderId = in.readLong();
+            live.bidCount = in.readLong();
+            live.price = readPrice(in);
+            live.leaderMax = readPrice(in);
+            state.live.put(itemId, live);
+        }
+        return state;
+    }
+}
@@ -0,0 +1,8 @@
+package club.nullbyte3.auction.model;
+
+public enum ItemStatus {
+    // Waiting for a free auction slot.
+    QUEUED,
+    LIVE,
+    ENDED
+}
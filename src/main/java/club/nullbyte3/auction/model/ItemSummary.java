@@ -0,0 +1,36 @@
+package club.nullbyte3.auction.model;
+
+import lombok.Builder;
+import lombok.Value;
+import lombok.extern.jackson.Jacksonized;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * An item as the read endpoints show it. Same JSON as {@link club.nullbyte3.auction.db.Item}, except that the seller
+ * and winner are only a {@link UserRef}, plus where the auction stands.
+ * Immutable, an update builds a new one with toBuilder, so a published summary can be shared without copying.
+ * Other nodes read it back through the builder as well.
+ */
+@Value
+@Builder(toBuilder = true)
+@Jacksonized
+public class ItemSummary {
+    Long id;
+    String itemName;
+    String itemImage;
+    BigDecimal itemPrice;
+    String itemDescription;
+    BigDecimal bidIncrement;
+    UserRef seller;
+    UserRef winner;
+    LocalDateTime createdAt;
+    LocalDateTime endAt;
+    boolean active;
+    ItemStatus status;
+    // The highest bid, or the starting price while there are no bids.
+    BigDecimal currentPrice;
+    long bidCount;
+    UserRef leader;
+}
@@ -0,0 +1,24 @@
+package club.nullbyte3.auction.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Value;
+
+/**
+ * The public part of a user, for when another object points at one. Immutable like the summaries holding it.
+ */
+@Value
+public class UserRef {
+    Long id;
+    String username;
+
+    @JsonCreator
+    public UserRef(@JsonProperty("id") Long id, @JsonProperty("username") String username) {
+        this.id = id;
+        this.username = username;
+    }
+
+    public static UserRef of(Long id, String username) {
+        return id == null ? null : new UserRef(id, username);
+    }
+}
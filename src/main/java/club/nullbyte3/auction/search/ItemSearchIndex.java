@@ -0,0 +1,414 @@
+package club.nullbyte3.auction.search;
+
+import club.nullbyte3.auction.model.ItemSummary;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Inverted index over the names and descriptions of every item, for /item/search. Items are numbered in the order
+ * they are added and every term keeps the sorted numbers of the items it occurs in, together with the fields.
+ * <p>
+ * Query words are matched as prefixes, a word of at least MIN_PREFIX characters also finds the first
+ * auction.search.maxExpansions terms starting with it. Every word has to match, the score adds up per word
+ * whether it matched a whole term or a prefix, in the name or the description.
+ * <p>
+ * The text of an item never changes once it is created. The status and current price of every item are kept in
+ * plain arrays next to the postings, so filtering a million matches doesn't touch a million summaries. Updates to
+ * those only take the read lock, a search running at the same time may see the value from just before.
+ */
+public class ItemSearchIndex {
+
+    private static final int MAX_EXPANSIONS = Integer.getInteger("auction.search.maxExpansions", 64);
+    private static final int MIN_PREFIX = 2;
+    private static final int MAX_TOKEN_LENGTH = 32;
+    private static final byte NAME = 1;
+    private static final byte DESCRIPTION = 2;
+    // Items per chunk when building, each chunk is tokenized by a thread of its own.
+    private static final int BUILD_CHUNK = 10_000;
+
+    // Adding items takes the write lock, searching and updating the summary of a known item the read lock.
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+    private final Map<Long, Integer> docs = new HashMap<>();
+    private AtomicReferenceArray<ItemSummary> summaries = new AtomicReferenceArray<>(1024);
+    private byte[] statuses = new byte[1024];
+    // Doubles are exact enough to filter on, the summaries that are returned have the real price.
+    private double[] prices = new double[1024];
+    private int docCount;
+
+    /**
+     * Tokenizes the items in parallel chunks. Merging the chunks in order keeps every posting list sorted.
+     */
+    public static ItemSearchIndex build(List<ItemSummary> items) {
+        ItemSearchIndex index = new ItemSearchIndex();
+        int chunks = (items.size() + BUILD_CHUNK - 1) / BUILD_CHUNK;
+        List<Map<String, Postings>> partials = IntStream.range(0, chunks).parallel()
+                .mapToObj(chunk -> {
+                    Map<String, Postings> partial = new HashMap<>();
+                    int end = Math.min(items.size(), (chunk + 1) * BUILD_CHUNK);
+                    for (int doc = chunk * BUILD_CHUNK; doc < end; doc++) {
+                        addTerms(partial, doc, items.get(doc));
+                    }
+                    return partial;
+                })
+                .collect(Collectors.toList());
+        index.grow(Math.max(1024, items.size() * 2));
+        for (int doc = 0; doc < items.size(); doc++) {
+            index.set(doc, items.get(doc));
+            index.docs.put(items.get(doc).getId(), doc);
+        }
+        index.docCount = items.size();
+        for (Map<String, Postings> partial : partials) {
+            partial.forEach((term, postings) -> index.terms.merge(term, postings, Postings::append));
+        }
+        return index;
+    }
+
+    /**
+     * Adds a new item, or replaces the summary of one that is already indexed.
+     */
+    public void put(ItemSummary summary) {
+        lock.readLock().lock();
+        try {
+            Integer doc = docs.get(summary.getId());
+            if (doc != null) {
+                set(doc, summary);
+                return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        Map<String, Postings> added = new HashMap<>();
+        lock.writeLock().lock();
+        try {
+            Integer doc = docs.get(summary.getId());
+            if (doc != null) {
+                set(doc, summary);
+                return;
+            }
+            if (docCount == statuses.length) {
+                grow(docCount * 2);
+            }
+            int newDoc = docCount++;
+            set(newDoc, summary);
+            docs.put(summary.getId(), newDoc);
+            addTerms(added, newDoc, summary);
+            added.forEach((term, postings) -> terms.merge(term, postings, Postings::append));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return docCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Result search(SearchQuery query) {
+        List<String> words = new ArrayList<>(new LinkedHashSet<>(tokenize(query.getText())));
+        if (words.isEmpty()) {
+            return new Result(0, Collections.emptyList());
+        }
+        lock.readLock().lock();
+        try {
+            List<List<Match>> expanded = new ArrayList<>(words.size());
+            // The best score an item could get, once the results are full of those nothing else can get in.
+            int maxScore = 0;
+            for (String word : words) {
+                List<Match> matches = expand(word);
+                if (matches.isEmpty()) {
+                    return new Result(0, Collections.emptyList());
+                }
+                expanded.add(matches);
+                maxScore += score((byte) (NAME | DESCRIPTION), matches.stream().anyMatch(match -> match.exact));
+            }
+            // Start from the rarest word, the others then only narrow it down.
+            expanded.sort(Comparator.comparingLong(ItemSearchIndex::cost));
+            Hits hits = filter(collect(expanded.get(0)), query);
+            for (int i = 1; i < expanded.size() && hits.size > 0; i++) {
+                hits = narrow(hits, expanded.get(i));
+            }
+            return rank(hits, query.getLimit(), maxScore);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Lower case words of letters and digits, accents stripped.
+    static List<String> tokenize(String text) {
+        if (text == null || text.isEmpty()) {
+            return Collections.emptyList();
+        }
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFD).toLowerCase(Locale.ROOT);
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i <= normalized.length(); i++) {
+            char c = i < normalized.length() ? normalized.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (token.length() < MAX_TOKEN_LENGTH) token.append(c);
+            } else if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                // What is left of an accent after NFD, the letter it was on is kept.
+            } else if (token.length() > 0) {
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        return tokens;
+    }
+
+    // Called with the write lock held.
+    private void grow(int capacity) {
+        AtomicReferenceArray<ItemSummary> grown = new AtomicReferenceArray<>(capacity);
+        for (int i = 0; i < docCount; i++) {
+            grown.set(i, summaries.get(i));
+        }
+        summaries = grown;
+        statuses = Arrays.copyOf(statuses, capacity);
+        prices = Arrays.copyOf(prices, capacity);
+    }
+
+    private void set(int doc, ItemSummary summary) {
+        statuses[doc] = (byte) (summary.getStatus() == null ? -1 : summary.getStatus().ordinal());
+        prices[doc] = summary.getCurrentPrice() == null ? 0 : summary.getCurrentPrice().doubleValue();
+        summaries.set(doc, summary);
+    }
+
+    private static void addTerms(Map<String, Postings> target, int doc, ItemSummary summary) {
+        Map<String, Byte> fields = new LinkedHashMap<>();
+        for (String token : tokenize(summary.getItemName())) {
+            fields.merge(token, NAME, (a, b) -> (byte) (a | b));
+        }
+        for (String token : tokenize(summary.getItemDescription())) {
+            fields.merge(token, DESCRIPTION, (a, b) -> (byte) (a | b));
+        }
+        fields.forEach((term, field) -> target.computeIfAbsent(term, t -> new Postings()).add(doc, field));
+    }
+
+    // Called with the lock held.
+    private List<Match> expand(String word) {
+        List<Match> matches = new ArrayList<>();
+        if (word.length() < MIN_PREFIX) {
+            Postings exact = terms.get(word);
+            if (exact != null) matches.add(new Match(exact, true));
+            return matches;
+        }
+        for (Map.Entry<String, Postings> entry : terms.tailMap(word, true).entrySet()) {
+            if (!entry.getKey().startsWith(word) || matches.size() == MAX_EXPANSIONS) break;
+            matches.add(new Match(entry.getValue(), entry.getKey().length() == word.length()));
+        }
+        return matches;
+    }
+
+    private static long cost(List<Match> matches) {
+        long cost = 0;
+        for (Match match : matches) {
+            cost += match.postings.size;
+        }
+        return cost;
+    }
+
+    private static int score(byte fields, boolean exact) {
+        int score = 0;
+        if ((fields & NAME) != 0) score += exact ? 8 : 4;
+        if ((fields & DESCRIPTION) != 0) score += exact ? 2 : 1;
+        return score;
+    }
+
+    // Every item one of the matches occurs in, with the best score among them.
+    private static Hits collect(List<Match> matches) {
+        if (matches.size() == 1) {
+            // A single term is already in doc order, it can be used as it is.
+            return new Hits(matches.get(0));
+        }
+        long[] packed = new long[(int) cost(matches)];
+        int n = 0;
+        for (Match match : matches) {
+            Postings postings = match.postings;
+            for (int i = 0; i < postings.size; i++) {
+                packed[n++] = ((long) postings.docs[i] << 32) | score(postings.fields[i], match.exact);
+            }
+        }
+        Arrays.sort(packed);
+        Hits hits = new Hits(packed.length);
+        for (int i = 0; i < packed.length; i++) {
+            // Sorted by doc and then score, so the last one of a doc has its best score.
+            if (i + 1 < packed.length && (packed[i + 1] >>> 32) == (packed[i] >>> 32)) continue;
+            hits.add((int) (packed[i] >>> 32), (int) packed[i]);
+        }
+        return hits;
+    }
+
+    // Keeps the hits the matches occur in as well, adding up the scores.
+    private static Hits narrow(Hits hits, List<Match> matches) {
+        long cost = cost(matches);
+        if ((long) hits.size * matches.size() * 20 < cost) {
+            // Few hits left, looking them up is cheaper than walking the postings.
+            Hits narrowed = new Hits(hits.size);
+            for (int i = 0; i < hits.size; i++) {
+                int best = 0;
+                for (Match match : matches) {
+                    byte fields = match.postings.find(hits.docs[i]);
+                    if (fields != 0) best = Math.max(best, score(fields, match.exact));
+                }
+                if (best > 0) narrowed.add(hits.docs[i], hits.score(i) + best);
+            }
+            return narrowed;
+        }
+        Hits other = collect(matches);
+        Hits narrowed = new Hits(Math.min(hits.size, other.size));
+        int a = 0;
+        int b = 0;
+        while (a < hits.size && b < other.size) {
+            if (hits.docs[a] < other.docs[b]) {
+                a++;
+            } else if (hits.docs[a] > other.docs[b]) {
+                b++;
+            } else {
+                narrowed.add(hits.docs[a], hits.score(a++) + other.score(b++));
+            }
+        }
+        return narrowed;
+    }
+
+    // Called with the lock held. Done on the hits of the rarest word, so the other words have less to narrow down.
+    private Hits filter(Hits hits, SearchQuery query) {
+        int status = query.getStatus() == null ? -1 : query.getStatus().ordinal();
+        if (status < 0 && query.getMinPrice() == null && query.getMaxPrice() == null) {
+            return hits;
+        }
+        double minPrice = query.getMinPrice() == null ? Double.NEGATIVE_INFINITY : query.getMinPrice().doubleValue();
+        double maxPrice = query.getMaxPrice() == null ? Double.POSITIVE_INFINITY : query.getMaxPrice().doubleValue();
+        Hits filtered = new Hits(hits.size);
+        for (int i = 0; i < hits.size; i++) {
+            int doc = hits.docs[i];
+            if ((status < 0 || statuses[doc] == status) && prices[doc] >= minPrice && prices[doc] <= maxPrice) {
+                filtered.add(doc, hits.score(i));
+            }
+        }
+        return filtered;
+    }
+
+    // Called with the lock held. Best score first, among equal scores the ones indexed last, so the newest items.
+    private Result rank(Hits hits, int limit, int maxScore) {
+        // The worst of the best so far on top, as [score, doc].
+        Comparator<long[]> worstFirst = Comparator.<long[]>comparingLong(e -> e[0]).thenComparingLong(e -> e[1]);
+        PriorityQueue<long[]> best = new PriorityQueue<>(limit + 1, worstFirst);
+        // Newest first, so a later hit only gets in with a higher score.
+        for (int i = hits.size - 1; i >= 0; i--) {
+            int doc = hits.docs[i];
+            int score = hits.score(i);
+            if (best.size() == limit) {
+                if (score <= best.peek()[0]) continue;
+                best.poll();
+            }
+            best.add(new long[]{score, doc});
+            if (best.size() == limit && best.peek()[0] == maxScore) break;
+        }
+        ItemSummary[] items = new ItemSummary[best.size()];
+        for (int i = items.length - 1; i >= 0; i--) {
+            items[i] = summaries.get((int) best.poll()[1]);
+        }
+        return new Result(hits.size, Arrays.asList(items));
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Result {
+        // Every match that passed the filter, not just the ones returned.
+        private final int total;
+        private final List<ItemSummary> items;
+    }
+
+    @AllArgsConstructor
+    private static class Match {
+        private final Postings postings;
+        // Matched the whole term, not just its start.
+        private final boolean exact;
+    }
+
+    // Item numbers in ascending order, and in which fields the term occurs.
+    private static class Postings {
+        private int[] docs = new int[4];
+        private byte[] fields = new byte[4];
+        private int size;
+
+        private void add(int doc, byte field) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                fields = Arrays.copyOf(fields, size * 2);
+            }
+            docs[size] = doc;
+            fields[size++] = field;
+        }
+
+        // Only ever with postings of later items.
+        private Postings append(Postings later) {
+            for (int i = 0; i < later.size; i++) {
+                add(later.docs[i], later.fields[i]);
+            }
+            return this;
+        }
+
+        private byte find(int doc) {
+            int i = Arrays.binarySearch(docs, 0, size, doc);
+            return i >= 0 ? fields[i] : 0;
+        }
+    }
+
+    // Items in doc order with their scores, or a view of the postings of one term, scored as they are read.
+    private static class Hits {
+        private final int[] docs;
+        private final int[] scores;
+        private final byte[] fields;
+        private final boolean exact;
+        private int size;
+
+        private Hits(int capacity) {
+            docs = new int[capacity];
+            scores = new int[capacity];
+            fields = null;
+            exact = false;
+        }
+
+        // Only valid while the read lock is held, the postings may grow after that.
+        private Hits(Match match) {
+            docs = match.postings.docs;
+            scores = null;
+            fields = match.postings.fields;
+            exact = match.exact;
+            size = match.postings.size;
+        }
+
+        private int score(int i) {
+            return scores != null ? scores[i] : ItemSearchIndex.score(fields[i], exact);
+        }
+
+        private void add(int doc, int score) {
+            docs[size] = doc;
+            scores[size++] = score;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package club.nullbyte3.auction.search;
+
+import club.nullbyte3.auction.model.ItemStatus;
+import lombok.Builder;
+import lombok.Getter;
+
+import java.math.BigDecimal;
+
+/**
+ * What to look for in the {@link ItemSearchIndex}. Only the text is required, the price bounds are on the current
+ * price and inclusive.
+ */
+@Getter
+@Builder
+public class SearchQuery {
+    private final String text;
+    private final ItemStatus status;
+    private final BigDecimal minPrice;
+    private final BigDecimal maxPrice;
+    @Builder.Default
+    private final int limit = 20;
+}
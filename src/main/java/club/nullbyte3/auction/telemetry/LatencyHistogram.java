@@ -0,0 +1,109 @@
+package club.nullbyte3.auction.telemetry;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock-free latency histogram. Values go into log-linear buckets, 16 per power of two, so a quantile is off by
+ * at most ~6%. Recording is two adder increments and one atomic increment, no allocation.
+ * <p>
+ * Quantiles cover the last one to two windows (auction.metrics.windowSec), so they follow the current load
+ * instead of averaging over the whole uptime. The count and sum are kept since start, as Prometheus expects.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+    private static final long WINDOW_NANOS = Long.getLong("auction.metrics.windowSec", 60) * 1_000_000_000L;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+    private final Window[] windows = {new Window(), new Window()};
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        count.increment();
+        sumNanos.add(nanos);
+        long epoch = System.nanoTime() / WINDOW_NANOS;
+        Window window = windows[(int) (epoch & 1)];
+        if (window.epoch != epoch) {
+            window.reset(epoch);
+        }
+        window.counts.incrementAndGet(index(nanos));
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSumNanos() {
+        return sumNanos.sum();
+    }
+
+    /**
+     * @param quantiles Between 0 and 1, in ascending order.
+     * @return The value at each quantile in nanos, 0 when nothing was recorded lately.
+     */
+    public long[] quantiles(double... quantiles) {
+        long epoch = System.nanoTime() / WINDOW_NANOS;
+        long[] merged = new long[BUCKETS];
+        long total = 0;
+        for (Window window : windows) {
+            if (epoch - window.epoch > 1) continue;
+            for (int i = 0; i < BUCKETS; i++) {
+                long bucket = window.counts.get(i);
+                merged[i] += bucket;
+                total += bucket;
+            }
+        }
+
+        long[] values = new long[quantiles.length];
+        if (total == 0) return values;
+        long seen = 0;
+        int q = 0;
+        for (int i = 0; i < BUCKETS && q < quantiles.length; i++) {
+            seen += merged[i];
+            while (q < quantiles.length && seen >= Math.ceil(quantiles[q] * total) && seen > 0) {
+                // The middle of the bucket.
+                values[q++] = (lowerBound(i) + lowerBound(i + 1) - 1) / 2;
+            }
+        }
+        return values;
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long lowerBound(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    }
+
+    private static final class Window {
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile long epoch = -2;
+
+        // Samples recorded by other threads while the window is cleared may be lost, which is fine for metrics.
+        private void reset(long newEpoch) {
+            lock.lock();
+            try {
+                if (epoch == newEpoch) return;
+                for (int i = 0; i < BUCKETS; i++) {
+                    counts.set(i, 0);
+                }
+                epoch = newEpoch;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package club.nullbyte3.auction.telemetry;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+import lombok.Getter;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * What the connection pool and the queries running on it are doing: how long callers wait for a connection, how
+ * long they hold it, the pool's active/idle counts and the latency of every distinct statement.
+ * Everything is counted with adders, so recording never contends between threads.
+ * <p>
+ * For /metrics, statements are also grouped by verb and table ("select items", "insert bids"), which keeps the
+ * label set small no matter how many distinct statements there are.
+ */
+public class PoolTelemetry implements MetricsTrackerFactory {
+
+    // A statement built by string concatenation would otherwise add an entry per call.
+    private static final int MAX_STATEMENTS = 500;
+    private static final String OTHER = "(other)";
+    private static final int MAX_LABELS = 64;
+    // The first table a statement reads from, writes into or updates, after an optional schema and quotes.
+    private static final Pattern TABLE = Pattern.compile("\\b(?:from|into|update)\\s+(?:\\w+\\.)?\"?(\\w+)",
+            Pattern.CASE_INSENSITIVE);
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder acquireNanos = new LongAdder();
+    private final AtomicLong maxAcquireNanos = new AtomicLong();
+    private final LongAdder usageMillis = new LongAdder();
+    @Getter
+    private final LatencyHistogram usage = new LatencyHistogram();
+    private final LongAdder timeouts = new LongAdder();
+    private final Map<String, QueryTiming> queries = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> queryLatency = new ConcurrentHashMap<>();
+    private volatile PoolStats poolStats;
+
+    @Override
+    public IMetricsTracker create(String poolName, PoolStats poolStats) {
+        this.poolStats = poolStats;
+        return new IMetricsTracker() {
+            @Override
+            public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+                acquisitions.increment();
+                acquireNanos.add(elapsedAcquiredNanos);
+                maxAcquireNanos.accumulateAndGet(elapsedAcquiredNanos, Math::max);
+            }
+
+            @Override
+            public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+                usageMillis.add(elapsedBorrowedMillis);
+                usage.record(TimeUnit.MILLISECONDS.toNanos(elapsedBorrowedMillis));
+            }
+
+            @Override
+            public void recordConnectionTimeout() {
+                timeouts.increment();
+            }
+        };
+    }
+
+    public void recordQuery(String sql, long nanos) {
+        QueryTiming timing = queries.get(sql);
+        if (timing == null) {
+            String key = queries.size() < MAX_STATEMENTS ? sql : OTHER;
+            timing = queries.computeIfAbsent(key, QueryTiming::new);
+        }
+        timing.record(nanos);
+        LatencyHistogram latency = queryLatency.get(timing.getLabel());
+        if (latency == null) {
+            String key = queryLatency.size() < MAX_LABELS ? timing.getLabel() : OTHER;
+            latency = queryLatency.computeIfAbsent(key, ignored -> new LatencyHistogram());
+        }
+        latency.record(nanos);
+    }
+
+    /**
+     * "select items", "insert bids", just the verb for statements without a table, like "select 1".
+     */
+    static String label(String sql) {
+        String trimmed = sql.stripLeading();
+        int end = 0;
+        while (end < trimmed.length() && Character.isLetter(trimmed.charAt(end))) {
+            end++;
+        }
+        String verb = end == 0 ? "other" : trimmed.substring(0, end).toLowerCase(Locale.ROOT);
+        Matcher table = TABLE.matcher(trimmed);
+        return table.find() ? verb + " " + table.group(1).toLowerCase(Locale.ROOT) : verb;
+    }
+
+    public long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    public long getAcquireNanos() {
+        return acquireNanos.sum();
+    }
+
+    public long getMaxAcquireNanos() {
+        return maxAcquireNanos.get();
+    }
+
+    public long getUsageMillis() {
+        return usageMillis.sum();
+    }
+
+    // Callers that gave up after auction.db.connectionTimeoutMs without getting a connection.
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public int getActiveConnections() {
+        return poolStats != null ? poolStats.getActiveConnections() : 0;
+    }
+
+    public int getIdleConnections() {
+        return poolStats != null ? poolStats.getIdleConnections() : 0;
+    }
+
+    public int getTotalConnections() {
+        return poolStats != null ? poolStats.getTotalConnections() : 0;
+    }
+
+    public int getMaxConnections() {
+        return poolStats != null ? poolStats.getMaxConnections() : 0;
+    }
+
+    // Threads waiting for a connection right now.
+    public int getPendingThreads() {
+        return poolStats != null ? poolStats.getPendingThreads() : 0;
+    }
+
+    public Collection<QueryTiming> getQueries() {
+        return queries.values();
+    }
+
+    // Latency by statement label, at most MAX_LABELS of them plus OTHER.
+    public Map<String, LatencyHistogram> getQueryLatency() {
+        return queryLatency;
+    }
+}
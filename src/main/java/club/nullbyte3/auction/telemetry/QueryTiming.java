@@ -0,0 +1,44 @@
+package club.nullbyte3.auction.telemetry;
+
+import lombok.Getter;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency of one distinct SQL statement.
+ */
+public class QueryTiming {
+
+    @Getter
+    private final String sql;
+    // What it is exported under on /metrics, see PoolTelemetry.label.
+    @Getter
+    private final String label;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    QueryTiming(String sql) {
+        this.sql = sql;
+        this.label = PoolTelemetry.label(sql);
+    }
+
+    void record(long nanos) {
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+}
@@ -0,0 +1,134 @@
+package club.nullbyte3.auction.telemetry;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.logging.Logger;
+
+/**
+ * Hands out connections whose statements time every execute call and report it to {@link PoolTelemetry},
+ * keyed by the statement's SQL. Hibernate and our own JDBC batches both go through here.
+ */
+public class TimedDataSource implements DataSource {
+
+    private final DataSource delegate;
+    private final PoolTelemetry telemetry;
+
+    public TimedDataSource(DataSource delegate, PoolTelemetry telemetry) {
+        this.delegate = delegate;
+        this.telemetry = telemetry;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return wrap(delegate.getConnection());
+    }
+
+    // Hibernate passes on the user from hibernate.cfg.xml, the pool is already logged in as that user.
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return getConnection();
+    }
+
+    private Connection wrap(Connection connection) {
+        return proxy(Connection.class, connection, (method, args) -> {
+            Object result = invoke(connection, method, args);
+            if (method.getName().equals("prepareStatement")) {
+                String sql = (String) args[0];
+                PreparedStatement statement = (PreparedStatement) result;
+                // A prepared statement always runs the SQL it was prepared with.
+                return proxy(PreparedStatement.class, statement, (stmtMethod, stmtArgs) -> time(statement, stmtMethod, stmtArgs, sql));
+            }
+            if (method.getName().equals("createStatement")) {
+                Statement statement = (Statement) result;
+                return proxy(Statement.class, statement, (stmtMethod, stmtArgs) -> time(statement, stmtMethod, stmtArgs, "(batch)"));
+            }
+            return result;
+        });
+    }
+
+    /**
+     * @param sql What an execute call without SQL of its own runs.
+     */
+    private Object time(Statement statement, Method method, Object[] args, String sql) throws Throwable {
+        if (!method.getName().startsWith("execute")) {
+            return invoke(statement, method, args);
+        }
+        if (args != null && args[0] instanceof String) {
+            sql = (String) args[0];
+        }
+        long start = System.nanoTime();
+        try {
+            return invoke(statement, method, args);
+        } finally {
+            telemetry.recordQuery(sql, System.nanoTime() - start);
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private interface Handler {
+        Object handle(Method method, Object[] args) throws Throwable;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, T target, Handler handler) {
+        InvocationHandler invocationHandler = (proxy, method, args) -> {
+            // unwrap() has to reach the driver's own classes, not our proxy.
+            if (method.getName().equals("unwrap") || method.getName().equals("isWrapperFor")) {
+                return invoke(target, method, args);
+            }
+            return handler.handle(method, args);
+        };
+        return (T) Proxy.newProxyInstance(TimedDataSource.class.getClassLoader(), new Class<?>[]{type}, invocationHandler);
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return delegate.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        delegate.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        delegate.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return delegate.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return delegate.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return iface.isInstance(this) ? iface.cast(this) : delegate.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || delegate.isWrapperFor(iface);
+    }
+}
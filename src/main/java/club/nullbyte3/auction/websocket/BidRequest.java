@@ -7,5 +7,9 @@ import java.math.BigDecimal;
 @Data
 public class BidRequest {
     private String authtoken;
+    // The live item to bid on, the longest running one when left out.
+    private Long itemId;
     private BigDecimal price;
+    // A proxy bid: the most the bidder would pay, kept hidden and bid up to as others bid.
+    private BigDecimal maxPrice;
 }
@@ -13,4 +13,5 @@ public class BidResponse {
     private BigDecimal price;
     private String bidder;
     private Long bidderId;
+    private Long itemId;
 }
@@ -8,5 +8,6 @@ import lombok.NoArgsConstructor;
 @AllArgsConstructor
 @NoArgsConstructor
 public class BidsResponse {
+    private Long itemId;
     private BidResponse[] bids;
 }
@@ -0,0 +1,199 @@
+package club.nullbyte3.auction.websocket;
+
+import club.nullbyte3.auction.model.ItemSummary;
+import club.nullbyte3.auction.model.UserRef;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+
+/**
+ * The compact form of the broadcast subjects, for sockets that connect with ?encoding=binary.
+ * A frame is one tag byte, the seq, and then the fields of that subject in the order listed below. The seq is
+ * the same as the JSON "seq", 0 on frames that only go to one socket (current_bids and session).
+ * <ul>
+ *     <li>id, count: unsigned varint (LEB128), 0 for a missing id</li>
+ *     <li>price: zigzag varint of the unscaled value, then zigzag varint of the scale</li>
+ *     <li>time: unsigned varint of epoch milliseconds, 0 for none</li>
+ *     <li>string: unsigned varint of the UTF-8 length plus one, 0 for null, then the bytes</li>
+ *     <li>user: id, string username</li>
+ * </ul>
+ * price_update (1): itemId, price, bidderId, bidder<br>
+ * timer_update (2): itemId, endAt<br>
+ * new_auction (3), auction_end (4): the same ItemSummary as the JSON, id, itemName, itemImage, itemDescription,
+ * itemPrice, bidIncrement, seller, winner, createdAt, endAt, one byte active, one byte status (the ItemStatus
+ * ordinal), currentPrice, bidCount, leader<br>
+ * current_bids (5): itemId, count, then count times price, bidderId, bidder<br>
+ * session (6): string stream, seq of the last broadcast before this socket attached, one byte resumed
+ * <p>
+ * Every method returns null when a value doesn't fit, the frame then only goes out as JSON.
+ */
+public final class BinaryCodec {
+
+    public static final byte PRICE_UPDATE = 1;
+    public static final byte TIMER_UPDATE = 2;
+    public static final byte NEW_AUCTION = 3;
+    public static final byte AUCTION_END = 4;
+    public static final byte CURRENT_BIDS = 5;
+    public static final byte SESSION = 6;
+
+    private BinaryCodec() {
+    }
+
+    public static byte[] priceUpdate(BidResponse bid) {
+        Writer out = new Writer(32, PRICE_UPDATE);
+        out.id(bid.getItemId());
+        if (!out.price(bid.getPrice())) return null;
+        out.id(bid.getBidderId());
+        out.string(bid.getBidder());
+        return out.toBytes();
+    }
+
+    public static byte[] timerUpdate(long itemId, LocalDateTime endAt) {
+        Writer out = new Writer(16, TIMER_UPDATE);
+        out.id(itemId);
+        out.time(endAt);
+        return out.toBytes();
+    }
+
+    public static byte[] newAuction(ItemSummary item) {
+        return item(NEW_AUCTION, item);
+    }
+
+    public static byte[] auctionEnd(ItemSummary item) {
+        return item(AUCTION_END, item);
+    }
+
+    public static byte[] currentBids(BidsResponse response) {
+        BidResponse[] bids = response.getBids();
+        Writer out = new Writer(16 + bids.length * 24, CURRENT_BIDS);
+        out.id(response.getItemId());
+        out.varint(bids.length);
+        for (BidResponse bid : bids) {
+            if (!out.price(bid.getPrice())) return null;
+            out.id(bid.getBidderId());
+            out.string(bid.getBidder());
+        }
+        return out.toBytes();
+    }
+
+    public static byte[] session(String stream, long seq, boolean resumed) {
+        Writer out = new Writer(32, SESSION);
+        out.string(stream);
+        out.varint(seq);
+        out.write(resumed ? 1 : 0);
+        return out.toBytes();
+    }
+
+    // Replaces the 0 seq of an encoded frame.
+    public static byte[] withSequence(ByteBuffer frame, long seq) {
+        Writer out = new Writer(frame.remaining() + 8, frame.get(0), seq);
+        // The placeholder is the single byte after the tag.
+        out.bytes(frame.position(frame.position() + 2));
+        return out.toBytes();
+    }
+
+    private static byte[] item(byte tag, ItemSummary item) {
+        Writer out = new Writer(128, tag);
+        out.id(item.getId());
+        out.string(item.getItemName());
+        out.string(item.getItemImage());
+        out.string(item.getItemDescription());
+        if (!out.price(item.getItemPrice()) || !out.price(item.getBidIncrement())) return null;
+        out.user(item.getSeller());
+        out.user(item.getWinner());
+        out.time(item.getCreatedAt());
+        out.time(item.getEndAt());
+        out.write(item.isActive() ? 1 : 0);
+        out.write(item.getStatus().ordinal());
+        if (!out.price(item.getCurrentPrice())) return null;
+        out.varint(item.getBidCount());
+        out.user(item.getLeader());
+        return out.toBytes();
+    }
+
+    private static final class Writer {
+        private byte[] buf;
+        private int pos;
+
+        private Writer(int sizeHint, byte tag) {
+            this(sizeHint, tag, 0);
+        }
+
+        private Writer(int sizeHint, byte tag, long seq) {
+            buf = new byte[sizeHint];
+            write(tag);
+            varint(seq);
+        }
+
+        private void write(int b) {
+            if (pos == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            buf[pos++] = (byte) b;
+        }
+
+        private void varint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        private void zigzag(long value) {
+            varint((value << 1) ^ (value >> 63));
+        }
+
+        private void id(Long id) {
+            varint(id == null ? 0 : id);
+        }
+
+        private boolean price(BigDecimal price) {
+            if (price == null || price.unscaledValue().bitLength() > 63) return false;
+            zigzag(price.unscaledValue().longValue());
+            zigzag(price.scale());
+            return true;
+        }
+
+        private void time(LocalDateTime time) {
+            varint(time == null ? 0 : time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        }
+
+        private void string(String value) {
+            if (value == null) {
+                write(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length + 1L);
+            bytes(ByteBuffer.wrap(bytes));
+        }
+
+        private void bytes(ByteBuffer bytes) {
+            int length = bytes.remaining();
+            if (buf.length - pos < length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + length));
+            }
+            bytes.get(buf, pos, length);
+            pos += length;
+        }
+
+        private void user(UserRef user) {
+            if (user == null) {
+                write(0);
+                write(0);
+                return;
+            }
+            id(user.getId());
+            string(user.getUsername());
+        }
+
+        private byte[] toBytes() {
+            return Arrays.copyOf(buf, pos);
+        }
+    }
+}
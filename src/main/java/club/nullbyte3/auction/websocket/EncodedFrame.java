@@ -0,0 +1,153 @@
+package club.nullbyte3.auction.websocket;
+
+import io.javalin.websocket.WsContext;
+import lombok.Getter;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.websocket.common.WebSocketSession;
+import org.eclipse.jetty.websocket.core.Frame;
+import org.eclipse.jetty.websocket.core.OpCode;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/**
+ * A frame that is serialized and encoded exactly once, no matter how many sockets it is sent to.
+ * Every send gets its own view of the same read-only buffer.
+ * <p>
+ * Broadcast subjects can carry a {@link BinaryCodec} form as well, which is what binary sockets get. Their JSON
+ * can be left to be rendered on first use, so it costs nothing while only binary sockets are listening.
+ */
+public final class EncodedFrame {
+
+    // The WsMessage subject, or null for plain replies.
+    @Getter
+    private final String subject;
+    // The item the frame is about, null when it isn't about one.
+    @Getter
+    private final Long itemId;
+    // The ReplayWindow seq of a broadcast, 0 for everything else.
+    @Getter
+    private final long seq;
+    private final Supplier<String> render;
+    private final ByteBuffer binary;
+    // Set together on first use, payload before text.
+    private volatile String text;
+    private volatile ByteBuffer payload;
+
+    private EncodedFrame(String subject, Long itemId, long seq, Supplier<String> render, byte[] binary) {
+        this.subject = subject;
+        this.itemId = itemId;
+        this.seq = seq;
+        this.render = render;
+        this.binary = binary == null ? null : ByteBuffer.wrap(binary).asReadOnlyBuffer();
+    }
+
+    public static EncodedFrame of(String text) {
+        return of(null, text, null);
+    }
+
+    public static EncodedFrame of(String subject, String text) {
+        return of(subject, text, null);
+    }
+
+    public static EncodedFrame of(String subject, String text, byte[] binary) {
+        return of(subject, null, text, binary);
+    }
+
+    public static EncodedFrame of(String subject, Long itemId, String text, byte[] binary) {
+        EncodedFrame frame = new EncodedFrame(subject, itemId, 0, null, binary);
+        frame.setText(text);
+        return frame;
+    }
+
+    // The JSON is only rendered when a JSON socket or the bus asks for it, at most once.
+    public static EncodedFrame deferred(String subject, Long itemId, Supplier<String> text, byte[] binary) {
+        return deferred(subject, itemId, 0, text, binary);
+    }
+
+    public static EncodedFrame deferred(String subject, Long itemId, long seq, Supplier<String> text, byte[] binary) {
+        return new EncodedFrame(subject, itemId, seq, text, binary);
+    }
+
+    /**
+     * Builds the same JSON as {@link WsMessage} would, around a payload that is already serialized.
+     */
+    public static EncodedFrame wrap(String subject, String payloadJson) {
+        return wrap(subject, payloadJson, null);
+    }
+
+    public static EncodedFrame wrap(String subject, String payloadJson, byte[] binary) {
+        return wrap(subject, null, payloadJson, binary);
+    }
+
+    public static EncodedFrame wrap(String subject, Long itemId, String payloadJson, byte[] binary) {
+        return of(subject, itemId, "{\"subject\":\"" + subject + "\",\"payload\":" + payloadJson + "}", binary);
+    }
+
+    public String getText() {
+        String current = text;
+        if (current == null) {
+            // Two threads may both render it, they get the same string.
+            current = render.get();
+            setText(current);
+        }
+        return current;
+    }
+
+    // A view of the encoded bytes, for writers other than Jetty.
+    public ByteBuffer getPayload() {
+        if (payload == null) {
+            getText();
+        }
+        return payload.slice();
+    }
+
+    // A view of the binary form, null when the subject doesn't have one.
+    public ByteBuffer getBinary() {
+        return binary == null ? null : binary.slice();
+    }
+
+    /**
+     * @return Whether a newer frame with the same subject and item makes this one useless.
+     */
+    public boolean isConflatable() {
+        return "price_update".equals(subject) || "timer_update".equals(subject);
+    }
+
+    // Whether this frame makes the older one useless, it has to be the same kind of update of the same item.
+    public boolean supersedes(EncodedFrame older) {
+        return isConflatable() && subject.equals(older.subject) && Objects.equals(itemId, older.itemId);
+    }
+
+    /**
+     * @param preferBinary Whether the socket negotiated binary, frames without a binary form still go out as JSON.
+     */
+    public void sendAsync(WsContext ctx, Callback callback, boolean preferBinary) {
+        boolean asBinary = preferBinary && binary != null;
+        if (!(ctx.session instanceof WebSocketSession)) {
+            try {
+                if (asBinary) {
+                    ctx.send(binary.slice());
+                } else {
+                    ctx.send(getText());
+                }
+                callback.succeeded();
+            } catch (Exception e) {
+                callback.failed(e);
+            }
+            return;
+        }
+        // Skip the per-send string encoding of RemoteEndpoint.sendString and hand the shared bytes to Jetty.
+        Frame frame = asBinary
+                ? new Frame(OpCode.BINARY).setPayload(binary.slice())
+                : new Frame(OpCode.TEXT).setPayload(getPayload());
+        ((WebSocketSession) ctx.session).getCoreSession().sendFrame(frame, callback, false);
+    }
+
+    private void setText(String text) {
+        this.payload = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        this.text = text;
+    }
+}
@@ -0,0 +1,9 @@
+package club.nullbyte3.auction.websocket;
+
+import lombok.Data;
+
+@Data
+public class ItemRequest {
+    // The live item to look at, the longest running one when left out.
+    private Long itemId;
+}
@@ -0,0 +1,163 @@
+package club.nullbyte3.auction.websocket;
+
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Numbers every broadcast this node delivers and keeps the last auction.ws.replayWindow of them, so a socket that
+ * reconnects with ?resume=stream:seq is only sent what it missed, instead of the full snapshot.
+ * <p>
+ * The lock only covers numbering and keeping a frame, and taking a new socket's place in the window. Fanning out,
+ * replaying and building the snapshot happen outside of it, so a reconnect storm doesn't hold up the broadcasts.
+ * Whichever broadcaster gets to fan out sends every frame numbered so far in seq order, the others don't wait.
+ * A new socket drops the broadcasts up to its place, its replay or snapshot covers those, and holds back the
+ * later ones until that is queued, see {@link Subscriber}.
+ * <p>
+ * Gaps are normal, subscribers conflate price and timer updates. The stream id is new on every start and differs
+ * per node, a seq from another node or an earlier run always gets a snapshot.
+ */
+public class ReplayWindow {
+
+    private final int capacity = Integer.getInteger("auction.ws.replayWindow", 4096);
+    @Getter
+    private final String stream = Long.toHexString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE);
+    private final SubscriberRegistry registry;
+    private final EncodedFrame[] frames = new EncodedFrame[capacity];
+    private final ReentrantLock lock = new ReentrantLock();
+    // Held by the thread that fans out, never while holding lock.
+    private final ReentrantLock fanOut = new ReentrantLock();
+    private final LongAdder resumes = new LongAdder();
+    private final LongAdder snapshots = new LongAdder();
+    private long lastSeq;
+    // The last seq that went out to the subscribers, only advanced with both locks held.
+    private long fannedOut;
+
+    public ReplayWindow(SubscriberRegistry registry) {
+        this.registry = registry;
+    }
+
+    public void broadcast(EncodedFrame frame) {
+        lock.lock();
+        try {
+            long seq = ++lastSeq;
+            frames[(int) (seq % capacity)] = sequence(frame, seq);
+        } finally {
+            lock.unlock();
+        }
+        // A frame numbered after the last look but before the unlock would be stranded, so look again.
+        while (fanOut.tryLock()) {
+            try {
+                EncodedFrame next;
+                while ((next = nextToFanOut()) != null) {
+                    registry.broadcast(next);
+                }
+            } finally {
+                fanOut.unlock();
+            }
+            if (!hasUnsent()) return;
+        }
+    }
+
+    /**
+     * Sends the session frame, then either the frames after the client's last seq or, when those aren't all
+     * kept any more, whatever snapshot sends, and registers the subscriber for broadcasts. Only taking its place
+     * in the window happens under the lock, the snapshot runs outside of it.
+     *
+     * @param resume The client's "stream:seq", null for a new client.
+     */
+    public void attach(Subscriber subscriber, String resume, Runnable snapshot) {
+        long since;
+        long upTo;
+        EncodedFrame[] missed = null;
+        lock.lock();
+        try {
+            since = resumableFrom(resume);
+            upTo = lastSeq;
+            if (since >= 0) {
+                missed = new EncodedFrame[(int) (upTo - since)];
+                for (long seq = since + 1; seq <= upTo; seq++) {
+                    missed[(int) (seq - since - 1)] = frames[(int) (seq % capacity)];
+                }
+            }
+            subscriber.attaching(upTo);
+            registry.register(subscriber);
+        } finally {
+            lock.unlock();
+        }
+        subscriber.offer(sessionFrame(upTo, missed != null));
+        if (missed != null) {
+            resumes.increment();
+            for (EncodedFrame frame : missed) {
+                subscriber.replay(frame);
+            }
+        } else {
+            snapshots.increment();
+            snapshot.run();
+        }
+        subscriber.attached();
+    }
+
+    public long getResumes() {
+        return resumes.sum();
+    }
+
+    public long getSnapshots() {
+        return snapshots.sum();
+    }
+
+    // Called with the lock held. The client's last seq, or -1 when it has to start over.
+    private long resumableFrom(String resume) {
+        if (resume == null) return -1;
+        int colon = resume.lastIndexOf(':');
+        if (colon < 0 || !stream.equals(resume.substring(0, colon))) return -1;
+        long since;
+        try {
+            since = Long.parseLong(resume.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        long oldestKept = Math.max(1, lastSeq - capacity + 1);
+        return since > lastSeq || since < oldestKept - 1 ? -1 : since;
+    }
+
+    // Called with the fan-out lock held. Null once everything numbered went out.
+    private EncodedFrame nextToFanOut() {
+        lock.lock();
+        try {
+            while (fannedOut < lastSeq) {
+                EncodedFrame frame = frames[(int) (++fannedOut % capacity)];
+                // Lapped by capacity newer frames before it went out, sockets resume past it or get a snapshot.
+                if (frame.getSeq() == fannedOut) return frame;
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean hasUnsent() {
+        lock.lock();
+        try {
+            return fannedOut < lastSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private EncodedFrame sessionFrame(long seq, boolean resumed) {
+        String json = "{\"subject\":\"session\",\"payload\":{\"stream\":\"" + stream + "\",\"seq\":" + seq
+                + ",\"resumed\":" + resumed + "}}";
+        return EncodedFrame.of("session", json, BinaryCodec.session(stream, seq, resumed));
+    }
+
+    private static EncodedFrame sequence(EncodedFrame frame, long seq) {
+        ByteBuffer binary = frame.getBinary();
+        // The seq goes in front, so the JSON is still only rendered once somebody needs it.
+        return EncodedFrame.deferred(frame.getSubject(), frame.getItemId(), seq, () -> "{\"seq\":" + seq + "," + frame.getText().substring(1),
+                binary == null ? null : BinaryCodec.withSequence(binary, seq));
+    }
+}
@@ -0,0 +1,9 @@
+package club.nullbyte3.auction.websocket;
+
+// What to do with a subscriber whose outbound queue stays over the high-water mark.
+public enum SlowConsumerPolicy {
+    // Close the socket, the client reconnects and gets a fresh snapshot.
+    DISCONNECT,
+    // Keep the socket but hold back its price and timer updates until it caught up, it is only closed once its queue is full.
+    DOWNGRADE
+}
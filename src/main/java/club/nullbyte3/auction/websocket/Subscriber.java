@@ -0,0 +1,294 @@
+package club.nullbyte3.auction.websocket;
+
+import io.javalin.websocket.WsContext;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.eclipse.jetty.util.Callback;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One connected socket and its outbound queue. Offering a frame never blocks: frames are queued and
+ * written one after another through Jetty's async send, so a slow client only ever delays itself.
+ */
+@Slf4j
+public class Subscriber {
+
+    @Getter
+    private final WsContext ctx;
+    private final SubscriberRegistry registry;
+    // Negotiated at connect, broadcasts that have a binary form are sent as that.
+    @Getter
+    private final boolean binary;
+    private final Deque<EncodedFrame> queue = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private boolean writing;
+    private boolean closed;
+    // When the queue first went over the high-water mark, 0 while it is below.
+    private long overHighWaterSince;
+    @Getter
+    private volatile boolean degraded;
+    // While degraded, the latest price and timer update of every item, sent once the socket caught up.
+    private final Map<String, EncodedFrame> held = new LinkedHashMap<>();
+    // Broadcasts up to this seq reach the socket through its replay or snapshot, see ReplayWindow#attach.
+    private long resumePoint;
+    // Broadcasts past it that came in while the replay or snapshot was still being queued, null after that.
+    private List<EncodedFrame> early;
+    // The bids this socket may still send right now, set on connect.
+    @Getter
+    @Setter
+    private volatile TokenBucket bidBucket;
+
+    Subscriber(WsContext ctx, SubscriberRegistry registry, boolean binary) {
+        this.ctx = ctx;
+        this.registry = registry;
+        this.binary = binary;
+    }
+
+    public String getSessionId() {
+        return ctx.sessionId();
+    }
+
+    public void offer(EncodedFrame frame) {
+        offer(frame, false);
+    }
+
+    // Frames of the replay are broadcasts up to the resume point, they go through all the same.
+    void replay(EncodedFrame frame) {
+        offer(frame, true);
+    }
+
+    // Called with the window's lock held, before the subscriber is registered for broadcasts.
+    void attaching(long resumePoint) {
+        lock.lock();
+        try {
+            this.resumePoint = resumePoint;
+            this.early = new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called once the session frame and the replay or snapshot are queued. Queues the broadcasts that came in
+     * meanwhile, in the order they came, the ones that come in while doing so are queued after them.
+     */
+    void attached() {
+        while (true) {
+            List<EncodedFrame> batch;
+            lock.lock();
+            try {
+                if (early == null || early.isEmpty()) {
+                    early = null;
+                    return;
+                }
+                batch = early;
+                early = new ArrayList<>();
+            } finally {
+                lock.unlock();
+            }
+            batch.forEach(frame -> offer(frame, true));
+        }
+    }
+
+    private void offer(EncodedFrame frame, boolean attaching) {
+        SlowConsumerPolicy violated = null;
+        boolean startWriting = false;
+        lock.lock();
+        try {
+            if (closed || frame == null) return;
+            if (!attaching && frame.getSeq() > 0) {
+                if (frame.getSeq() <= resumePoint) return;
+                if (early != null) {
+                    early.add(frame);
+                    return;
+                }
+            }
+            if (degraded && frame.isConflatable()) {
+                held.put(heldKey(frame), frame);
+                return;
+            }
+            if (degraded && frame.getItemId() != null) {
+                // An auction_end has to come after the last price of its item.
+                releaseHeld(frame.getItemId());
+            }
+            if (frame.isConflatable()) {
+                removeSuperseded(frame);
+            }
+            if (queue.size() >= registry.getCapacity()) {
+                // Even conflation couldn't keep up, there is nothing sensible left to do.
+                violated = SlowConsumerPolicy.DISCONNECT;
+            } else {
+                queue.addLast(frame);
+                violated = checkHighWater();
+                if (!writing) {
+                    writing = true;
+                    startWriting = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (violated == SlowConsumerPolicy.DISCONNECT) {
+            registry.slowConsumerDisconnected();
+            log.warn("WS: {} is too slow, disconnecting.", getSessionId());
+            close();
+            ctx.closeSession(1013, "Too slow, try again later.");
+            return;
+        }
+        if (startWriting) {
+            writeQueued();
+        }
+    }
+
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            queue.clear();
+            held.clear();
+            early = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held.
+    private SlowConsumerPolicy checkHighWater() {
+        if (queue.size() <= registry.getHighWaterMark()) {
+            overHighWaterSince = 0;
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (overHighWaterSince == 0) {
+            overHighWaterSince = now;
+            return null;
+        }
+        if (now - overHighWaterSince < registry.getHighWaterGraceMs()) {
+            return null;
+        }
+        if (registry.getPolicy() == SlowConsumerPolicy.DOWNGRADE) {
+            downgrade();
+            return null;
+        }
+        return SlowConsumerPolicy.DISCONNECT;
+    }
+
+    /**
+     * Called with the lock held. Price and timer updates stop being queued: they are held back, only the latest one
+     * of every item, until the queue is back under the high-water mark. Everything else (new auctions, ends,
+     * snapshots, replies) still goes through, and the socket is disconnected once even that fills the queue.
+     */
+    private void downgrade() {
+        if (!degraded) {
+            degraded = true;
+            registry.slowConsumerDowngraded();
+            log.warn("WS: {} is too slow, holding back its price and timer updates.", getSessionId());
+            Iterator<EncodedFrame> it = queue.iterator();
+            while (it.hasNext()) {
+                EncodedFrame queued = it.next();
+                if (queued.isConflatable()) {
+                    held.put(heldKey(queued), queued);
+                    it.remove();
+                }
+            }
+        }
+        overHighWaterSince = 0;
+    }
+
+    // Called with the lock held. Queues the held updates of that item, or of every item when null.
+    private void releaseHeld(Long itemId) {
+        Iterator<EncodedFrame> it = held.values().iterator();
+        while (it.hasNext()) {
+            EncodedFrame frame = it.next();
+            if (itemId == null || itemId.equals(frame.getItemId())) {
+                queue.addLast(frame);
+                it.remove();
+            }
+        }
+    }
+
+    private static String heldKey(EncodedFrame frame) {
+        return frame.getSubject() + ":" + frame.getItemId();
+    }
+
+    // Called with the lock held. There is at most one queued frame the new one supersedes, as every offer does this.
+    private void removeSuperseded(EncodedFrame frame) {
+        Iterator<EncodedFrame> it = queue.descendingIterator();
+        while (it.hasNext()) {
+            if (frame.supersedes(it.next())) {
+                it.remove();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes until the queue is empty. A write that completes inline just moves on to the next frame,
+     * a write that completes later resumes this loop from its callback, so the stack never grows.
+     */
+    private void writeQueued() {
+        while (true) {
+            EncodedFrame frame;
+            lock.lock();
+            try {
+                frame = closed ? null : queue.pollFirst();
+                if (frame == null) {
+                    writing = false;
+                    return;
+                }
+                if (queue.size() <= registry.getHighWaterMark()) {
+                    overHighWaterSince = 0;
+                    if (degraded) {
+                        degraded = false;
+                        releaseHeld(null);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            WriteCallback callback = new WriteCallback();
+            frame.sendAsync(ctx, callback, binary);
+            if (callback.returned.compareAndSet(false, true)) {
+                return; // Still in flight, the callback takes over.
+            }
+        }
+    }
+
+    private class WriteCallback implements Callback {
+        private final AtomicBoolean returned = new AtomicBoolean();
+
+        @Override
+        public void succeeded() {
+            if (!returned.compareAndSet(false, true)) {
+                writeQueued();
+            }
+        }
+
+        @Override
+        public void failed(Throwable x) {
+            log.debug("WS: {} failed to write, dropping its queue.", getSessionId(), x);
+            close();
+        }
+    }
+}
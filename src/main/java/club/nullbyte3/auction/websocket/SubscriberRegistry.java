@@ -0,0 +1,99 @@
+package club.nullbyte3.auction.websocket;
+
+import io.javalin.websocket.WsContext;
+import lombok.Getter;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * All connected sockets, keyed by session id. Safe to use from the Jetty threads and the bid sequencer at once.
+ */
+public class SubscriberRegistry {
+
+    @Getter
+    private final int capacity = Integer.getInteger("auction.ws.queueCapacity", 256);
+    @Getter
+    private final int highWaterMark = Integer.getInteger("auction.ws.highWaterMark", 64);
+    @Getter
+    private final long highWaterGraceMs = Long.getLong("auction.ws.highWaterGraceMs", 5000);
+    @Getter
+    private final SlowConsumerPolicy policy =
+            SlowConsumerPolicy.valueOf(System.getProperty("auction.ws.slowConsumerPolicy", "DISCONNECT"));
+
+    private final Map<String, Subscriber> subscribers = new ConcurrentHashMap<>();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder downgrades = new LongAdder();
+
+    // The subscriber is created before it is registered, so snapshot frames can be queued ahead of broadcasts.
+    public Subscriber create(WsContext ctx) {
+        return create(ctx, false);
+    }
+
+    public Subscriber create(WsContext ctx, boolean binary) {
+        return new Subscriber(ctx, this, binary);
+    }
+
+    public void register(Subscriber subscriber) {
+        subscribers.put(subscriber.getSessionId(), subscriber);
+    }
+
+    public Subscriber get(String sessionId) {
+        return subscribers.get(sessionId);
+    }
+
+    public void remove(String sessionId) {
+        Subscriber subscriber = subscribers.remove(sessionId);
+        if (subscriber != null) {
+            subscriber.close();
+        }
+    }
+
+    public void broadcast(EncodedFrame frame) {
+        for (Subscriber subscriber : subscribers.values()) {
+            subscriber.offer(frame);
+        }
+    }
+
+    public Collection<Subscriber> all() {
+        return subscribers.values();
+    }
+
+    public int size() {
+        return subscribers.size();
+    }
+
+    public long getTotalQueueDepth() {
+        long total = 0;
+        for (Subscriber subscriber : subscribers.values()) {
+            total += subscriber.getQueueDepth();
+        }
+        return total;
+    }
+
+    public int getMaxQueueDepth() {
+        int max = 0;
+        for (Subscriber subscriber : subscribers.values()) {
+            max = Math.max(max, subscriber.getQueueDepth());
+        }
+        return max;
+    }
+
+    public long getDisconnects() {
+        return disconnects.sum();
+    }
+
+    public long getDowngrades() {
+        return downgrades.sum();
+    }
+
+    void slowConsumerDisconnected() {
+        disconnects.increment();
+    }
+
+    void slowConsumerDowngraded() {
+        downgrades.increment();
+    }
+}
@@ -0,0 +1,13 @@
+package club.nullbyte3.auction.websocket;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class TimerUpdate {
+    private Long itemId;
+    private String endAt;
+}
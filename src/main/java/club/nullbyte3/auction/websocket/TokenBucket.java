@@ -0,0 +1,44 @@
+package club.nullbyte3.auction.websocket;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket kept as the single time at which it will be full again (GCRA), so taking a token is one CAS and
+ * never blocks. Times are System.nanoTime().
+ */
+public final class TokenBucket {
+
+    // A token comes back every interval, up to burst tokens can be taken at once.
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final AtomicLong fullAt;
+
+    public TokenBucket(double perSecond, int burst, long now) {
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / perSecond);
+        this.toleranceNanos = intervalNanos * (Math.max(1, burst) - 1);
+        this.fullAt = new AtomicLong(now);
+    }
+
+    /**
+     * @return 0 when a token was taken, otherwise how many nanos until the next one.
+     */
+    public long tryTake(long now) {
+        while (true) {
+            long current = fullAt.get();
+            long base = current - now > 0 ? current : now;
+            long wait = base - now - toleranceNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (fullAt.compareAndSet(current, base + intervalNanos)) {
+                return 0;
+            }
+        }
+    }
+
+    // A full bucket is the same as a new one, so it can be dropped without anybody noticing.
+    public boolean isFull(long now) {
+        return fullAt.get() - now <= 0;
+    }
+}
@@ -0,0 +1,10 @@
+-- Run once on databases from before messages were unique per language and key, before starting the new version.
+-- Of every duplicate, the newest message wins.
+BEGIN;
+
+DELETE FROM messages m USING messages newer
+WHERE m.language = newer.language AND m.message_key = newer.message_key AND m.id < newer.id;
+
+CREATE UNIQUE INDEX IF NOT EXISTS messages_language_key_uindex ON messages (language, message_key);
+
+COMMIT;
@@ -1,17 +1,82 @@
 package club.nullbyte3.auction;
 
+import club.nullbyte3.auction.bus.TcpEventBus;
+import club.nullbyte3.auction.db.Item;
+import club.nullbyte3.auction.db.User;
+import club.nullbyte3.auction.engine.AuctionEngine;
+import club.nullbyte3.auction.engine.BidResult;
+import club.nullbyte3.auction.engine.LiveAuction;
+import club.nullbyte3.auction.engine.OrderBook;
+import club.nullbyte3.auction.engine.TimingWheel;
+import club.nullbyte3.auction.impl.AuctionManager;
 import club.nullbyte3.auction.impl.AuthManager;
+import club.nullbyte3.auction.impl.BidManager;
+import club.nullbyte3.auction.impl.BidThrottle;
+import club.nullbyte3.auction.impl.DatabaseManager;
+import club.nullbyte3.auction.impl.ItemManager;
+import club.nullbyte3.auction.impl.ItemReadModel;
+import club.nullbyte3.auction.impl.MessageManager;
+import club.nullbyte3.auction.impl.MetricsManager;
+import club.nullbyte3.auction.impl.PasswordHasher;
+import club.nullbyte3.auction.impl.TokenCache;
+import club.nullbyte3.auction.model.ItemStatus;
+import club.nullbyte3.auction.model.ItemSummary;
+import club.nullbyte3.auction.model.UserRef;
+import club.nullbyte3.auction.websocket.BinaryCodec;
+import club.nullbyte3.auction.websocket.EncodedFrame;
+import club.nullbyte3.auction.websocket.ReplayWindow;
+import club.nullbyte3.auction.websocket.Subscriber;
+import club.nullbyte3.auction.websocket.SubscriberRegistry;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.javalin.Javalin;
+import io.javalin.websocket.WsContext;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
 import org.junit.jupiter.api.*;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -26,6 +91,7 @@ class MainTest {
             .build();
     private static final ObjectMapper objectMapper = new ObjectMapper();
     private static String authToken;
+    private static long itemId;
     private static String username = "testuser-" + UUID.randomUUID();
     private static String password = "password123";
 
@@ -100,8 +166,9 @@ class MainTest {
         HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
 
         assertEquals(201, response.statusCode());
-        long itemId = Long.parseLong(response.body());
+        itemId = Long.parseLong(response.body());
         assertTrue(itemId > 0);
+        assertFalse(getItem(itemId).path("createdAt").isNull(), "createdAt is missing from the listing");
     }
 
     @Test
@@ -187,4 +254,1271 @@ class MainTest {
         assertTrue(messages.has("test.key"));
         assertEquals("Test Value", messages.get("test.key").asText());
     }
+
+    @Test
+    @Order(7)
+    void testBid() throws Exception {
+        assertNotNull(authToken, "Auth token is null, login failed?");
+
+        BlockingQueue<String> frames = new LinkedBlockingQueue<>();
+        WebSocket ws = client.newWebSocketBuilder()
+                .buildAsync(URI.create(baseUrl.replace("http", "ws") + "/ws/bid"), new WebSocket.Listener() {
+                    @Override
+                    public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+                        frames.add(data.toString());
+                        webSocket.request(1);
+                        return null;
+                    }
+                }).get(10, TimeUnit.SECONDS);
+
+        JsonNode session = awaitFrame(frames, "session");
+        assertFalse(session.get("payload").get("resumed").asBoolean());
+        JsonNode currentItem = awaitFrame(frames, "current_item");
+        assertEquals("Test Item", currentItem.get("payload").get("itemName").asText());
+        // Only the public part of the seller.
+        assertEquals(username, currentItem.get("payload").get("seller").get("username").asText());
+        assertFalse(currentItem.get("payload").get("seller").has("passwordHash"));
+        assertFalse(currentItem.get("payload").get("seller").has("authToken"));
+
+        // A second socket that negotiated binary gets the same broadcast in the compact form.
+        BlockingQueue<ByteBuffer> binaryFrames = new LinkedBlockingQueue<>();
+        WebSocket binaryWs = client.newWebSocketBuilder()
+                .buildAsync(URI.create(baseUrl.replace("http", "ws") + "/ws/bid?encoding=binary"), new WebSocket.Listener() {
+                    @Override
+                    public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last) {
+                        binaryFrames.add(ByteBuffer.allocate(data.remaining()).put(data).flip());
+                        webSocket.request(1);
+                        return null;
+                    }
+                }).get(10, TimeUnit.SECONDS);
+        ByteBuffer binarySession = binaryFrames.poll(10, TimeUnit.SECONDS);
+        assertNotNull(binarySession, "No session on the binary socket");
+        assertEquals(BinaryCodec.SESSION, binarySession.get(0));
+        ByteBuffer currentBids = binaryFrames.poll(10, TimeUnit.SECONDS);
+        assertNotNull(currentBids, "No current_bids on the binary socket");
+        assertEquals(BinaryCodec.CURRENT_BIDS, currentBids.get(0));
+
+        ws.sendText("{\"subject\":\"bid\",\"payload\":{\"authtoken\":\"" + authToken + "\",\"itemId\":" + itemId + ",\"price\":100.99}}", true)
+                .get(10, TimeUnit.SECONDS);
+
+        JsonNode priceUpdate = awaitFrame(frames, "price_update");
+        assertEquals(0, priceUpdate.get("payload").get("price").decimalValue().compareTo(new BigDecimal("100.99")));
+        assertEquals(username, priceUpdate.get("payload").get("bidder").asText());
+        assertEquals(itemId, priceUpdate.get("payload").get("itemId").asLong());
+
+        // The timer_update of the same bid may come first.
+        ByteBuffer binaryUpdate;
+        do {
+            binaryUpdate = binaryFrames.poll(10, TimeUnit.SECONDS);
+            assertNotNull(binaryUpdate, "No price_update on the binary socket");
+        } while (binaryUpdate.get(0) != BinaryCodec.PRICE_UPDATE);
+        assertTrue(binaryUpdate.remaining() < priceUpdate.toString().length());
+        binaryWs.sendClose(WebSocket.NORMAL_CLOSURE, "").get(10, TimeUnit.SECONDS);
+
+        // Reconnecting with the seq from before the bid replays the bid instead of sending the snapshot again.
+        long seq = priceUpdate.get("seq").asLong();
+        BlockingQueue<String> resumedFrames = new LinkedBlockingQueue<>();
+        WebSocket resumedWs = client.newWebSocketBuilder()
+                .buildAsync(URI.create(baseUrl.replace("http", "ws") + "/ws/bid?resume="
+                        + session.get("payload").get("stream").asText() + ":" + (seq - 1)), new WebSocket.Listener() {
+                    @Override
+                    public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+                        resumedFrames.add(data.toString());
+                        webSocket.request(1);
+                        return null;
+                    }
+                }).get(10, TimeUnit.SECONDS);
+        assertTrue(objectMapper.readTree(resumedFrames.poll(10, TimeUnit.SECONDS)).get("payload").get("resumed").asBoolean());
+        JsonNode replayed = objectMapper.readTree(resumedFrames.poll(10, TimeUnit.SECONDS));
+        assertEquals("price_update", replayed.get("subject").asText());
+        assertEquals(seq, replayed.get("seq").asLong());
+        resumedWs.sendClose(WebSocket.NORMAL_CLOSURE, "").get(10, TimeUnit.SECONDS);
+
+        // The read model is updated before the broadcast goes out.
+        HttpResponse<String> itemResponse = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/item/" + itemId)).GET().build(), HttpResponse.BodyHandlers.ofString());
+        JsonNode item = objectMapper.readTree(itemResponse.body());
+        assertEquals("LIVE", item.get("status").asText());
+        assertEquals(1, item.get("bidCount").asLong());
+        assertEquals(0, item.get("currentPrice").decimalValue().compareTo(new BigDecimal("100.99")));
+        assertEquals(username, item.get("leader").get("username").asText());
+        ws.sendClose(WebSocket.NORMAL_CLOSURE, "").get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    @Order(8)
+    void testTcpEventBus() throws Exception {
+        BlockingQueue<EncodedFrame> received = new LinkedBlockingQueue<>();
+        TcpEventBus nodeB = new TcpEventBus("127.0.0.1", 0, "bus-secret", List.of());
+        nodeB.start(received::add);
+        List<InetSocketAddress> toB = List.of(InetSocketAddress.createUnresolved("127.0.0.1", nodeB.getPort()));
+        TcpEventBus nodeA = new TcpEventBus("127.0.0.1", 0, "bus-secret", toB);
+        nodeA.start(frame -> { });
+        TcpEventBus intruder = new TcpEventBus("127.0.0.1", 0, "wrong-secret", toB);
+        intruder.start(frame -> { });
+        try {
+            EncodedFrame sent = EncodedFrame.wrap("price_update", 1L, "{\"itemId\":1,\"price\":\"12.50\"}", new byte[]{1, 1, 2});
+            // The outgoing connection is made in the background, keep publishing until it is up.
+            EncodedFrame frame = null;
+            for (int i = 0; i < 50 && frame == null; i++) {
+                nodeA.publish(sent);
+                frame = received.poll(200, TimeUnit.MILLISECONDS);
+            }
+            assertNotNull(frame, "Node B never received the frame");
+            assertEquals("price_update", frame.getSubject());
+            assertEquals(1L, frame.getItemId());
+            assertEquals(sent.getText(), frame.getText());
+            assertEquals(sent.getBinary(), frame.getBinary());
+
+            // A node without the secret is dropped after the handshake, none of its frames get through.
+            for (int i = 0; i < 10; i++) {
+                intruder.publish(sent);
+                assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+            }
+
+            // So is a peer that knows the secret but sends a length that doesn't fit in a frame.
+            try (Socket socket = new Socket("127.0.0.1", nodeB.getPort())) {
+                socket.setSoTimeout(10_000);
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                byte[] challenge = new byte[16];
+                in.readFully(challenge);
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec("bus-secret".getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.write(mac.doFinal(challenge));
+                out.writeUTF("price_update");
+                out.writeLong(1);
+                out.writeInt(Integer.MAX_VALUE);
+                out.flush();
+                assertEquals(-1, in.read());
+            }
+            assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+        } finally {
+            intruder.stop();
+            nodeA.stop();
+            nodeB.stop();
+        }
+    }
+
+    @Test
+    @Order(9)
+    void testMetrics() throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/metrics")).GET().build(), HttpResponse.BodyHandlers.ofString());
+
+        assertEquals(200, response.statusCode());
+        assertTrue(response.body().contains("auction_http_request_seconds_count{route=\"GET /item\"}"));
+        assertTrue(response.body().contains("auction_ws_message_seconds_count{subject=\"bid\"} 1"));
+        assertTrue(response.body().contains("auction_bid_broadcast_seconds_count 1"));
+        assertFalse(response.body().contains("auction_auth_hash_seconds_count 0\n"));
+        // Statements by verb and table, never the SQL itself.
+        assertTrue(response.body().contains("auction_db_query_seconds{query=\"insert items\",quantile=\"0.99\"}"));
+        assertTrue(response.body().contains("auction_db_query_seconds_count{query=\"select items\"}"));
+        assertFalse(response.body().contains("item0_"));
+        assertTrue(response.body().contains("auction_db_pool_usage_seconds{quantile=\"0.5\"}"));
+        assertTrue(response.body().contains("\nauction_db_pool_usage_seconds_count "));
+
+        // With a token configured, scrapers have to send it.
+        System.setProperty("auction.metrics.token", "scrape-token");
+        MetricsManager protectedMetrics;
+        try {
+            protectedMetrics = new MetricsManager();
+        } finally {
+            System.clearProperty("auction.metrics.token");
+        }
+        protectedMetrics.setInstance(app);
+        Javalin server = Javalin.create().get("/metrics", protectedMetrics::getMetrics).start(0);
+        try {
+            String url = "http://localhost:" + server.port() + "/metrics";
+            assertEquals(401, client.send(HttpRequest.newBuilder().uri(URI.create(url)).GET().build(),
+                    HttpResponse.BodyHandlers.ofString()).statusCode());
+            assertEquals(401, client.send(HttpRequest.newBuilder().uri(URI.create(url)).header("Authorization", "Bearer wrong")
+                    .GET().build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+            HttpResponse<String> scraped = client.send(HttpRequest.newBuilder().uri(URI.create(url))
+                    .header("Authorization", "Bearer scrape-token").GET().build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, scraped.statusCode());
+            assertTrue(scraped.body().contains("auction_db_pool_max_connections"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    @Order(10)
+    void testSearchItems() throws IOException, InterruptedException {
+        // Prefixes of the description, the newest of the equally good matches comes first.
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/item/search?q=iran%20NUK&status=live")).GET().build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode());
+        JsonNode items = objectMapper.readTree(response.body());
+        assertEquals(itemId, items.get(0).get("id").asLong());
+        assertTrue(Long.parseLong(response.headers().firstValue("X-Total-Count").orElseThrow()) >= 1);
+
+        response = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/item/search?q=test&max_price=0")).GET().build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals("0", response.headers().firstValue("X-Total-Count").orElseThrow());
+
+        response = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/item/search?q=test&status=sold")).GET().build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(400, response.statusCode());
+    }
+
+    @Test
+    @Order(11)
+    void testTokenCache() throws Exception {
+        // A cache of its own, so the TTLs are short enough to see them run out.
+        System.setProperty("auction.tokens.ttlSeconds", "1");
+        System.setProperty("auction.tokens.negativeTtlSeconds", "1");
+        TokenCache cache = new TokenCache();
+        System.clearProperty("auction.tokens.ttlSeconds");
+        System.clearProperty("auction.tokens.negativeTtlSeconds");
+        cache.setInstance(app);
+        cache.enable();
+
+        // Miss, then hit.
+        assertEquals(username, cache.lookup(authToken).getUsername());
+        assertEquals(username, cache.lookup(authToken).getUsername());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+        // Unknown tokens are cached as well.
+        String unknown = UUID.randomUUID().toString();
+        assertNull(cache.lookup(unknown));
+        assertNull(cache.lookup(unknown));
+        assertEquals(2, cache.getMisses());
+        assertEquals(2, cache.getHits());
+
+        // Both run out after their TTL.
+        Thread.sleep(1100);
+        assertEquals(username, cache.lookup(authToken).getUsername());
+        assertNull(cache.lookup(unknown));
+        assertEquals(4, cache.getMisses());
+
+        // Cold misses on the same token at the same time share one query.
+        String cold = UUID.randomUUID().toString();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService callers = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<User>> lookups = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                lookups.add(callers.submit(() -> {
+                    start.await();
+                    return cache.lookup(cold);
+                }));
+            }
+            start.countDown();
+            for (Future<User> lookup : lookups) {
+                assertNull(lookup.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+        assertEquals(5, cache.getMisses());
+        assertEquals(15, cache.getHits() - 2 + cache.getCoalesced());
+    }
+
+    @Test
+    @Order(12)
+    void testSlowSubscriberConflation() throws Exception {
+        StalledSocket socket = new StalledSocket("slow-conflation");
+        Subscriber subscriber = new SubscriberRegistry().create(socket.ctx);
+        Thread writer = socket.stallOn(subscriber, EncodedFrame.of("first"));
+
+        // Two live items whose updates interleave, and a new auction in between.
+        subscriber.offer(update("price_update", 1, "10"));
+        subscriber.offer(update("price_update", 2, "20"));
+        subscriber.offer(update("timer_update", 1, "a"));
+        subscriber.offer(update("price_update", 1, "11"));
+        subscriber.offer(EncodedFrame.wrap("new_auction", 3L, "{\"id\":3}", null));
+        subscriber.offer(update("timer_update", 2, "b"));
+        subscriber.offer(update("price_update", 2, "21"));
+        subscriber.offer(update("timer_update", 1, "c"));
+        assertEquals(5, subscriber.getQueueDepth());
+
+        socket.release();
+        writer.join(10_000);
+        // The latest update of each kind for each item, in the order they were last updated, nothing else dropped.
+        assertEquals(List.of("first", "price_update 1 11", "{\"subject\":\"new_auction\",\"payload\":{\"id\":3}}",
+                "timer_update 2 b", "price_update 2 21", "timer_update 1 c"), socket.sent);
+    }
+
+    @Test
+    @Order(13)
+    void testSlowConsumerPolicies() throws Exception {
+        // Disconnected as soon as it stays over the high-water mark, nothing is queued for it after that.
+        SubscriberRegistry disconnecting = slowConsumerRegistry("DISCONNECT", 8);
+        StalledSocket socket = new StalledSocket("slow-disconnect");
+        Subscriber subscriber = disconnecting.create(socket.ctx);
+        Thread writer = socket.stallOn(subscriber, EncodedFrame.of("first"));
+        for (int i = 0; i < 4; i++) {
+            subscriber.offer(EncodedFrame.of("reply " + i));
+        }
+        assertTrue(socket.closed.await(10, TimeUnit.SECONDS), "The slow socket wasn't closed");
+        assertEquals(1, disconnecting.getDisconnects());
+        subscriber.offer(EncodedFrame.of("late"));
+        assertEquals(0, subscriber.getQueueDepth());
+        socket.release();
+        writer.join(10_000);
+        assertEquals(List.of("first"), socket.sent);
+
+        // Downgraded instead, its price and timer updates are held back and only the latest of each is sent.
+        SubscriberRegistry downgrading = slowConsumerRegistry("DOWNGRADE", 6);
+        socket = new StalledSocket("slow-downgrade");
+        subscriber = downgrading.create(socket.ctx);
+        writer = socket.stallOn(subscriber, EncodedFrame.of("first"));
+        subscriber.offer(EncodedFrame.of("reply 0"));
+        subscriber.offer(EncodedFrame.of("reply 1"));
+        subscriber.offer(update("price_update", 1, "0"));
+        subscriber.offer(EncodedFrame.of("reply 2"));
+        assertTrue(subscriber.isDegraded());
+        assertEquals(1, downgrading.getDowngrades());
+        // The queued price update was taken out, and nothing of the flood gets queued.
+        assertEquals(3, subscriber.getQueueDepth());
+        for (int i = 1; i < 100; i++) {
+            subscriber.offer(update("price_update", 1, String.valueOf(i)));
+            subscriber.offer(update("price_update", 2, String.valueOf(i)));
+            subscriber.offer(update("timer_update", 2, String.valueOf(i)));
+        }
+        assertEquals(3, subscriber.getQueueDepth());
+        // The end of an item still goes out, after its last price.
+        subscriber.offer(EncodedFrame.wrap("auction_end", 1L, "{\"id\":1}", null));
+        assertEquals(5, subscriber.getQueueDepth());
+        socket.release();
+        writer.join(10_000);
+        // Back under the mark, the rest of the held updates follow.
+        assertEquals(List.of("first", "reply 0", "reply 1", "reply 2", "price_update 1 99",
+                "{\"subject\":\"auction_end\",\"payload\":{\"id\":1}}", "price_update 2 99", "timer_update 2 99"),
+                socket.sent);
+        assertFalse(subscriber.isDegraded());
+        assertEquals(1, socket.closed.getCount());
+
+        // Still disconnected once even that doesn't fit any more.
+        socket = new StalledSocket("slow-full");
+        subscriber = downgrading.create(socket.ctx);
+        writer = socket.stallOn(subscriber, EncodedFrame.of("first"));
+        for (int i = 0; i < 7; i++) {
+            subscriber.offer(EncodedFrame.of("reply " + i));
+        }
+        assertTrue(socket.closed.await(10, TimeUnit.SECONDS), "The full socket wasn't closed");
+        assertEquals(1, downgrading.getDisconnects());
+        socket.release();
+        writer.join(10_000);
+    }
+
+    @Test
+    @Order(14)
+    void testTimingWheel() throws Exception {
+        // 8 buckets of 1ms, so anything past 8ms is more than one rotation out.
+        BlockingQueue<String> fired = new LinkedBlockingQueue<>();
+        Map<String, Long> firedAt = new ConcurrentHashMap<>();
+        TimingWheel<String> wheel = new TimingWheel<>("test-wheel", 1, 8, expired -> {
+            long now = System.nanoTime();
+            for (String payload : expired) {
+                firedAt.put(payload, now);
+                fired.add(payload);
+            }
+        });
+        try {
+            // Fire in deadline order, whatever order they were scheduled in.
+            long start = System.nanoTime();
+            TimingWheel<String>.Timeout far = wheel.schedule("far", 150, TimeUnit.MILLISECONDS);
+            wheel.schedule("second", 40, TimeUnit.MILLISECONDS);
+            wheel.schedule("first", 20, TimeUnit.MILLISECONDS);
+            TimingWheel<String>.Timeout cancelled = wheel.schedule("cancelled", 30, TimeUnit.MILLISECONDS);
+            cancelled.cancel();
+            assertFalse(cancelled.extend(1, TimeUnit.SECONDS));
+
+            assertEquals("first", fired.poll(5, TimeUnit.SECONDS));
+            assertEquals("second", fired.poll(5, TimeUnit.SECONDS));
+            assertFalse(far.isExpired());
+            assertEquals("far", fired.poll(5, TimeUnit.SECONDS));
+            assertTrue(firedAt.get("far") - start >= TimeUnit.MILLISECONDS.toNanos(150));
+            assertTrue(far.isExpired());
+            assertFalse(far.extend(1, TimeUnit.SECONDS));
+            assertFalse(firedAt.containsKey("cancelled"));
+
+            // An extended timer fires at its new deadline, not the old one, and a shorter one is ignored.
+            TimingWheel<String>.Timeout extended = wheel.schedule("extended", 20, TimeUnit.MILLISECONDS);
+            long extendedAt = System.nanoTime();
+            assertTrue(extended.extend(100, TimeUnit.MILLISECONDS));
+            assertTrue(extended.extend(1, TimeUnit.MILLISECONDS));
+            assertEquals("extended", fired.poll(5, TimeUnit.SECONDS));
+            assertTrue(firedAt.get("extended") - extendedAt >= TimeUnit.MILLISECONDS.toNanos(100));
+
+            // Extending right as they are due: either the extension wins and the timer waits for it,
+            // or it already fired and extend says so. Never both.
+            int count = 500;
+            List<TimingWheel<String>.Timeout> racing = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                racing.add(wheel.schedule("race-" + i, 5, TimeUnit.MILLISECONDS));
+            }
+            Thread.sleep(4);
+            Map<String, Long> extendedFrom = new HashMap<>();
+            for (TimingWheel<String>.Timeout timeout : racing) {
+                long before = System.nanoTime();
+                if (timeout.extend(50, TimeUnit.MILLISECONDS)) {
+                    extendedFrom.put(timeout.getPayload(), before);
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                assertNotNull(fired.poll(5, TimeUnit.SECONDS));
+            }
+            assertNull(fired.poll(50, TimeUnit.MILLISECONDS));
+            for (Map.Entry<String, Long> entry : extendedFrom.entrySet()) {
+                assertTrue(firedAt.get(entry.getKey()) - entry.getValue() >= TimeUnit.MILLISECONDS.toNanos(50),
+                        entry.getKey() + " fired before its extended deadline");
+            }
+        } finally {
+            wheel.stop();
+        }
+    }
+
+    @Test
+    @Order(15)
+    void testRestart() throws Exception {
+        long restartedId = createItem(authToken, "Restart Item", "10.00");
+        BlockingQueue<String> frames = new LinkedBlockingQueue<>();
+        WebSocket ws = openSocket(baseUrl, frames);
+        awaitFrame(frames, "session");
+        bid(ws, authToken, restartedId, "11.00");
+        JsonNode priceUpdate = awaitFrame(frames, "price_update");
+        assertEquals(restartedId, priceUpdate.get("payload").get("itemId").asLong());
+        ws.sendClose(WebSocket.NORMAL_CLOSURE, "").get(10, TimeUnit.SECONDS);
+        JsonNode before = getItem(restartedId);
+        assertEquals("LIVE", before.get("status").asText());
+
+        // Saved without going through the auction manager, like the items from before the journal existed.
+        Item unjournaled = new Item();
+        unjournaled.setItemName("Unjournaled Item");
+        unjournaled.setItemPrice(new BigDecimal("5.00"));
+        unjournaled.setBidIncrement(new BigDecimal("1.00"));
+        try (org.hibernate.Session session = app.getModule(DatabaseManager.class).getSessionFactory().openSession()) {
+            session.beginTransaction();
+            session.save(unjournaled);
+            session.getTransaction().commit();
+        }
+
+        app.shutdown();
+        app = new Application();
+        app.start(0);
+        baseUrl = "http://localhost:" + app.getApp().port();
+
+        // Same auction, same price and leader, same deadline.
+        JsonNode after = getItem(restartedId);
+        assertEquals("LIVE", after.get("status").asText());
+        assertEquals(0, after.get("currentPrice").decimalValue().compareTo(new BigDecimal("11.00")));
+        assertEquals(1, after.get("bidCount").asLong());
+        assertEquals(username, after.get("leader").get("username").asText());
+        assertEquals(before.get("endAt"), after.get("endAt"));
+        LiveAuction live = app.getModule(AuctionManager.class).getLiveItem(restartedId);
+        assertNotNull(live);
+        assertTrue(live.getDeadline().remaining(TimeUnit.SECONDS) > 0);
+
+        // Picked up from the database and queued, or live already if a slot was free.
+        String status = getItem(unjournaled.getId()).get("status").asText();
+        assertTrue(status.equals("LIVE") || status.equals("QUEUED"), status);
+    }
+
+    @Test
+    @Order(16)
+    void testTwoNodes() throws Exception {
+        int engineBus = freePort();
+        int edgeBus = freePort();
+        app.shutdown();
+        app = startNode(engineBus, edgeBus, true);
+        baseUrl = "http://localhost:" + app.getApp().port();
+        Application edge = startNode(edgeBus, engineBus, false);
+        String edgeUrl = "http://localhost:" + edge.getApp().port();
+        try {
+            long clusteredId = createItem(authToken, "Clustered Item", "20.00");
+            assertNotNull(app.getModule(AuctionManager.class).getLiveItem(clusteredId));
+            assertTrue(edge.getModule(AuctionManager.class).getLiveItems().isEmpty());
+            // The engine catches the edge up once the bus connection is up, created before it or not.
+            String status = null;
+            for (int i = 0; i < 100 && !"LIVE".equals(status); i++) {
+                HttpResponse<String> response = client.send(HttpRequest.newBuilder()
+                        .uri(URI.create(edgeUrl + "/item/" + clusteredId)).GET().build(), HttpResponse.BodyHandlers.ofString());
+                status = response.statusCode() == 200 ? objectMapper.readTree(response.body()).get("status").asText() : null;
+                Thread.sleep(100);
+            }
+            assertEquals("LIVE", status);
+
+            BlockingQueue<String> engineFrames = new LinkedBlockingQueue<>();
+            WebSocket engineWs = openSocket(baseUrl, engineFrames);
+            BlockingQueue<String> edgeFrames = new LinkedBlockingQueue<>();
+            WebSocket edgeWs = openSocket(edgeUrl, edgeFrames);
+            awaitFrame(edgeFrames, "session");
+
+            // Bids on the engine node reach the edge's sockets.
+            JsonNode update = null;
+            int price = 20;
+            while (update == null && price < 40) {
+                bid(engineWs, authToken, clusteredId, ++price + ".00");
+                awaitFrame(engineFrames, "price_update");
+                update = pollFrame(edgeFrames, "price_update", 500);
+            }
+            assertNotNull(update, "The edge node never got the price update");
+            assertEquals(clusteredId, update.get("payload").get("itemId").asLong());
+            assertEquals(0, update.get("payload").get("price").decimalValue().compareTo(new BigDecimal(price + ".00")));
+
+            // A bid on the edge node is placed on the engine's book, both nodes broadcast it.
+            BigDecimal edgeBid = new BigDecimal((price + 1) + ".00");
+            bid(edgeWs, authToken, clusteredId, edgeBid.toPlainString());
+            assertEquals(0, awaitFrame(edgeFrames, "price_update").get("payload").get("price").decimalValue().compareTo(edgeBid));
+            assertEquals(0, awaitFrame(engineFrames, "price_update").get("payload").get("price").decimalValue().compareTo(edgeBid));
+            assertTrue(edge.getModule(AuctionManager.class).getLiveItems().isEmpty());
+            // Both read models took it, the edge's from the broadcast.
+            assertEquals(0, getItem(clusteredId).get("currentPrice").decimalValue().compareTo(edgeBid));
+            JsonNode edgeItem = getItem(edgeUrl, clusteredId);
+            assertEquals(0, edgeItem.get("currentPrice").decimalValue().compareTo(edgeBid));
+            assertEquals(getItem(clusteredId).get("bidCount").asLong(), edgeItem.get("bidCount").asLong());
+            assertEquals(getItem(clusteredId).get("leader"), edgeItem.get("leader"));
+            engineWs.sendClose(WebSocket.NORMAL_CLOSURE, "").get(10, TimeUnit.SECONDS);
+            edgeWs.sendClose(WebSocket.NORMAL_CLOSURE, "").get(10, TimeUnit.SECONDS);
+
+            // Items created on the edge node are created by the engine node, and are on both nodes once it answered.
+            String name = "Edgecreated" + UUID.randomUUID().toString().substring(0, 8);
+            HttpResponse<String> created = client.send(HttpRequest.newBuilder()
+                    .uri(URI.create(edgeUrl + "/item"))
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString("auth_token=" + authToken
+                            + "&item_name=" + name + "&item_price=1.00&bid_increment=1.00"))
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(201, created.statusCode());
+            long edgeId = Long.parseLong(created.body());
+            assertEquals(name, getItem(edgeUrl, edgeId).get("itemName").asText());
+            assertEquals(name, getItem(edgeId).get("itemName").asText());
+            HttpResponse<String> found = client.send(HttpRequest.newBuilder()
+                    .uri(URI.create(edgeUrl + "/item/search?q=" + name)).GET().build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, found.statusCode());
+            assertEquals(edgeId, objectMapper.readTree(found.body()).get(0).get("id").asLong());
+            HttpResponse<String> rejected = client.send(HttpRequest.newBuilder()
+                    .uri(URI.create(edgeUrl + "/item"))
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString("auth_token=invalid&item_name=x&item_price=1.00&bid_increment=1.00"))
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(401, rejected.statusCode());
+            assertEquals("Invalid auth token.", rejected.body());
+
+            // A message created on one node shows up in the other node's catalog as well.
+            String value = "Clustered " + UUID.randomUUID();
+            assertEquals(201, createMessage("cluster.key", value).statusCode());
+            JsonNode messages = null;
+            for (int i = 0; i < 50; i++) {
+                messages = objectMapper.readTree(client.send(HttpRequest.newBuilder()
+                        .uri(URI.create(edgeUrl + "/messages/en")).GET().build(), HttpResponse.BodyHandlers.ofString()).body());
+                if (value.equals(messages.path("cluster.key").asText())) break;
+                Thread.sleep(100);
+            }
+            assertEquals(value, messages.path("cluster.key").asText());
+        } finally {
+            edge.shutdown();
+        }
+    }
+
+    @Test
+    @Order(17)
+    void testMessageCatalogCaching() throws Exception {
+        HttpResponse<String> plain = getMessages(null, null);
+        assertEquals(200, plain.statusCode());
+        String etag = plain.headers().firstValue("ETag").orElseThrow();
+        assertEquals("no-cache", plain.headers().firstValue("Cache-Control").orElseThrow());
+        assertTrue(plain.headers().firstValue("Content-Encoding").isEmpty());
+
+        // Revalidating with the current ETag costs no body.
+        HttpResponse<String> notModified = getMessages(etag, null);
+        assertEquals(304, notModified.statusCode());
+        assertEquals(etag, notModified.headers().firstValue("ETag").orElseThrow());
+        assertTrue(notModified.body().isEmpty());
+
+        // Same catalog compressed, under its own ETag, and either ETag revalidates it.
+        HttpResponse<byte[]> gzip = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages/en")).header("Accept-Encoding", "gzip").GET().build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(200, gzip.statusCode());
+        assertEquals("gzip", gzip.headers().firstValue("Content-Encoding").orElseThrow());
+        String gzipEtag = gzip.headers().firstValue("ETag").orElseThrow();
+        assertNotEquals(etag, gzipEtag);
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip.body()))) {
+            assertEquals(plain.body(), new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        assertEquals(304, getMessages(etag, "gzip").statusCode());
+        assertEquals(304, getMessages(gzipEtag, null).statusCode());
+        HttpResponse<String> refused = getMessages(null, "gzip;q=0");
+        assertEquals(etag, refused.headers().firstValue("ETag").orElseThrow());
+        assertTrue(refused.headers().firstValue("Content-Encoding").isEmpty());
+
+        // A new message changes the ETag, the old one gets the new catalog.
+        assertEquals(201, createMessage("test.etag", "Changed " + UUID.randomUUID()).statusCode());
+        HttpResponse<String> changed = getMessages(etag, null);
+        assertEquals(200, changed.statusCode());
+        assertNotEquals(etag, changed.headers().firstValue("ETag").orElseThrow());
+        assertTrue(objectMapper.readTree(changed.body()).has("test.etag"));
+    }
+
+    @Test
+    @Order(18)
+    void testMessageSeeding() throws Exception {
+        MessageManager messages = app.getModule(MessageManager.class);
+        // Everything was seeded on start.
+        assertEquals(0, messages.seedDefaultMessages());
+
+        // Creating a key that exists updates that row instead of adding one.
+        HttpResponse<String> first = createMessage("faq_title1", "Edited title");
+        HttpResponse<String> second = createMessage("faq_title1", "Edited again");
+        assertEquals(201, second.statusCode());
+        assertEquals(objectMapper.readTree(first.body()).get("id").asLong(), objectMapper.readTree(second.body()).get("id").asLong());
+        assertEquals(2, countMessages("faq_title1"));
+
+        // Deleted defaults come back exactly once, even when two nodes seed at the same time, edited ones stay edited.
+        try (org.hibernate.Session session = app.getModule(DatabaseManager.class).getSessionFactory().openSession()) {
+            session.beginTransaction();
+            assertEquals(2, session.createNativeQuery("DELETE FROM messages WHERE message_key = 'faq_description1'").executeUpdate());
+            session.getTransaction().commit();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Integer> seedA = executor.submit(messages::seedDefaultMessages);
+            Future<Integer> seedB = executor.submit(messages::seedDefaultMessages);
+            assertEquals(2, seedA.get(10, TimeUnit.SECONDS) + seedB.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(2, countMessages("faq_description1"));
+        try (org.hibernate.Session session = app.getModule(DatabaseManager.class).getSessionFactory().openSession()) {
+            assertEquals("Edited again", session.createNativeQuery("SELECT message_value FROM messages "
+                    + "WHERE language = 'en' AND message_key = 'faq_title1'").getSingleResult());
+        }
+        assertEquals(201, createMessage("faq_title1", "How to place a bid").statusCode());
+    }
+
+    @Test
+    @Order(19)
+    void testItemPaging() throws Exception {
+        Set<Long> created = new HashSet<>();
+        for (int i = 0; i < 5; i++) {
+            created.add(createItem(authToken, "Paged Item " + i, "1.00"));
+        }
+
+        // Pages of 2 in id order, each one continuing right after the cursor of the one before.
+        List<Long> walked = new ArrayList<>();
+        String cursor = "0";
+        int pages = 0;
+        while (cursor != null) {
+            HttpResponse<String> page = client.send(HttpRequest.newBuilder()
+                    .uri(URI.create(baseUrl + "/item?limit=2&after=" + cursor)).GET().build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, page.statusCode());
+            JsonNode items = objectMapper.readTree(page.body());
+            cursor = page.headers().firstValue("X-Next-Cursor").orElse(null);
+            if (cursor != null) {
+                assertEquals(2, items.size());
+                assertEquals(items.get(1).get("id").asLong(), Long.parseLong(cursor));
+            }
+            for (JsonNode item : items) {
+                walked.add(item.get("id").asLong());
+            }
+            assertTrue(++pages < 1000, "The cursor never ran out");
+        }
+        for (int i = 1; i < walked.size(); i++) {
+            assertTrue(walked.get(i) > walked.get(i - 1), "Duplicate or out of order: " + walked);
+        }
+        assertTrue(walked.containsAll(created), "Missing items: " + walked);
+
+        for (String query : List.of("after=abc", "limit=0", "limit=abc", "limit=1001")) {
+            HttpResponse<String> invalid = client.send(HttpRequest.newBuilder()
+                    .uri(URI.create(baseUrl + "/item?" + query)).GET().build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(400, invalid.statusCode(), query);
+            assertEquals("Invalid paging parameters.", invalid.body());
+        }
+    }
+
+    @Test
+    @Order(20)
+    void testLoginSurge() throws Exception {
+        PasswordHasher hasher = app.getModule(PasswordHasher.class);
+        long rejectedBefore = hasher.getRejections();
+        // Far more logins at once than the bcrypt threads and their queue hold.
+        List<CompletableFuture<HttpResponse<String>>> logins = new ArrayList<>();
+        for (int i = 0; i < hasher.getCapacity() * 4; i++) {
+            logins.add(client.sendAsync(HttpRequest.newBuilder()
+                    .uri(URI.create(baseUrl + "/auth/login"))
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString("username=" + username + "&password=" + password))
+                    .build(), HttpResponse.BodyHandlers.ofString()));
+        }
+        int ok = 0;
+        int busy = 0;
+        for (CompletableFuture<HttpResponse<String>> login : logins) {
+            HttpResponse<String> response = login.get(60, TimeUnit.SECONDS);
+            if (response.statusCode() == 503) {
+                busy++;
+                assertEquals("1", response.headers().firstValue("Retry-After").orElse(null));
+                assertEquals("Too many logins right now, try again shortly.", response.body());
+            } else {
+                assertEquals(200, response.statusCode());
+                assertEquals(authToken, response.body().replace("\"", ""));
+                ok++;
+            }
+        }
+        assertTrue(ok > 0, "No login got through");
+        assertTrue(busy > 0, "The bcrypt queue never filled up");
+        assertEquals(busy, hasher.getRejections() - rejectedBefore);
+
+        // Once it drained, logins go through again.
+        HttpResponse<String> after = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/auth/login"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString("username=" + username + "&password=" + password))
+                .build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, after.statusCode());
+    }
+
+    @Test
+    @Order(21)
+    void testBidThrottle() throws Exception {
+        BidThrottle throttle = app.getModule(BidThrottle.class);
+        long sessionBefore = throttle.getSessionThrottled();
+        long userBefore = throttle.getUserThrottled();
+
+        // One socket bursting past its 20 bids runs into its own limit first. The item doesn't exist,
+        // every bid that gets past the throttle is answered with that instead.
+        BlockingQueue<String> frames = new LinkedBlockingQueue<>();
+        WebSocket ws = openSocket(baseUrl, frames);
+        awaitFrame(frames, "session");
+        for (int i = 0; i < 30; i++) {
+            bid(ws, authToken, 0, "1.00");
+        }
+        List<JsonNode> throttled = throttledReplies(frames, 30);
+        assertFalse(throttled.isEmpty(), "The socket was never throttled");
+        for (JsonNode reply : throttled) {
+            assertEquals("session", reply.get("payload").get("scope").asText());
+            long retryAfterMs = reply.get("payload").get("retryAfterMs").asLong();
+            assertTrue(retryAfterMs >= 1 && retryAfterMs <= 100, "retryAfterMs " + retryAfterMs);
+        }
+        assertEquals(throttled.size(), throttle.getSessionThrottled() - sessionBefore);
+        ws.sendClose(WebSocket.NORMAL_CLOSURE, "").get(10, TimeUnit.SECONDS);
+
+        // Two sockets of one user stay under their own limits, but not under the user's.
+        String burstUser = "burstuser-" + UUID.randomUUID();
+        assertEquals(200, client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/auth/register"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString("username=" + burstUser + "&password=" + password))
+                .build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+        String burstToken = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/auth/login"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString("username=" + burstUser + "&password=" + password))
+                .build(), HttpResponse.BodyHandlers.ofString()).body().replace("\"", "");
+        BlockingQueue<String> framesA = new LinkedBlockingQueue<>();
+        BlockingQueue<String> framesB = new LinkedBlockingQueue<>();
+        WebSocket wsA = openSocket(baseUrl, framesA);
+        WebSocket wsB = openSocket(baseUrl, framesB);
+        awaitFrame(framesA, "session");
+        awaitFrame(framesB, "session");
+        for (int i = 0; i < 15; i++) {
+            bid(wsA, burstToken, 0, "1.00");
+            bid(wsB, burstToken, 0, "1.00");
+        }
+        List<JsonNode> userThrottled = new ArrayList<>(throttledReplies(framesA, 15));
+        userThrottled.addAll(throttledReplies(framesB, 15));
+        assertFalse(userThrottled.isEmpty(), "The user was never throttled");
+        for (JsonNode reply : userThrottled) {
+            assertEquals("user", reply.get("payload").get("scope").asText());
+        }
+        assertEquals(userThrottled.size(), throttle.getUserThrottled() - userBefore);
+        wsA.sendClose(WebSocket.NORMAL_CLOSURE, "").get(10, TimeUnit.SECONDS);
+        wsB.sendClose(WebSocket.NORMAL_CLOSURE, "").get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    @Order(22)
+    void testProxyBids() throws Exception {
+        // Everything the engine hands on to be journaled and broadcast.
+        List<BidResult> published = new CopyOnWriteArrayList<>();
+        AuctionEngine engine = new AuctionEngine(1, 64, published::add);
+        User alice = bidder(1, "alice");
+        User bob = bidder(2, "bob");
+        try {
+            // A plain bid against a proxy is answered by the proxy, one increment over it.
+            openBook(engine, 1);
+            assertBid(engine.bid(1, alice, new BigDecimal("150")), "101", alice);
+            assertBid(engine.bid(1, bob), "103", alice);
+
+            // The higher maximum leads, one increment over the other one.
+            openBook(engine, 2);
+            assertBid(engine.bid(2, alice, new BigDecimal("150")), "101", alice);
+            assertBid(engine.bid(2, bob, new BigDecimal("200")), "151", bob);
+            assertEquals(0, new BigDecimal("200").compareTo(engine.close(2).get(10, TimeUnit.SECONDS).getLeaderMax()));
+
+            // Equal maximums go to whoever was first, at that maximum.
+            openBook(engine, 3);
+            assertBid(engine.bid(3, alice, new BigDecimal("150")), "101", alice);
+            assertBid(engine.bid(3, bob, new BigDecimal("150")), "150", alice);
+
+            // The leader raising their own maximum doesn't move the price, but holds off a higher challenger.
+            openBook(engine, 4);
+            assertBid(engine.bid(4, alice, new BigDecimal("150")), "101", alice);
+            BidResult raised = engine.bid(4, alice, new BigDecimal("180")).get(10, TimeUnit.SECONDS);
+            assertTrue(raised.isAccepted());
+            assertFalse(raised.isPriceChanged());
+            assertEquals(0, new BigDecimal("101").compareTo(raised.getPrice()));
+            assertEquals(0, new BigDecimal("180").compareTo(raised.getMaxPrice()));
+            assertBid(engine.bid(4, bob, new BigDecimal("170")), "171", alice);
+
+            // Sending the same or a lower maximum again changes nothing and isn't passed on.
+            openBook(engine, 5);
+            assertBid(engine.bid(5, alice, new BigDecimal("150")), "101", alice);
+            // The shard publishes after completing the bid, closing another book waits for that.
+            engine.close(1).get(10, TimeUnit.SECONDS);
+            int publishedBefore = published.size();
+            for (String max : new String[]{"150", "120"}) {
+                BidResult again = engine.bid(5, alice, new BigDecimal(max)).get(10, TimeUnit.SECONDS);
+                assertFalse(again.isAccepted());
+                assertEquals("Your maximum is already 150.", again.getError());
+            }
+            OrderBook book = engine.close(5).get(10, TimeUnit.SECONDS);
+            assertEquals(publishedBefore, published.size());
+            assertEquals(0, new BigDecimal("101").compareTo(book.getCurrentPrice()));
+            assertEquals(0, new BigDecimal("150").compareTo(book.getLeaderMax()));
+            assertEquals(1, book.getBidCount());
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    @Order(23)
+    void testBinaryItemFrames() throws Exception {
+        ObjectMapper mapper = new ObjectMapper().registerModule(new JavaTimeModule())
+                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        // The live item from testBid, with its bids, and an ended one with a winner.
+        ItemSummary live = app.getModule(ItemReadModel.class).get(itemId);
+        assertTrue(live.getBidCount() > 0);
+        ItemSummary ended = live.toBuilder()
+                .id(live.getId() + 1000)
+                .itemImage(null)
+                .status(ItemStatus.ENDED)
+                .active(false)
+                .currentPrice(new BigDecimal("1234.5"))
+                .bidCount(300)
+                .leader(new UserRef(42L, "leader ü"))
+                .winner(new UserRef(42L, "leader ü"))
+                .build();
+        for (ItemSummary summary : List.of(live, ended)) {
+            JsonNode json = mapper.readTree(mapper.writeValueAsString(summary));
+            assertItemFrame(json, BinaryCodec.NEW_AUCTION, BinaryCodec.newAuction(summary));
+            assertItemFrame(json, BinaryCodec.AUCTION_END, BinaryCodec.auctionEnd(summary));
+        }
+    }
+
+    @Test
+    @Order(24)
+    void testReplayWindowAttach() throws Exception {
+        SubscriberRegistry registry = new SubscriberRegistry();
+        ReplayWindow window = new ReplayWindow(registry);
+        window.broadcast(EncodedFrame.wrap("price_update", 1L, "{\"price\":10}", null));
+        StalledSocket socket = new StalledSocket("attach-fresh");
+        socket.release();
+        Subscriber fresh = registry.create(socket.ctx);
+        CountDownLatch inSnapshot = new CountDownLatch(1);
+        CountDownLatch snapshotDone = new CountDownLatch(1);
+        Thread attacher = new Thread(() -> window.attach(fresh, null, () -> {
+            inSnapshot.countDown();
+            try {
+                snapshotDone.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            fresh.offer(EncodedFrame.of("snapshot"));
+        }));
+        attacher.start();
+        assertTrue(inSnapshot.await(10, TimeUnit.SECONDS));
+
+        // A slow snapshot doesn't hold up broadcasts, the new socket gets them once its snapshot is queued.
+        Thread broadcaster = new Thread(() -> window.broadcast(EncodedFrame.wrap("price_update", 2L, "{\"price\":20}", null)));
+        broadcaster.start();
+        broadcaster.join(10_000);
+        assertFalse(broadcaster.isAlive(), "The broadcast waited for the snapshot");
+        assertEquals(1, socket.sent.size());
+        snapshotDone.countDown();
+        attacher.join(10_000);
+        window.broadcast(EncodedFrame.wrap("timer_update", 1L, "{\"endAt\":\"a\"}", null));
+        assertEquals(4, socket.sent.size(), socket.sent.toString());
+        JsonNode session = objectMapper.readTree(socket.sent.get(0));
+        assertEquals(1, session.get("payload").get("seq").asLong());
+        assertEquals("snapshot", socket.sent.get(1));
+        assertEquals(2, objectMapper.readTree(socket.sent.get(2)).get("seq").asLong());
+        assertEquals(3, objectMapper.readTree(socket.sent.get(3)).get("seq").asLong());
+
+        // Resuming after seq 1 replays 2 and 3 once, then the next broadcast follows.
+        StalledSocket resumedSocket = new StalledSocket("attach-resumed");
+        resumedSocket.release();
+        Subscriber resumed = registry.create(resumedSocket.ctx);
+        window.attach(resumed, window.getStream() + ":1", () -> fail("Resumed sockets get no snapshot"));
+        window.broadcast(EncodedFrame.wrap("price_update", 1L, "{\"price\":11}", null));
+        assertEquals(4, resumedSocket.sent.size(), resumedSocket.sent.toString());
+        assertTrue(objectMapper.readTree(resumedSocket.sent.get(0)).get("payload").get("resumed").asBoolean());
+        for (int i = 1; i < 4; i++) {
+            assertEquals(i + 1, objectMapper.readTree(resumedSocket.sent.get(i)).get("seq").asLong());
+        }
+        assertEquals(5, socket.sent.size());
+    }
+
+    @Test
+    @Order(25)
+    void testCurrentBidsRing() throws Exception {
+        long ringItem = createItem(authToken, "Ring Item", "5.00");
+        AuctionManager auctionManager = app.getModule(AuctionManager.class);
+        // Items from earlier runs may still hold the slots for a bit.
+        for (int i = 0; i < 300 && auctionManager.getLiveItem(ringItem) == null; i++) {
+            Thread.sleep(100);
+        }
+        assertNotNull(auctionManager.getLiveItem(ringItem), "The item never went live");
+
+        // Two bidders taking turns, so every bid moves the price and lands in the ring.
+        String rival = "ringuser-" + UUID.randomUUID();
+        assertEquals(200, client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/auth/register"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString("username=" + rival + "&password=" + password))
+                .build(), HttpResponse.BodyHandlers.ofString()).statusCode());
+        String rivalToken = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/auth/login"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString("username=" + rival + "&password=" + password))
+                .build(), HttpResponse.BodyHandlers.ofString()).body().replace("\"", "");
+        TokenCache tokens = app.getModule(TokenCache.class);
+        User[] bidders = {tokens.lookup(authToken), tokens.lookup(rivalToken)};
+        ItemManager itemManager = app.getModule(ItemManager.class);
+        BidManager bidManager = app.getModule(BidManager.class);
+        List<BidResult> placed = new ArrayList<>();
+        EncodedFrame cached = null;
+        for (int i = 0; i < 25; i++) {
+            BidResult result = itemManager.placeBid(bidders[i % 2], ringItem);
+            assertTrue(result.isAccepted(), result.getError());
+            placed.add(result);
+            if (i == 19) {
+                // Built once, then the same frame until the next bid.
+                cached = bidManager.getCurrentBids(ringItem);
+                assertSame(cached, bidManager.getCurrentBids(ringItem));
+            } else if (i == 20) {
+                assertNotSame(cached, bidManager.getCurrentBids(ringItem));
+            }
+        }
+
+        // A fresh connect gets the newest 20 of the 25, newest first.
+        BlockingQueue<String> frames = new LinkedBlockingQueue<>();
+        WebSocket ws = openSocket(baseUrl, frames);
+        JsonNode currentBids;
+        do {
+            currentBids = awaitFrame(frames, "current_bids");
+        } while (currentBids.get("payload").get("itemId").asLong() != ringItem);
+        JsonNode bids = currentBids.get("payload").get("bids");
+        assertEquals(20, bids.size());
+        for (int i = 0; i < bids.size(); i++) {
+            BidResult expected = placed.get(placed.size() - 1 - i);
+            assertEquals(0, expected.getPrice().compareTo(bids.get(i).get("price").decimalValue()), "bid " + i);
+            assertEquals(expected.getBidder().getId(), bids.get(i).get("bidderId").asLong(), "bid " + i);
+        }
+        assertSame(bidManager.getCurrentBids(ringItem), bidManager.getCurrentBids(ringItem));
+        ws.sendClose(WebSocket.NORMAL_CLOSURE, "").get(10, TimeUnit.SECONDS);
+    }
+
+    // Decodes a new_auction or auction_end frame and checks every field against the JSON of the same summary.
+    private static void assertItemFrame(JsonNode json, byte tag, byte[] frame) {
+        assertNotNull(frame);
+        BinaryReader in = new BinaryReader(ByteBuffer.wrap(frame));
+        assertEquals(tag, in.tag);
+        assertEquals(json.get("id").asLong(), in.varint());
+        assertEquals(json.get("itemName").textValue(), in.string());
+        assertEquals(json.get("itemImage").textValue(), in.string());
+        assertEquals(json.get("itemDescription").textValue(), in.string());
+        assertEquals(0, json.get("itemPrice").decimalValue().compareTo(in.price()));
+        assertEquals(0, json.get("bidIncrement").decimalValue().compareTo(in.price()));
+        assertUser(json.get("seller"), in);
+        assertUser(json.get("winner"), in);
+        assertTime(json.get("createdAt"), in.varint());
+        assertTime(json.get("endAt"), in.varint());
+        assertEquals(json.get("active").asBoolean(), in.buf.get() == 1);
+        assertEquals(json.get("status").asText(), ItemStatus.values()[in.buf.get()].name());
+        assertEquals(0, json.get("currentPrice").decimalValue().compareTo(in.price()));
+        assertEquals(json.get("bidCount").asLong(), in.varint());
+        assertUser(json.get("leader"), in);
+        assertFalse(in.buf.hasRemaining(), "Trailing bytes");
+    }
+
+    private static void assertUser(JsonNode user, BinaryReader in) {
+        boolean none = user == null || user.isNull();
+        assertEquals(none ? 0 : user.get("id").asLong(), in.varint());
+        assertEquals(none ? null : user.get("username").textValue(), in.string());
+    }
+
+    private static void assertTime(JsonNode time, long millis) {
+        long expected = time == null || time.isNull() ? 0
+                : LocalDateTime.parse(time.asText()).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        assertEquals(expected, millis);
+    }
+
+    // Reads what BinaryCodec writes, the tag and seq are taken on construction.
+    private static final class BinaryReader {
+        private final ByteBuffer buf;
+        private final byte tag;
+
+        private BinaryReader(ByteBuffer buf) {
+            this.buf = buf;
+            this.tag = buf.get();
+            varint();
+        }
+
+        private long varint() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buf.get();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+        }
+
+        private long zigzag() {
+            long value = varint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private BigDecimal price() {
+            long unscaled = zigzag();
+            return BigDecimal.valueOf(unscaled, (int) zigzag());
+        }
+
+        private String string() {
+            long length = varint();
+            if (length == 0) return null;
+            byte[] bytes = new byte[(int) length - 1];
+            buf.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static User bidder(long id, String name) {
+        User user = new User();
+        user.setId(id);
+        user.setUsername(name);
+        return user;
+    }
+
+    private static void openBook(AuctionEngine engine, long itemId) throws Exception {
+        engine.open(new OrderBook(itemId, new BigDecimal("100"), new BigDecimal("1"), null, 0)).get(10, TimeUnit.SECONDS);
+    }
+
+    private static void assertBid(CompletableFuture<BidResult> bid, String price, User leader) throws Exception {
+        BidResult result = bid.get(10, TimeUnit.SECONDS);
+        assertTrue(result.isAccepted(), result.getError());
+        assertEquals(0, new BigDecimal(price).compareTo(result.getPrice()), "price " + result.getPrice());
+        assertEquals(leader.getUsername(), result.getBidder().getUsername());
+    }
+
+    // Waits for the replies to that many bids and returns the throttled ones, broadcasts in between are skipped.
+    private static List<JsonNode> throttledReplies(BlockingQueue<String> frames, int bids) throws Exception {
+        List<JsonNode> throttled = new ArrayList<>();
+        int replies = 0;
+        while (replies < bids) {
+            String frame = frames.poll(10, TimeUnit.SECONDS);
+            assertNotNull(frame, "Only got " + replies + " of " + bids + " replies");
+            if (!frame.startsWith("{")) {
+                assertEquals("Item not found or is not active.", frame);
+                replies++;
+            } else if (frame.contains("\"subject\":\"throttled\"")) {
+                throttled.add(objectMapper.readTree(frame));
+                replies++;
+            }
+        }
+        return throttled;
+    }
+
+    private static long countMessages(String key) {
+        try (org.hibernate.Session session = app.getModule(DatabaseManager.class).getSessionFactory().openSession()) {
+            return ((Number) session.createNativeQuery("SELECT count(*) FROM messages WHERE message_key = :key")
+                    .setParameter("key", key).getSingleResult()).longValue();
+        }
+    }
+
+    private static HttpResponse<String> getMessages(String ifNoneMatch, String acceptEncoding) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder().uri(URI.create(baseUrl + "/messages/en")).GET();
+        if (ifNoneMatch != null) request.header("If-None-Match", ifNoneMatch);
+        if (acceptEncoding != null) request.header("Accept-Encoding", acceptEncoding);
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static HttpResponse<String> createMessage(String key, String value) throws Exception {
+        return client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/message"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString("auth_token=" + authToken + "&language=en&message_key=" + key
+                        + "&message_value=" + value.replace(" ", "+")))
+                .build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static Application startNode(int busPort, int peerBusPort, boolean engine) {
+        System.setProperty("auction.bus", "tcp");
+        System.setProperty("auction.bus.secret", "cluster-secret");
+        System.setProperty("auction.bus.port", String.valueOf(busPort));
+        System.setProperty("auction.bus.peers", "127.0.0.1:" + peerBusPort);
+        System.setProperty("auction.engine.enabled", String.valueOf(engine));
+        try {
+            Application node = new Application();
+            node.start(0);
+            return node;
+        } finally {
+            System.clearProperty("auction.bus");
+            System.clearProperty("auction.bus.secret");
+            System.clearProperty("auction.bus.port");
+            System.clearProperty("auction.bus.peers");
+            System.clearProperty("auction.engine.enabled");
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // Over the high-water mark of 2 for the second time in a row is too slow.
+    private static SubscriberRegistry slowConsumerRegistry(String policy, int capacity) {
+        System.setProperty("auction.ws.slowConsumerPolicy", policy);
+        System.setProperty("auction.ws.queueCapacity", String.valueOf(capacity));
+        System.setProperty("auction.ws.highWaterMark", "2");
+        System.setProperty("auction.ws.highWaterGraceMs", "0");
+        try {
+            return new SubscriberRegistry();
+        } finally {
+            System.clearProperty("auction.ws.slowConsumerPolicy");
+            System.clearProperty("auction.ws.queueCapacity");
+            System.clearProperty("auction.ws.highWaterMark");
+            System.clearProperty("auction.ws.highWaterGraceMs");
+        }
+    }
+
+    private static EncodedFrame update(String subject, long itemId, String value) {
+        return EncodedFrame.of(subject, itemId, subject + " " + itemId + " " + value, null);
+    }
+
+    /**
+     * A socket whose client stopped reading: sends block until release(), then go through in order.
+     */
+    private static class StalledSocket {
+        private final List<String> sent = new CopyOnWriteArrayList<>();
+        private final CountDownLatch sending = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private final WsContext ctx;
+
+        private StalledSocket(String sessionId) {
+            RemoteEndpoint remote = (RemoteEndpoint) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{RemoteEndpoint.class}, (proxy, method, args) -> {
+                        if (method.getName().equals("sendString")) {
+                            sending.countDown();
+                            released.await();
+                            sent.add((String) args[0]);
+                        }
+                        return null;
+                    });
+            Session session = (Session) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{Session.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "getRemote":
+                                return remote;
+                            case "close":
+                                closed.countDown();
+                                return null;
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "equals":
+                                return proxy == args[0];
+                            default:
+                                return null;
+                        }
+                    });
+            ctx = new WsContext(sessionId, session) { };
+        }
+
+        // Offers the frame from another thread, which then hangs in its send like Jetty would on a full socket.
+        private Thread stallOn(Subscriber subscriber, EncodedFrame frame) throws InterruptedException {
+            Thread writer = new Thread(() -> subscriber.offer(frame));
+            writer.start();
+            assertTrue(sending.await(10, TimeUnit.SECONDS), "The first frame was never sent");
+            return writer;
+        }
+
+        private void release() {
+            released.countDown();
+        }
+    }
+
+    private static long createItem(String token, String name, String price) throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/item"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString("auth_token=" + token + "&item_name=" + name
+                        + "&item_price=" + price + "&item_description=Test&bid_increment=1.00"))
+                .build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(201, response.statusCode());
+        return Long.parseLong(response.body());
+    }
+
+    private static JsonNode getItem(long id) throws IOException, InterruptedException {
+        return getItem(baseUrl, id);
+    }
+
+    private static JsonNode getItem(String url, long id) throws IOException, InterruptedException {
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(url + "/item/" + id)).GET().build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode());
+        return objectMapper.readTree(response.body());
+    }
+
+    // Big frames like current_bids can arrive in parts, only whole ones are queued.
+    private static WebSocket openSocket(String url, BlockingQueue<String> frames) throws Exception {
+        return client.newWebSocketBuilder()
+                .buildAsync(URI.create(url.replace("http", "ws") + "/ws/bid"), new WebSocket.Listener() {
+                    private final StringBuilder partial = new StringBuilder();
+
+                    @Override
+                    public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+                        partial.append(data);
+                        if (last) {
+                            frames.add(partial.toString());
+                            partial.setLength(0);
+                        }
+                        webSocket.request(1);
+                        return null;
+                    }
+                }).get(10, TimeUnit.SECONDS);
+    }
+
+    private static void bid(WebSocket ws, String token, long itemId, String price) throws Exception {
+        ws.sendText("{\"subject\":\"bid\",\"payload\":{\"authtoken\":\"" + token + "\",\"itemId\":" + itemId
+                + ",\"price\":" + price + "}}", true).get(10, TimeUnit.SECONDS);
+    }
+
+    private static JsonNode awaitFrame(BlockingQueue<String> frames, String subject) throws Exception {
+        JsonNode frame = pollFrame(frames, subject, 10_000);
+        return frame != null ? frame : fail("Did not receive " + subject);
+    }
+
+    // Skips the other JSON frames, null if none of this subject came in time.
+    private static JsonNode pollFrame(BlockingQueue<String> frames, String subject, long timeoutMs) throws Exception {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (System.currentTimeMillis() < deadline) {
+            String frame = frames.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            if (frame == null) {
+                break;
+            }
+            JsonNode node = objectMapper.readTree(frame);
+            if (subject.equals(node.path("subject").asText())) {
+                return node;
+            }
+        }
+        return null;
+    }
 }
@@ -0,0 +1,73 @@
+package club.nullbyte3.auction.bench;
+
+import club.nullbyte3.auction.db.User;
+import club.nullbyte3.auction.engine.BidResult;
+import club.nullbyte3.auction.engine.LiveAuction;
+import club.nullbyte3.auction.impl.AuctionManager;
+import club.nullbyte3.auction.impl.ItemManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The bid path of a running server against an embedded Postgres: {@link ItemManager#placeBid} from the
+ * shard round trip through the journal, read model, write-behind queue and broadcast, and the anti-sniping
+ * {@link AuctionManager#resetTimer} every accepted bid does.
+ * <p>
+ * Run with: mvn -Pbenchmark test -Djmh.include=BidPathBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BidPathBenchmark {
+
+    private EmbeddedAuction auctionHouse;
+    private ItemManager itemManager;
+    private AuctionManager auctionManager;
+    private LiveAuction auction;
+    private User[] bidders;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        auctionHouse = new EmbeddedAuction();
+        itemManager = auctionHouse.getApp().getModule(ItemManager.class);
+        auctionManager = auctionHouse.getApp().getModule(AuctionManager.class);
+        // Two bidders taking turns, like a real bidding war.
+        bidders = auctionHouse.createUsers(2).toArray(new User[0]);
+        auction = auctionHouse.createLiveItem(bidders[0], BigDecimal.ONE, BigDecimal.ONE);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        auctionHouse.close();
+    }
+
+    @Benchmark
+    public BidResult placeBid() {
+        User bidder = bidders[next];
+        next ^= 1;
+        return itemManager.placeBid(bidder, auction.getItemId());
+    }
+
+    @Benchmark
+    public LiveAuction resetTimer() {
+        auctionManager.resetTimer(auction);
+        return auction;
+    }
+}
@@ -0,0 +1,331 @@
+package club.nullbyte3.auction.bench;
+
+import club.nullbyte3.auction.db.User;
+import club.nullbyte3.auction.impl.ItemReadModel;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bid storm against a whole server on one box. N WebSocket clients, each its own user, bid on a few live items
+ * at a steady rate, then at a multiple of it for the closing seconds, like the end of a popular auction.
+ * The report covers the bids the server accepted per second, the latency from sending a bid to its price_update,
+ * and the frames that were late or never arrived. It is printed and written as JSON to storm.report.
+ * <p>
+ * Every client has at most one bid in flight, confirmed by its own price_update or answered with an error reply.
+ * A bid that comes due while the previous one is still in flight is skipped and counted. Every bid raises the price
+ * by exactly one increment, so a gap in the prices a client sees for an item is a price_update it never got.
+ * <p>
+ * Run with: mvn -Ploadtest test -Dstorm.clients=2000 -Dstorm.rate=500
+ * <br>Set storm.maxP99Ms and storm.minAcceptedPerSec to fail the run when it misses them. Thousands of sockets
+ * need an open file limit to match (ulimit -n).
+ */
+public class BidStorm {
+
+    private static final int CLIENTS = Integer.getInteger("storm.clients", 1000);
+    // At most auction.maxLiveItems, the rest would only be queued.
+    private static final int ITEMS = Integer.getInteger("storm.items", 4);
+    // Bids per second over all clients.
+    private static final int RATE = Integer.getInteger("storm.rate", 200);
+    private static final int DURATION_SEC = Integer.getInteger("storm.durationSec", 30);
+    // The closing seconds of the run, where the rate goes up burstFactor times.
+    private static final int BURST_SEC = Integer.getInteger("storm.burstSec", 5);
+    private static final int BURST_FACTOR = Integer.getInteger("storm.burstFactor", 10);
+    // Confirmations slower than lateMs are late, bids without an answer after timeoutMs are lost.
+    private static final long LATE_MS = Long.getLong("storm.lateMs", 500);
+    private static final long TIMEOUT_MS = Long.getLong("storm.timeoutMs", 2000);
+    // Gates, 0 turns them off.
+    private static final long MAX_P99_MS = Long.getLong("storm.maxP99Ms", 0);
+    private static final long MIN_ACCEPTED_PER_SEC = Long.getLong("storm.minAcceptedPerSec", 0);
+    private static final String REPORT = System.getProperty("storm.report", "target/bid-storm.json");
+    // The java.net.http client reads every socket of one HttpClient on a single selector thread.
+    private static final int SOCKETS_PER_HTTP_CLIENT = 250;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final EmbeddedAuction auctionHouse;
+    private final List<Client> clients = new ArrayList<>(CLIENTS);
+    private final long[] itemIds = new long[ITEMS];
+    private final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder confirmed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder late = new LongAdder();
+    private final LongAdder priceUpdates = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private BidStorm(EmbeddedAuction auctionHouse) {
+        this.auctionHouse = auctionHouse;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // A log line for every socket that connects would bury the report.
+        System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+        int exitCode;
+        try (EmbeddedAuction auctionHouse = new EmbeddedAuction()) {
+            exitCode = new BidStorm(auctionHouse).run();
+        }
+        System.exit(exitCode);
+    }
+
+    private int run() throws Exception {
+        List<User> users = auctionHouse.createUsers(CLIENTS);
+        for (int i = 0; i < ITEMS; i++) {
+            itemIds[i] = auctionHouse.createLiveItem(users.get(0), BigDecimal.ONE, BigDecimal.ONE).getItemId();
+        }
+        connect(users);
+        System.out.printf("Connected %d clients, bidding on %d items for %d s.%n", clients.size(), ITEMS, DURATION_SEC);
+
+        long start = System.nanoTime();
+        storm(start);
+        long elapsed = System.nanoTime() - start;
+        // Give the bids still in flight their chance to be answered.
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (System.nanoTime() < deadline && clients.stream().anyMatch(Client::inFlight)) {
+            Thread.sleep(10);
+        }
+        clients.forEach(Client::expire);
+
+        long accepted = 0;
+        for (long itemId : itemIds) {
+            accepted += auctionHouse.getApp().getModule(ItemReadModel.class).get(itemId).getBidCount();
+        }
+        for (Client client : clients) {
+            client.socket.sendClose(WebSocket.NORMAL_CLOSURE, "");
+        }
+        return report(accepted, elapsed);
+    }
+
+    private void connect(List<User> users) {
+        URI uri = URI.create(auctionHouse.getBaseUrl().replace("http", "ws") + "/ws/bid");
+        HttpClient http = null;
+        List<CompletableFuture<WebSocket>> connecting = new ArrayList<>();
+        for (int i = 0; i < users.size(); i++) {
+            if (i % SOCKETS_PER_HTTP_CLIENT == 0) {
+                http = HttpClient.newHttpClient();
+            }
+            Client client = new Client(users.get(i), itemIds[i % ITEMS]);
+            clients.add(client);
+            connecting.add(http.newWebSocketBuilder().buildAsync(uri, client)
+                    .thenApply(socket -> client.socket = socket));
+        }
+        CompletableFuture.allOf(connecting.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    // Hands out bids round robin at the current rate until the run is over.
+    private void storm(long start) {
+        long end = start + TimeUnit.SECONDS.toNanos(DURATION_SEC);
+        long burstStart = end - TimeUnit.SECONDS.toNanos(BURST_SEC);
+        double due = 0;
+        long last = start;
+        int next = 0;
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            double rate = now >= burstStart ? (double) RATE * BURST_FACTOR : RATE;
+            due += rate * (now - last) / TimeUnit.SECONDS.toNanos(1);
+            last = now;
+            for (; due >= 1; due--) {
+                Client client = clients.get(next);
+                next = (next + 1) % clients.size();
+                if (client.bid(now)) {
+                    sent.increment();
+                } else {
+                    skipped.increment();
+                }
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    private int report(long accepted, long elapsedNanos) throws Exception {
+        long[] latencies = clients.stream().flatMapToLong(client -> Arrays.stream(client.getLatencies())).sorted().toArray();
+        double seconds = elapsedNanos / 1e9;
+        double acceptedPerSec = accepted / seconds;
+        double p99 = percentile(latencies, 0.99);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("clients", CLIENTS);
+        result.put("items", ITEMS);
+        result.put("rate", RATE);
+        result.put("burstRate", RATE * BURST_FACTOR);
+        result.put("durationSec", seconds);
+        result.put("sent", sent.sum());
+        result.put("skipped", skipped.sum());
+        result.put("accepted", accepted);
+        result.put("acceptedPerSec", acceptedPerSec);
+        result.put("confirmed", confirmed.sum());
+        result.put("rejected", rejected.sum());
+        result.put("lost", lost.sum());
+        result.put("late", late.sum());
+        Map<String, Double> latencyMs = new LinkedHashMap<>();
+        latencyMs.put("p50", percentile(latencies, 0.5));
+        latencyMs.put("p90", percentile(latencies, 0.9));
+        latencyMs.put("p99", p99);
+        latencyMs.put("p999", percentile(latencies, 0.999));
+        latencyMs.put("max", percentile(latencies, 1));
+        result.put("latencyMs", latencyMs);
+        result.put("priceUpdates", priceUpdates.sum());
+        result.put("droppedPriceUpdates", dropped.sum());
+        File file = new File(REPORT);
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        MAPPER.writer(SerializationFeature.INDENT_OUTPUT).writeValue(file, result);
+
+        System.out.printf("Bid storm: %d clients on %d items, %d bids/s, the last %d s at %d bids/s.%n",
+                CLIENTS, ITEMS, RATE, BURST_SEC, RATE * BURST_FACTOR);
+        System.out.printf("  sent       %d, %d skipped with a bid still in flight%n", sent.sum(), skipped.sum());
+        System.out.printf("  accepted   %d by the server, %.1f/s%n", accepted, acceptedPerSec);
+        System.out.printf("  answered   %d confirmed, %d rejected, %d lost after %d ms%n",
+                confirmed.sum(), rejected.sum(), lost.sum(), TIMEOUT_MS);
+        System.out.printf("  latency    p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, p999 %.2f ms, max %.2f ms%n",
+                latencyMs.get("p50"), latencyMs.get("p90"), p99, latencyMs.get("p999"), latencyMs.get("max"));
+        System.out.printf("  late       %d over %d ms%n", late.sum(), LATE_MS);
+        System.out.printf("  frames     %d price_updates received, %d dropped%n", priceUpdates.sum(), dropped.sum());
+        System.out.printf("Report written to %s%n", file.getAbsolutePath());
+
+        int exitCode = 0;
+        if (MAX_P99_MS > 0 && p99 > MAX_P99_MS) {
+            System.out.printf("FAILED: p99 of %.2f ms is over %d ms%n", p99, MAX_P99_MS);
+            exitCode = 1;
+        }
+        if (MIN_ACCEPTED_PER_SEC > 0 && acceptedPerSec < MIN_ACCEPTED_PER_SEC) {
+            System.out.printf("FAILED: %.1f accepted bids/s is under %d%n", acceptedPerSec, MIN_ACCEPTED_PER_SEC);
+            exitCode = 1;
+        }
+        return exitCode;
+    }
+
+    // In milliseconds, from latencies in nanoseconds that are sorted already.
+    private static double percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    /**
+     * One bidder. Its state is touched by the storm thread sending bids and by the HttpClient thread delivering
+     * its frames, so all of it is guarded by the client itself.
+     */
+    private final class Client implements WebSocket.Listener {
+        private final User user;
+        private final String bid;
+        private final StringBuilder partial = new StringBuilder();
+        private final Map<Long, Long> lastPrices = new HashMap<>();
+        private volatile WebSocket socket;
+        private CompletableFuture<WebSocket> sending = CompletableFuture.completedFuture(null);
+        // When the bid in flight was sent, 0 when there is none.
+        private long sentAt;
+        private long[] latencies = new long[64];
+        private int latencyCount;
+
+        private Client(User user, long itemId) {
+            this.user = user;
+            this.bid = "{\"subject\":\"bid\",\"payload\":{\"authtoken\":\"" + user.getAuthToken()
+                    + "\",\"itemId\":" + itemId + ",\"price\":1}}";
+        }
+
+        private synchronized boolean bid(long now) {
+            if (sentAt != 0) {
+                if (now - sentAt < timeoutNanos) return false;
+                lost.increment();
+                sentAt = 0;
+            }
+            if (socket == null || !sending.isDone()) return false;
+            sentAt = now;
+            sending = socket.sendText(bid, true);
+            return true;
+        }
+
+        private synchronized boolean inFlight() {
+            return sentAt != 0;
+        }
+
+        // Gives up on the bid in flight, at the end of the run.
+        private synchronized void expire() {
+            if (sentAt != 0) {
+                lost.increment();
+                sentAt = 0;
+            }
+        }
+
+        private synchronized long[] getLatencies() {
+            return Arrays.copyOf(latencies, latencyCount);
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            partial.append(data);
+            if (last) {
+                onFrame(partial.toString(), System.nanoTime());
+                partial.setLength(0);
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        private void onFrame(String text, long now) {
+            if (!text.startsWith("{")) {
+                // Plain text is an error reply, the only one we can get is to our bid.
+                synchronized (this) {
+                    if (sentAt != 0) {
+                        rejected.increment();
+                        sentAt = 0;
+                    }
+                }
+                return;
+            }
+            JsonNode frame;
+            try {
+                frame = MAPPER.readTree(text);
+            } catch (Exception e) {
+                return;
+            }
+            if (!"price_update".equals(frame.path("subject").asText())) return;
+            priceUpdates.increment();
+            JsonNode payload = frame.get("payload");
+            long itemId = payload.get("itemId").asLong();
+            long price = payload.get("price").asLong();
+            synchronized (this) {
+                Long previous = lastPrices.put(itemId, price);
+                if (previous != null && price > previous + 1) {
+                    dropped.add(price - previous - 1);
+                }
+                if (sentAt != 0 && payload.get("bidderId").asLong() == user.getId()) {
+                    record(now - sentAt);
+                    sentAt = 0;
+                }
+            }
+        }
+
+        // Called with the lock held.
+        private void record(long nanos) {
+            confirmed.increment();
+            if (nanos > TimeUnit.MILLISECONDS.toNanos(LATE_MS)) {
+                late.increment();
+            }
+            if (latencyCount == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencyCount * 2);
+            }
+            latencies[latencyCount++] = nanos;
+        }
+    }
+}
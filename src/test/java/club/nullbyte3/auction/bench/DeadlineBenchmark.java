@@ -0,0 +1,100 @@
+package club.nullbyte3.auction.bench;
+
+import club.nullbyte3.auction.engine.TimingWheel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Anti-sniping extensions with 100k auctions waiting on their deadline, on the timing wheel versus the
+ * ScheduledExecutorService we used before (cancel + schedule for every bid).
+ * <p>
+ * Run with: mvn -Pbenchmark test -Djmh.include=DeadlineBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeadlineBenchmark {
+
+    private static final long DURATION_SECONDS = 25;
+    private static final Runnable NOOP = () -> { };
+
+    @Param("100000")
+    private int deadlines;
+
+    private ScheduledThreadPoolExecutor executor;
+    private ScheduledFuture<?>[] futures;
+    private TimingWheel<Integer> wheel;
+    private TimingWheel<Integer>.Timeout[] timeouts;
+    private int next;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        executor = new ScheduledThreadPoolExecutor(1);
+        // Without this, cancelled tasks stay queued until their deadline, which is what the old code did.
+        // Removing them keeps the heap at a steady size so the comparison stays fair.
+        executor.setRemoveOnCancelPolicy(true);
+        wheel = new TimingWheel<>("bench-deadlines", 1, 4096, expired -> { });
+        futures = new ScheduledFuture<?>[deadlines];
+        timeouts = (TimingWheel<Integer>.Timeout[]) new TimingWheel<?>.Timeout[deadlines];
+        for (int i = 0; i < deadlines; i++) {
+            long delay = TimeUnit.SECONDS.toMillis(DURATION_SECONDS) + i % 1000;
+            futures[i] = executor.schedule(NOOP, delay, TimeUnit.MILLISECONDS);
+            timeouts[i] = wheel.schedule(i, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+        wheel.stop();
+    }
+
+    @Benchmark
+    public Object executorExtend() {
+        int i = nextIndex();
+        futures[i].cancel(false);
+        futures[i] = executor.schedule(NOOP, DURATION_SECONDS, TimeUnit.SECONDS);
+        return futures[i];
+    }
+
+    @Benchmark
+    public boolean wheelExtend() {
+        return timeouts[nextIndex()].extend(DURATION_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public boolean executorScheduleCancel() {
+        return executor.schedule(NOOP, DURATION_SECONDS, TimeUnit.SECONDS).cancel(false);
+    }
+
+    @Benchmark
+    public Object wheelScheduleCancel() {
+        TimingWheel<Integer>.Timeout timeout = wheel.schedule(-1, DURATION_SECONDS, TimeUnit.SECONDS);
+        timeout.cancel();
+        return timeout;
+    }
+
+    private int nextIndex() {
+        int i = next++;
+        if (next == deadlines) next = 0;
+        return i;
+    }
+}
@@ -0,0 +1,126 @@
+package club.nullbyte3.auction.bench;
+
+import club.nullbyte3.auction.Application;
+import club.nullbyte3.auction.db.Item;
+import club.nullbyte3.auction.db.User;
+import club.nullbyte3.auction.engine.LiveAuction;
+import club.nullbyte3.auction.impl.AuctionManager;
+import club.nullbyte3.auction.impl.DatabaseManager;
+import club.nullbyte3.auction.impl.ItemReadModel;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import lombok.Getter;
+import org.hibernate.Session;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * A whole {@link Application} on an ephemeral port, backed by an embedded Postgres and a throwaway journal,
+ * so benchmarks and load tests run offline against an empty auction house.
+ */
+class EmbeddedAuction implements AutoCloseable {
+
+    private final EmbeddedPostgres postgres;
+    private final Path journalDir;
+    @Getter
+    private final Application app;
+
+    EmbeddedAuction() throws IOException {
+        postgres = EmbeddedPostgres.builder().start();
+        journalDir = Files.createTempDirectory("auction-bench-journal");
+        // Picked up by DatabaseManager over hibernate.cfg.xml, the journal is read when AuctionManager loads.
+        System.setProperty("hibernate.connection.url", "jdbc:postgresql://localhost:" + postgres.getPort() + "/auction");
+        System.setProperty("hibernate.connection.username", "postgres");
+        System.setProperty("hibernate.connection.password", "");
+        System.setProperty("hibernate.show_sql", "false");
+        System.setProperty("auction.journal.dir", journalDir.toString());
+
+        app = new Application();
+        app.start(0);
+    }
+
+    String getBaseUrl() {
+        return "http://localhost:" + app.getApp().port();
+    }
+
+    /**
+     * Inserts users with an auth token straight into the database, skipping the bcrypt of /auth/register.
+     */
+    List<User> createUsers(int count) {
+        List<User> users = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            User user = new User();
+            user.setUsername("bench-" + UUID.randomUUID());
+            user.setPasswordHash("-");
+            user.setAuthToken(UUID.randomUUID().toString());
+            users.add(user);
+        }
+        try (Session session = openSession()) {
+            session.beginTransaction();
+            session.doWork(connection -> {
+                try (PreparedStatement stmt = connection.prepareStatement(
+                        "INSERT INTO users (username, password_hash, auth_token) VALUES (?, ?, ?) RETURNING id")) {
+                    for (User user : users) {
+                        stmt.setString(1, user.getUsername());
+                        stmt.setString(2, user.getPasswordHash());
+                        stmt.setString(3, user.getAuthToken());
+                        try (ResultSet rs = stmt.executeQuery()) {
+                            rs.next();
+                            user.setId(rs.getLong(1));
+                        }
+                    }
+                }
+            });
+            session.getTransaction().commit();
+        }
+        return users;
+    }
+
+    /**
+     * Saves an item and puts it up for auction the way POST /item does.
+     * @return The live auction, the item must fit in a free slot.
+     */
+    LiveAuction createLiveItem(User seller, BigDecimal price, BigDecimal increment) {
+        Item item = new Item();
+        item.setItemName("Benchmark item");
+        item.setItemPrice(price);
+        item.setBidIncrement(increment);
+        item.setSeller(seller);
+        AuctionManager auctionManager = app.getModule(AuctionManager.class);
+        try (Session session = openSession()) {
+            session.beginTransaction();
+            session.save(item);
+            auctionManager.journalItem(item.getId());
+            session.getTransaction().commit();
+        }
+        app.getModule(ItemReadModel.class).itemCreated(item);
+        auctionManager.addItem(item);
+        LiveAuction auction = auctionManager.getLiveItem(item.getId());
+        if (auction == null) {
+            throw new IllegalStateException("Item " + item.getId() + " did not go live, are all slots taken?");
+        }
+        return auction;
+    }
+
+    private Session openSession() {
+        return app.getModule(DatabaseManager.class).getSessionFactory().openSession();
+    }
+
+    @Override
+    public void close() throws IOException {
+        app.shutdown();
+        postgres.close();
+        try (Stream<Path> files = Files.walk(journalDir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
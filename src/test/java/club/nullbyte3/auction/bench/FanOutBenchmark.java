@@ -0,0 +1,83 @@
+package club.nullbyte3.auction.bench;
+
+import club.nullbyte3.auction.websocket.EncodedFrame;
+import club.nullbyte3.auction.websocket.SubscriberRegistry;
+import io.javalin.websocket.WsConnectContext;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One broadcast to N connected sockets, the way BidManager hands every frame from the bus to the
+ * {@link SubscriberRegistry}. The sockets are stubs whose sends complete inline, so this measures the
+ * queueing and conflation per subscriber and not the network.
+ * <p>
+ * Run with: mvn -Pbenchmark test -Djmh.include=FanOutBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    private int subscribers;
+
+    private SubscriberRegistry registry;
+    private EncodedFrame priceUpdate;
+    private EncodedFrame reply;
+
+    @Setup
+    public void setup() {
+        registry = new SubscriberRegistry();
+        for (int i = 0; i < subscribers; i++) {
+            registry.register(registry.create(new WsConnectContext("bench-" + i, stubSession())));
+        }
+        priceUpdate = EncodedFrame.wrap("price_update",
+                "{\"price\":1250.00,\"bidder\":\"bench-bidder\",\"bidderId\":42,\"itemId\":7}");
+        reply = EncodedFrame.of("Item not found or is not active.");
+    }
+
+    @Benchmark
+    public void broadcastPriceUpdate() {
+        registry.broadcast(priceUpdate);
+    }
+
+    // Frames without a subject are never conflated, every subscriber queues and writes it.
+    @Benchmark
+    public void broadcastPlainFrame() {
+        registry.broadcast(reply);
+    }
+
+    // A socket that is always open and swallows whatever is sent to it.
+    private static Session stubSession() {
+        RemoteEndpoint remote = (RemoteEndpoint) Proxy.newProxyInstance(FanOutBenchmark.class.getClassLoader(),
+                new Class<?>[]{RemoteEndpoint.class}, (proxy, method, args) -> null);
+        return (Session) Proxy.newProxyInstance(FanOutBenchmark.class.getClassLoader(),
+                new Class<?>[]{Session.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getRemote":
+                            return remote;
+                        case "isOpen":
+                            return true;
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
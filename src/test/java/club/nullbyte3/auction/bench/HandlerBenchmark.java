@@ -0,0 +1,89 @@
+package club.nullbyte3.auction.bench;
+
+import club.nullbyte3.auction.db.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of handlers that block on the database, with many requests in flight, on Jetty's platform thread
+ * pool versus virtual threads (auction.executionMode). loginUnknownUser is one query, createMessage an upsert
+ * and a catalog reload. Virtual threads need a Java 21 runtime, on older ones both modes run on platform threads.
+ * <p>
+ * Run with: mvn -Pbenchmark test -Djmh.include=HandlerBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(256)
+@Fork(1)
+public class HandlerBenchmark {
+
+    @Param({"platform", "virtual"})
+    private String executionMode;
+
+    private EmbeddedAuction auctionHouse;
+    private HttpClient client;
+    private String baseUrl;
+    private String authToken;
+
+    @Setup
+    public void setup() throws IOException {
+        System.setProperty("auction.executionMode", executionMode);
+        auctionHouse = new EmbeddedAuction();
+        baseUrl = auctionHouse.getBaseUrl();
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        User user = auctionHouse.createUsers(1).get(0);
+        authToken = user.getAuthToken();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        auctionHouse.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Caller {
+        private int next;
+    }
+
+    @Benchmark
+    public int loginUnknownUser(Caller caller) throws IOException, InterruptedException {
+        return post("/auth/login", "username=nobody-" + caller.next++ + "&password=secret");
+    }
+
+    @Benchmark
+    public int createMessage(Caller caller) throws IOException, InterruptedException {
+        // A key per thread, so the upserts don't queue up on one row lock.
+        return post("/message", "auth_token=" + authToken + "&language=bench&message_key=bench."
+                + Thread.currentThread().getId() + "&message_value=" + caller.next++);
+    }
+
+    private int post(String path, String form) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + path))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form))
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+}
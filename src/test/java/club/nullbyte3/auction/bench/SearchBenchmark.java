@@ -0,0 +1,116 @@
+package club.nullbyte3.auction.bench;
+
+import club.nullbyte3.auction.model.ItemStatus;
+import club.nullbyte3.auction.model.ItemSummary;
+import club.nullbyte3.auction.search.ItemSearchIndex;
+import club.nullbyte3.auction.search.SearchQuery;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queries against an {@link ItemSearchIndex} of generated items: names of three words out of a 2000 word vocabulary
+ * and descriptions of twelve, with a skewed pick, so some words are in a large share of the items. The build time
+ * of the index is printed once at setup.
+ * <p>
+ * Run with: mvn -Pbenchmark test -Djmh.include=SearchBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SearchBenchmark {
+
+    private static final int VOCABULARY = 2000;
+
+    @Param({"1000000"})
+    private int items;
+
+    private ItemSearchIndex index;
+    private String rareWord;
+    private String commonWord;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        String[] words = new String[VOCABULARY];
+        for (int i = 0; i < VOCABULARY; i++) {
+            words[i] = word(random);
+        }
+        List<ItemSummary> summaries = new ArrayList<>(items);
+        ItemStatus[] statuses = ItemStatus.values();
+        for (int i = 0; i < items; i++) {
+            summaries.add(ItemSummary.builder()
+                    .id((long) i + 1)
+                    .itemName(text(random, words, 3))
+                    .itemDescription(text(random, words, 12))
+                    .status(statuses[random.nextInt(statuses.length)])
+                    .currentPrice(BigDecimal.valueOf(random.nextInt(100_000), 2))
+                    .build());
+        }
+        rareWord = words[VOCABULARY - 1];
+        commonWord = words[0];
+        long start = System.nanoTime();
+        index = ItemSearchIndex.build(summaries);
+        System.out.printf("%nIndexed %d items in %d ms.%n", items, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    @Benchmark
+    public ItemSearchIndex.Result rareWord() {
+        return index.search(SearchQuery.builder().text(rareWord).build());
+    }
+
+    @Benchmark
+    public ItemSearchIndex.Result rareAndCommonWord() {
+        return index.search(SearchQuery.builder().text(rareWord + " " + commonWord).build());
+    }
+
+    // As typed so far, two letters of a word expand to every term starting with them.
+    @Benchmark
+    public ItemSearchIndex.Result prefixWithFilters() {
+        return index.search(SearchQuery.builder()
+                .text(rareWord + " " + commonWord.substring(0, 2))
+                .status(ItemStatus.LIVE)
+                .maxPrice(BigDecimal.valueOf(500))
+                .build());
+    }
+
+    @Benchmark
+    public ItemSearchIndex.Result commonWord() {
+        return index.search(SearchQuery.builder().text(commonWord).build());
+    }
+
+    // Squared, so low indexes come up far more often, like real words do.
+    private static String text(Random random, String[] words, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            double skew = random.nextDouble();
+            text.append(i == 0 ? "" : " ").append(words[(int) (skew * skew * words.length)]);
+        }
+        return text.toString();
+    }
+
+    private static String word(Random random) {
+        char[] word = new char[4 + random.nextInt(6)];
+        for (int i = 0; i < word.length; i++) {
+            word[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(word);
+    }
+}
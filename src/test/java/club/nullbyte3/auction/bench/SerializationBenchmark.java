@@ -0,0 +1,109 @@
+package club.nullbyte3.auction.bench;
+
+import club.nullbyte3.auction.model.ItemStatus;
+import club.nullbyte3.auction.model.ItemSummary;
+import club.nullbyte3.auction.model.UserRef;
+import club.nullbyte3.auction.websocket.BidResponse;
+import club.nullbyte3.auction.websocket.BinaryCodec;
+import club.nullbyte3.auction.websocket.EncodedFrame;
+import club.nullbyte3.auction.websocket.WsMessage;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The WebSocket messages BidManager builds, serialized with the same Jackson setup. Item frames are normally
+ * served from the cached item JSON, wrapCachedItem is that path and serializeItem what it saves. The *Binary
+ * ones are the {@link BinaryCodec} forms binary sockets get, their byte counts are printed once at setup.
+ * <p>
+ * Run with: mvn -Pbenchmark test -Djmh.include=SerializationBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private ItemSummary item;
+    private WsMessage<ItemSummary> itemMessage;
+    private WsMessage<BidResponse> priceUpdate;
+    private String itemJson;
+
+    @Setup
+    public void setup() throws JsonProcessingException {
+        objectMapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        objectMapper.registerModule(new JavaTimeModule());
+
+        item = ItemSummary.builder()
+                .id(7L)
+                .itemName("Vintage mechanical keyboard")
+                .itemImage("https://example.com/images/keyboard.png")
+                .itemPrice(new BigDecimal("120.00"))
+                .itemDescription("Model M, 1989, buckling springs all working, comes with the original cable.")
+                .bidIncrement(new BigDecimal("5.00"))
+                .seller(new UserRef(1L, "seller"))
+                .createdAt(LocalDateTime.now())
+                .endAt(LocalDateTime.now().plusSeconds(25))
+                .active(true)
+                .status(ItemStatus.LIVE)
+                .currentPrice(new BigDecimal("1250.00"))
+                .bidCount(12)
+                .leader(new UserRef(42L, "bidder"))
+                .build();
+
+        itemMessage = new WsMessage<>("current_item", item);
+        priceUpdate = new WsMessage<>("price_update", new BidResponse(new BigDecimal("1250.00"), "bidder", 42L, 7L));
+        itemJson = objectMapper.writeValueAsString(item);
+        System.out.printf("%nprice_update: %d bytes JSON, %d bytes binary. new_auction: %d bytes JSON, %d bytes binary.%n",
+                objectMapper.writeValueAsBytes(priceUpdate).length, BinaryCodec.priceUpdate(priceUpdate.getPayload()).length,
+                EncodedFrame.wrap("new_auction", itemJson).getPayload().remaining(), BinaryCodec.newAuction(item).length);
+    }
+
+    @Benchmark
+    public String serializeItem() throws JsonProcessingException {
+        return objectMapper.writeValueAsString(itemMessage);
+    }
+
+    @Benchmark
+    public byte[] serializeItemBytes() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(itemMessage);
+    }
+
+    @Benchmark
+    public EncodedFrame wrapCachedItem() {
+        return EncodedFrame.wrap("current_item", itemJson);
+    }
+
+    @Benchmark
+    public EncodedFrame encodePriceUpdate() throws JsonProcessingException {
+        return EncodedFrame.of(priceUpdate.getSubject(), objectMapper.writeValueAsString(priceUpdate));
+    }
+
+    @Benchmark
+    public byte[] encodePriceUpdateBinary() {
+        return BinaryCodec.priceUpdate(priceUpdate.getPayload());
+    }
+
+    @Benchmark
+    public byte[] serializeItemBinary() {
+        return BinaryCodec.newAuction(item);
+    }
+}